@@ -0,0 +1,110 @@
+package hcfsfuse.fuse.benchmark;
+
+import static hcfsfuse.fuse.Constants.AUTH_POLICY;
+import static hcfsfuse.fuse.Constants.AUTH_POLICY_CUSTOM;
+
+import hcfsfuse.fuse.FuseOptions;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * A temporary directory on the local file system the benchmarked fuse file systems are rooted
+ * at.
+ * <p>
+ * The root holds {@code /meta}, a directory of empty files for the metadata callbacks, and
+ * {@code /data}, a file for the read callbacks. The file systems are never mounted, the
+ * callbacks are called directly with the root as the fuse path prefix.
+ */
+final class BenchmarkRoot implements Closeable {
+  /** Directory of the empty files. */
+  static final String META_DIR = "/meta";
+  /** File read by the read benchmarks. */
+  static final String DATA_FILE = "/data";
+  /** Number of files in {@link #META_DIR}, well above the size of the path resolver cache. */
+  static final int META_FILES = 4096;
+  /** Length of {@link #DATA_FILE}. */
+  static final long DATA_LENGTH = 64L << 20;
+
+  private final java.nio.file.Path mDir;
+  private final Configuration mConf;
+  private final FileSystem mFileSystem;
+  private final String[] mMetaPaths;
+
+  /**
+   * Creates the directory and the files.
+   */
+  BenchmarkRoot() throws IOException {
+    mDir = Files.createTempDirectory("hcfsfuse-benchmark");
+    mConf = new Configuration();
+    // the default policy reads the fuse context, which only exists in a mounted file system
+    mConf.set(AUTH_POLICY, AUTH_POLICY_CUSTOM);
+    // raw, so that the benchmarks do not measure the checksums of the local file system
+    mFileSystem = new RawLocalFileSystem();
+    mFileSystem.initialize(URI.create("file:///"), mConf);
+    mFileSystem.mkdirs(resolve(META_DIR));
+    mMetaPaths = new String[META_FILES];
+    for (int i = 0; i < META_FILES; i++) {
+      mMetaPaths[i] = META_DIR + "/f" + i;
+      mFileSystem.create(resolve(mMetaPaths[i]), true).close();
+    }
+    byte[] chunk = new byte[1 << 20];
+    try (FSDataOutputStream out = mFileSystem.create(resolve(DATA_FILE), true)) {
+      for (long written = 0; written < DATA_LENGTH; written += chunk.length) {
+        out.write(chunk);
+      }
+    }
+  }
+
+  /**
+   * @return the configuration to create the fuse file systems with
+   */
+  Configuration getConf() {
+    return mConf;
+  }
+
+  /**
+   * @return the local file system
+   */
+  FileSystem getFileSystem() {
+    return mFileSystem;
+  }
+
+  /**
+   * @return the options to create the fuse file systems with
+   */
+  FuseOptions getFuseOptions() {
+    return new FuseOptions(mDir.toString(), mDir.toUri().toString(), false,
+        new ArrayList<>(), new String[0], true);
+  }
+
+  /**
+   * @return the fuse paths of the files in {@link #META_DIR}
+   */
+  String[] getMetaPaths() {
+    return mMetaPaths;
+  }
+
+  /**
+   * @param path a fuse path
+   * @return the path on the local file system
+   */
+  Path resolve(String path) {
+    return new Path(mDir.toUri().toString() + path.substring(1));
+  }
+
+  @Override
+  public void close() throws IOException {
+    mFileSystem.delete(new Path(mDir.toUri()), true);
+    mFileSystem.close();
+  }
+}
@@ -0,0 +1,616 @@
+package hcfsfuse.fuse.benchmark;
+
+import static hcfsfuse.fuse.Constants.AUTH_POLICY;
+import static hcfsfuse.fuse.Constants.AUTH_POLICY_CUSTOM;
+
+import hcfsfuse.fuse.FuseOptions;
+import hcfsfuse.fuse.HCFSFuseFileSystem;
+import hcfsfuse.fuse.HCFSJniFuseFileSystem;
+
+import alluxio.fuse.AlluxioFuseUtils;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import ru.serce.jnrfuse.FuseFillDir;
+import ru.serce.jnrfuse.struct.FuseContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Generates load on the callbacks of the jnr and the jni fuse file systems in process, without
+ * mounting them, and reports the throughput and latency percentiles of each callback.
+ * <p>
+ * Each thread repeatedly picks a task from the weighted mix given with {@code -w}:
+ * <ul>
+ *   <li>{@code seqread}: opens one of the read files, reads it sequentially and releases it</li>
+ *   <li>{@code randread}: opens one of the read files, reads 16 random blocks and releases
+ *   it</li>
+ *   <li>{@code create}: creates a small file, writes it, flushes and releases it</li>
+ *   <li>{@code walk}: lists and stats the subtree of a random top level directory</li>
+ * </ul>
+ * The read files and the tree are created under the root when they are missing, the created
+ * files are deleted after each run. The jni file system fills directories through a native
+ * function that needs a mount, so its walks only stat the entries.
+ * <p>
+ * Options that read the fuse context of the calling process, such as throttling or the
+ * default auth policy, do not work without a mount. The custom auth policy is used unless
+ * another one is configured, and the jnr file system is given a context of the current user.
+ */
+public final class FuseLoadGenerator {
+  private static final Runtime RUNTIME = Runtime.getSystemRuntime();
+  private static final String USER_NAME = System.getProperty("user.name");
+  private static final int FUSE_FILE_INFO_SIZE = 128;
+  private static final int FILE_STAT_SIZE = 256;
+  private static final int FUSE_CONTEXT_SIZE = 64;
+  private static final int RANDOM_READS = 16;
+  private static final String READ_DIR = "/read";
+  private static final String TREE_DIR = "/tree";
+  private static final String CREATE_DIR = "/create";
+
+  private final FileSystem mFileSystem;
+  private final Path mRoot;
+  private final Map<Task, Integer> mMix;
+  private final int mThreads;
+  private final long mDurationMs;
+  private final int mBlockSize;
+  private final long mFileSize;
+  private final int mSmallFileSize;
+  private final List<String> mReadFiles = new ArrayList<>();
+  /** Children of each directory of the tree, directories end with a slash. */
+  private final Map<String, List<String>> mTree = new TreeMap<>();
+
+  private FuseLoadGenerator(FileSystem fs, Path root, Map<Task, Integer> mix, int threads,
+      long durationMs, int blockSize, long fileSize, int smallFileSize) {
+    mFileSystem = fs;
+    mRoot = root;
+    mMix = mix;
+    mThreads = threads;
+    mDurationMs = durationMs;
+    mBlockSize = blockSize;
+    mFileSize = fileSize;
+    mSmallFileSize = smallFileSize;
+  }
+
+  /**
+   * Tasks a thread can pick.
+   */
+  private enum Task {
+    SEQREAD,
+    RANDREAD,
+    CREATE,
+    WALK
+  }
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    Options opts = new Options();
+    opts.addOption(Option.builder("r").longOpt("target-root").hasArg().required()
+        .desc("Root of the file systems, e.g. file:///tmp/load").build());
+    opts.addOption(Option.builder("c").longOpt("config").hasArg()
+        .desc("Config files").build());
+    opts.addOption(Option.builder("i").longOpt("impl").hasArg()
+        .desc("Comma separated implementations to run, jnr and jni, defaults to both").build());
+    opts.addOption(Option.builder("w").longOpt("workload").hasArg()
+        .desc("Weighted mix of seqread, randread, create and walk tasks, "
+            + "e.g. seqread=3,create=1, defaults to seqread").build());
+    opts.addOption(Option.builder("t").longOpt("threads").hasArg()
+        .desc("Number of threads, defaults to 8").build());
+    opts.addOption(Option.builder("d").longOpt("duration").hasArg()
+        .desc("Seconds to run each implementation for, defaults to 30").build());
+    opts.addOption(Option.builder("bs").longOpt("block-size").hasArg()
+        .desc("Bytes per read and write, defaults to 131072").build());
+    opts.addOption(Option.builder("files").hasArg()
+        .desc("Number of read files, defaults to 16").build());
+    opts.addOption(Option.builder("size").hasArg()
+        .desc("Bytes per read file, defaults to 67108864").build());
+    opts.addOption(Option.builder("small").hasArg()
+        .desc("Bytes per created file, defaults to 4096").build());
+    opts.addOption(Option.builder("fanout").hasArg()
+        .desc("Directories and files per directory of the walked tree, defaults to 8").build());
+    opts.addOption(Option.builder("depth").hasArg()
+        .desc("Depth of the walked tree, defaults to 3").build());
+    CommandLine cli;
+    try {
+      cli = new DefaultParser().parse(opts, args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      new HelpFormatter().printHelp(FuseLoadGenerator.class.getName(), opts);
+      System.exit(1);
+      return;
+    }
+    String[] confPaths = cli.hasOption("c") ? cli.getOptionValues("c") : new String[0];
+    Configuration conf = new Configuration();
+    for (String confPath : confPaths) {
+      conf.addResource(new Path(confPath));
+    }
+    if (conf.get(AUTH_POLICY) == null) {
+      conf.set(AUTH_POLICY, AUTH_POLICY_CUSTOM);
+    }
+    Path root = new Path(cli.getOptionValue("r"));
+    FileSystem fs = root.getFileSystem(conf);
+    FuseLoadGenerator generator = new FuseLoadGenerator(fs, root,
+        parseMix(cli.getOptionValue("w", "seqread")),
+        Integer.parseInt(cli.getOptionValue("t", "8")),
+        TimeUnit.SECONDS.toMillis(Long.parseLong(cli.getOptionValue("d", "30"))),
+        Integer.parseInt(cli.getOptionValue("bs", "131072")),
+        Long.parseLong(cli.getOptionValue("size", "67108864")),
+        Integer.parseInt(cli.getOptionValue("small", "4096")));
+    generator.prepare(Integer.parseInt(cli.getOptionValue("files", "16")),
+        Integer.parseInt(cli.getOptionValue("fanout", "8")),
+        Integer.parseInt(cli.getOptionValue("depth", "3")));
+    FuseOptions fuseOptions = new FuseOptions(
+        Files.createTempDirectory("hcfsfuse-load").toString(), root.toString(), false,
+        new ArrayList<>(), confPaths, true);
+    System.out.printf(Locale.US, "%-4s %-8s %10s %10s %9s %9s %9s %9s %9s%n", "impl", "op",
+        "count", "ops/s", "mean_ms", "p50_ms", "p90_ms", "p99_ms", "max_ms");
+    for (String impl : cli.getOptionValue("i", "jnr,jni").split(",")) {
+      switch (impl.trim()) {
+        case "jnr": {
+          HCFSFuseFileSystem jnr = new UnmountedJnrFuseFileSystem(fs, fuseOptions, conf);
+          generator.run("jnr", () -> new JnrClient(jnr, generator.mBlockSize));
+          break;
+        }
+        case "jni": {
+          HCFSJniFuseFileSystem jni = new HCFSJniFuseFileSystem(fs, fuseOptions, conf);
+          generator.run("jni", () -> new JniClient(jni, generator.mBlockSize));
+          break;
+        }
+        default:
+          System.err.println("Unknown implementation " + impl);
+      }
+    }
+    fs.close();
+  }
+
+  private static Map<Task, Integer> parseMix(String mix) {
+    Map<Task, Integer> weights = new LinkedHashMap<>();
+    for (String part : mix.split(",")) {
+      String[] kv = part.split("=");
+      Task task = Task.valueOf(kv[0].trim().toUpperCase(Locale.US));
+      int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+      if (weight > 0) {
+        weights.put(task, weight);
+      }
+    }
+    if (weights.isEmpty()) {
+      throw new IllegalArgumentException("Empty workload " + mix);
+    }
+    return weights;
+  }
+
+  private Path resolve(String fusePath) {
+    return new Path(mRoot, fusePath.substring(1));
+  }
+
+  /**
+   * Creates the read files and the tree when they are missing, and lists the tree.
+   */
+  private void prepare(int files, int fanout, int depth) throws IOException {
+    if (mMix.containsKey(Task.SEQREAD) || mMix.containsKey(Task.RANDREAD)) {
+      byte[] chunk = new byte[1 << 20];
+      for (int i = 0; i < files; i++) {
+        String path = READ_DIR + "/f" + i;
+        mReadFiles.add(path);
+        if (mFileSystem.exists(resolve(path))
+            && mFileSystem.getFileStatus(resolve(path)).getLen() == mFileSize) {
+          continue;
+        }
+        try (FSDataOutputStream out = mFileSystem.create(resolve(path), true)) {
+          for (long left = mFileSize; left > 0; left -= chunk.length) {
+            out.write(chunk, 0, (int) Math.min(left, chunk.length));
+          }
+        }
+      }
+    }
+    if (mMix.containsKey(Task.WALK)) {
+      if (!mFileSystem.exists(resolve(TREE_DIR))) {
+        createTree(TREE_DIR, fanout, depth);
+      }
+      listTree(TREE_DIR);
+    }
+    mFileSystem.delete(resolve(CREATE_DIR), true);
+  }
+
+  private void createTree(String dir, int fanout, int depth) throws IOException {
+    mFileSystem.mkdirs(resolve(dir));
+    for (int i = 0; i < fanout; i++) {
+      mFileSystem.create(resolve(dir + "/f" + i), true).close();
+      if (depth > 0) {
+        createTree(dir + "/d" + i, fanout, depth - 1);
+      }
+    }
+  }
+
+  private void listTree(String dir) throws IOException {
+    List<String> children = new ArrayList<>();
+    for (FileStatus status : mFileSystem.listStatus(resolve(dir))) {
+      String child = dir + "/" + status.getPath().getName();
+      if (status.isDirectory()) {
+        children.add(child + "/");
+        listTree(child);
+      } else {
+        children.add(child);
+      }
+    }
+    mTree.put(dir, children);
+  }
+
+  private Task pick(ThreadLocalRandom random) {
+    int total = 0;
+    for (int weight : mMix.values()) {
+      total += weight;
+    }
+    int r = random.nextInt(total);
+    for (Map.Entry<Task, Integer> e : mMix.entrySet()) {
+      r -= e.getValue();
+      if (r < 0) {
+        return e.getKey();
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private void run(String impl, ClientFactory factory) throws Exception {
+    Map<String, Timer> timers = new ConcurrentHashMap<>();
+    AtomicLong errors = new AtomicLong();
+    AtomicLong tasks = new AtomicLong();
+    AtomicLong bytes = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+    List<Future<?>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(mDurationMs);
+    for (int t = 0; t < mThreads; t++) {
+      String createDir = CREATE_DIR + "/" + impl + "-" + t;
+      futures.add(executor.submit(() -> {
+        mFileSystem.mkdirs(resolve(createDir));
+        Worker worker = new Worker(factory.create(), timers, errors, createDir);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadline) {
+          bytes.addAndGet(worker.run(pick(random), random));
+          tasks.incrementAndGet();
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    for (Map.Entry<String, Timer> e : new TreeMap<>(timers).entrySet()) {
+      Timer timer = e.getValue();
+      Snapshot snapshot = timer.getSnapshot();
+      System.out.printf(Locale.US, "%-4s %-8s %10d %10.0f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+          impl, e.getKey(), timer.getCount(), timer.getCount() / seconds,
+          snapshot.getMean() / 1e6, snapshot.getMedian() / 1e6, snapshot.getValue(0.9) / 1e6,
+          snapshot.get99thPercentile() / 1e6, snapshot.getMax() / 1e6);
+    }
+    System.out.printf(Locale.US, "%-4s %d tasks in %.1fs (%.0f tasks/s), %.1f MiB/s, "
+        + "%d failed callbacks%n", impl, tasks.get(), seconds, tasks.get() / seconds,
+        bytes.get() / seconds / (1 << 20), errors.get());
+    mFileSystem.delete(resolve(CREATE_DIR), true);
+  }
+
+  /**
+   * Runs the tasks of one thread through a client.
+   */
+  private final class Worker {
+    private final Client mClient;
+    private final Map<String, Timer> mTimers;
+    private final AtomicLong mErrors;
+    private final String mCreateDir;
+    private long mCreated;
+
+    Worker(Client client, Map<String, Timer> timers, AtomicLong errors, String createDir) {
+      mClient = client;
+      mTimers = timers;
+      mErrors = errors;
+      mCreateDir = createDir;
+    }
+
+    private int call(String op, IntSupplier callback) {
+      long begin = System.nanoTime();
+      int ret = callback.getAsInt();
+      mTimers.computeIfAbsent(op, k -> new Timer())
+          .update(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+      if (ret < 0) {
+        mErrors.incrementAndGet();
+      }
+      return ret;
+    }
+
+    /**
+     * @return the number of bytes read or written by the task
+     */
+    long run(Task task, ThreadLocalRandom random) {
+      switch (task) {
+        case SEQREAD:
+          return read(random, false);
+        case RANDREAD:
+          return read(random, true);
+        case CREATE:
+          return create();
+        case WALK:
+          List<String> top = mTree.get(TREE_DIR);
+          List<String> dirs = new ArrayList<>();
+          for (String child : top) {
+            if (child.endsWith("/")) {
+              dirs.add(child.substring(0, child.length() - 1));
+            }
+          }
+          walk(dirs.isEmpty() ? TREE_DIR : dirs.get(random.nextInt(dirs.size())));
+          return 0;
+        default:
+          throw new IllegalStateException("Unknown task " + task);
+      }
+    }
+
+    private long read(ThreadLocalRandom random, boolean randomOffsets) {
+      String path = mReadFiles.get(random.nextInt(mReadFiles.size()));
+      if (call("open", () -> mClient.open(path)) < 0) {
+        return 0;
+      }
+      long bytes = 0;
+      long blocks = Math.max(1, mFileSize / mBlockSize);
+      long reads = randomOffsets ? RANDOM_READS : blocks;
+      for (long i = 0; i < reads; i++) {
+        long offset = (randomOffsets ? random.nextLong(blocks) : i) * mBlockSize;
+        int nread = call("read", () -> mClient.read(path, offset, mBlockSize));
+        if (nread <= 0) {
+          break;
+        }
+        bytes += nread;
+      }
+      call("release", () -> mClient.release(path));
+      return bytes;
+    }
+
+    private long create() {
+      String path = mCreateDir + "/c" + mCreated++;
+      if (call("create", () -> mClient.create(path)) < 0) {
+        return 0;
+      }
+      long bytes = 0;
+      for (long offset = 0; offset < mSmallFileSize; offset += mBlockSize) {
+        long off = offset;
+        int size = (int) Math.min(mBlockSize, mSmallFileSize - offset);
+        if (call("write", () -> mClient.write(path, off, size)) < 0) {
+          break;
+        }
+        bytes += size;
+      }
+      call("flush", () -> mClient.flush(path));
+      call("release", () -> mClient.release(path));
+      return bytes;
+    }
+
+    private void walk(String dir) {
+      call("getattr", () -> mClient.getattr(dir));
+      if (mClient instanceof ListingClient) {
+        ListingClient client = (ListingClient) mClient;
+        call("readdir", () -> client.readdir(dir));
+      }
+      for (String child : mTree.getOrDefault(dir, Collections.emptyList())) {
+        if (child.endsWith("/")) {
+          walk(child.substring(0, child.length() - 1));
+        } else {
+          call("getattr", () -> mClient.getattr(child));
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the client of a thread.
+   */
+  @FunctionalInterface
+  private interface ClientFactory {
+    /**
+     * @return a new client
+     */
+    Client create();
+  }
+
+  /**
+   * The callbacks of a fuse file system as called by one thread, which has at most one file
+   * open at a time. Each call returns the result of the callback.
+   */
+  private interface Client {
+    int getattr(String path);
+
+    int open(String path);
+
+    int create(String path);
+
+    int read(String path, long offset, int size);
+
+    int write(String path, long offset, int size);
+
+    int flush(String path);
+
+    int release(String path);
+  }
+
+  /**
+   * A client that can also list directories, the walk skips readdir for the others.
+   */
+  private interface ListingClient extends Client {
+    int readdir(String path);
+  }
+
+  /**
+   * A jnr fuse file system that runs without a mount, with the fuse context of the current
+   * user.
+   */
+  private static final class UnmountedJnrFuseFileSystem extends HCFSFuseFileSystem {
+    private final FuseContext mContext;
+
+    UnmountedJnrFuseFileSystem(FileSystem fs, FuseOptions fuseOptions, Configuration conf)
+        throws IOException {
+      super(fs, fuseOptions, conf);
+      mContext = FuseContext.of(RUNTIME.getMemoryManager().allocateDirect(FUSE_CONTEXT_SIZE,
+          true));
+      mContext.uid.set(AlluxioFuseUtils.getUid(USER_NAME));
+      mContext.gid.set(AlluxioFuseUtils.getGid(USER_NAME));
+    }
+
+    @Override
+    public FuseContext getContext() {
+      return mContext;
+    }
+  }
+
+  /**
+   * Calls the jnr fuse file system.
+   */
+  private static final class JnrClient implements ListingClient {
+    private final HCFSFuseFileSystem mFuse;
+    private final ru.serce.jnrfuse.struct.FuseFileInfo mFi =
+        new ru.serce.jnrfuse.struct.FuseFileInfo(RUNTIME);
+    private final ru.serce.jnrfuse.struct.FileStat mStat =
+        new ru.serce.jnrfuse.struct.FileStat(RUNTIME);
+    private final Pointer mBuffer;
+    private final Pointer mDirBuffer = RUNTIME.getMemoryManager().allocateDirect(1);
+    private final FuseFillDir mFiller = (buf, name, stat, off) -> 0;
+
+    JnrClient(HCFSFuseFileSystem fuse, int blockSize) {
+      mFuse = fuse;
+      mBuffer = RUNTIME.getMemoryManager().allocateDirect(blockSize);
+    }
+
+    @Override
+    public int getattr(String path) {
+      return mFuse.getattr(path, mStat);
+    }
+
+    @Override
+    public int readdir(String path) {
+      return mFuse.readdir(path, mDirBuffer, mFiller, 0, mFi);
+    }
+
+    @Override
+    public int open(String path) {
+      mFi.flags.set(0);
+      return mFuse.open(path, mFi);
+    }
+
+    @Override
+    public int create(String path) {
+      mFi.flags.set(1);
+      return mFuse.create(path, 0644, mFi);
+    }
+
+    @Override
+    public int read(String path, long offset, int size) {
+      return mFuse.read(path, mBuffer, size, offset, mFi);
+    }
+
+    @Override
+    public int write(String path, long offset, int size) {
+      return mFuse.write(path, mBuffer, size, offset, mFi);
+    }
+
+    @Override
+    public int flush(String path) {
+      return mFuse.flush(path, mFi);
+    }
+
+    @Override
+    public int release(String path) {
+      return mFuse.release(path, mFi);
+    }
+  }
+
+  /**
+   * Calls the jni fuse file system.
+   */
+  private static final class JniClient implements Client {
+    private final HCFSJniFuseFileSystem mFuse;
+    private final alluxio.jnifuse.struct.FuseFileInfo mFi =
+        alluxio.jnifuse.struct.FuseFileInfo.of(direct(FUSE_FILE_INFO_SIZE));
+    private final alluxio.jnifuse.struct.FileStat mStat =
+        alluxio.jnifuse.struct.FileStat.of(direct(FILE_STAT_SIZE));
+    private final ByteBuffer mBuffer;
+
+    JniClient(HCFSJniFuseFileSystem fuse, int blockSize) {
+      mFuse = fuse;
+      mBuffer = direct(blockSize);
+    }
+
+    private static ByteBuffer direct(int size) {
+      return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public int getattr(String path) {
+      return mFuse.getattr(path, mStat);
+    }
+
+    @Override
+    public int open(String path) {
+      mFi.flags.set(0);
+      return mFuse.open(path, mFi);
+    }
+
+    @Override
+    public int create(String path) {
+      mFi.flags.set(1);
+      return mFuse.create(path, 0644, mFi);
+    }
+
+    @Override
+    public int read(String path, long offset, int size) {
+      mBuffer.clear();
+      return mFuse.read(path, mBuffer, size, offset, mFi);
+    }
+
+    @Override
+    public int write(String path, long offset, int size) {
+      mBuffer.clear();
+      return mFuse.write(path, mBuffer, size, offset, mFi);
+    }
+
+    @Override
+    public int flush(String path) {
+      return mFuse.flush(path, mFi);
+    }
+
+    @Override
+    public int release(String path) {
+      return mFuse.release(path, mFi);
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package hcfsfuse.fuse.benchmark;
+
+import hcfsfuse.fuse.HCFSJniFuseFileSystem;
+
+import alluxio.jnifuse.struct.FileStat;
+import alluxio.jnifuse.struct.FuseFileInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the {@link HCFSJniFuseFileSystem} callbacks, called directly on an unmounted
+ * file system rooted at a local directory.
+ * <p>
+ * {@code getattr} is run over 16 paths, which stay in the path resolver cache, and over 4096
+ * paths, which do not. {@code read} is run on one handle shared by all threads, which contend
+ * on the striped lock of the handle, and on one handle per thread. Run with {@code -prof gc}
+ * to see the allocations of each callback.
+ * <p>
+ * {@code readdir} is not covered: the jni file system fills the directory through a native
+ * function, which can only be called from a mounted file system.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JniFuseBenchmark {
+  private static final int FUSE_FILE_INFO_SIZE = 128;
+  private static final int FILE_STAT_SIZE = 256;
+
+  private static ByteBuffer direct(int size) {
+    return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+  }
+
+  private static FuseFileInfo open(HCFSJniFuseFileSystem fuse, String path, int flags) {
+    FuseFileInfo fi = FuseFileInfo.of(direct(FUSE_FILE_INFO_SIZE));
+    fi.flags.set(flags);
+    int ret = fuse.open(path, fi);
+    if (ret != 0) {
+      throw new IllegalStateException("Failed to open " + path + ": " + ret);
+    }
+    return fi;
+  }
+
+  /**
+   * The file system and the files it is rooted at.
+   */
+  @State(Scope.Benchmark)
+  public static class FileSystemState {
+    private BenchmarkRoot mRoot;
+    private HCFSJniFuseFileSystem mFuse;
+
+    /**
+     * Creates the files and the file system.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      mRoot = new BenchmarkRoot();
+      mFuse = new HCFSJniFuseFileSystem(mRoot.getFileSystem(), mRoot.getFuseOptions(),
+          mRoot.getConf());
+    }
+
+    /**
+     * Deletes the files.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      mRoot.close();
+    }
+  }
+
+  /**
+   * The paths a thread stats.
+   */
+  @State(Scope.Thread)
+  public static class MetaState {
+    /** Number of distinct paths, the path resolver cache holds 500. */
+    @Param({"16", "4096"})
+    public int paths;
+
+    private final FileStat mStat = FileStat.of(direct(FILE_STAT_SIZE));
+    private int mNext;
+
+    private String nextPath(FileSystemState fs) {
+      String path = fs.mRoot.getMetaPaths()[mNext];
+      mNext = (mNext + 1) % paths;
+      return path;
+    }
+  }
+
+  /**
+   * A read handle shared by all the threads.
+   */
+  @State(Scope.Benchmark)
+  public static class SharedHandle {
+    private FuseFileInfo mFi;
+
+    /**
+     * @param fs the file system
+     */
+    @Setup(Level.Trial)
+    public void setup(FileSystemState fs) {
+      mFi = open(fs.mFuse, BenchmarkRoot.DATA_FILE, 0);
+    }
+
+    /**
+     * @param fs the file system
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(FileSystemState fs) {
+      fs.mFuse.release(BenchmarkRoot.DATA_FILE, mFi);
+    }
+  }
+
+  /**
+   * A read handle of each thread.
+   */
+  @State(Scope.Thread)
+  public static class OwnHandle {
+    private FuseFileInfo mFi;
+
+    /**
+     * @param fs the file system
+     */
+    @Setup(Level.Trial)
+    public void setup(FileSystemState fs) {
+      mFi = open(fs.mFuse, BenchmarkRoot.DATA_FILE, 0);
+    }
+
+    /**
+     * @param fs the file system
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(FileSystemState fs) {
+      fs.mFuse.release(BenchmarkRoot.DATA_FILE, mFi);
+    }
+  }
+
+  /**
+   * The read buffer and offset of a thread.
+   */
+  @State(Scope.Thread)
+  public static class ReadState {
+    /** Number of bytes per read. */
+    @Param({"4096", "131072"})
+    public int size;
+
+    private ByteBuffer mBuffer;
+    private long mOffset;
+
+    /**
+     * Allocates the buffer.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+      mBuffer = direct(size);
+    }
+
+    private long nextOffset() {
+      long offset = mOffset;
+      mOffset = (mOffset + size) % BenchmarkRoot.DATA_LENGTH;
+      return offset;
+    }
+  }
+
+  /**
+   * The write handle, buffer and offset of a thread.
+   */
+  @State(Scope.Thread)
+  public static class WriteState {
+    /** Number of bytes per write. */
+    @Param({"4096", "131072"})
+    public int size;
+
+    private ByteBuffer mBuffer;
+    private String mPath;
+    private FuseFileInfo mFi;
+    private long mOffset;
+
+    /**
+     * @param fs the file system
+     */
+    @Setup(Level.Trial)
+    public void setup(FileSystemState fs) {
+      mBuffer = direct(size);
+      mPath = "/write-" + Thread.currentThread().getId();
+    }
+
+    /**
+     * Truncates the written file, so that it does not grow across iterations.
+     *
+     * @param fs the file system
+     */
+    @Setup(Level.Iteration)
+    public void open(FileSystemState fs) {
+      mFi = JniFuseBenchmark.open(fs.mFuse, mPath, 1);
+      mOffset = 0;
+    }
+
+    /**
+     * @param fs the file system
+     */
+    @TearDown(Level.Iteration)
+    public void close(FileSystemState fs) {
+      fs.mFuse.release(mPath, mFi);
+    }
+  }
+
+  /**
+   * @param fs the file system
+   * @param state the paths of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  public int getattr(FileSystemState fs, MetaState state) {
+    return fs.mFuse.getattr(state.nextPath(fs), state.mStat);
+  }
+
+  /**
+   * @param fs the file system
+   * @param handle the shared handle
+   * @param state the buffer and offset of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  @Threads(4)
+  public int readSharedHandle(FileSystemState fs, SharedHandle handle, ReadState state) {
+    state.mBuffer.clear();
+    return fs.mFuse.read(BenchmarkRoot.DATA_FILE, state.mBuffer, state.size,
+        state.nextOffset(), handle.mFi);
+  }
+
+  /**
+   * @param fs the file system
+   * @param handle the handle of the thread
+   * @param state the buffer and offset of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  @Threads(4)
+  public int readOwnHandle(FileSystemState fs, OwnHandle handle, ReadState state) {
+    state.mBuffer.clear();
+    return fs.mFuse.read(BenchmarkRoot.DATA_FILE, state.mBuffer, state.size,
+        state.nextOffset(), handle.mFi);
+  }
+
+  /**
+   * @param fs the file system
+   * @param state the handle, buffer and offset of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  public int write(FileSystemState fs, WriteState state) {
+    state.mBuffer.clear();
+    int ret = fs.mFuse.write(state.mPath, state.mBuffer, state.size, state.mOffset, state.mFi);
+    state.mOffset += state.size;
+    return ret;
+  }
+}
@@ -0,0 +1,297 @@
+package hcfsfuse.fuse.benchmark;
+
+import hcfsfuse.fuse.HCFSFuseFileSystem;
+
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.serce.jnrfuse.FuseFillDir;
+import ru.serce.jnrfuse.struct.FileStat;
+import ru.serce.jnrfuse.struct.FuseFileInfo;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the {@link HCFSFuseFileSystem} callbacks, called directly on an unmounted file
+ * system rooted at a local directory.
+ * <p>
+ * The cases mirror {@link JniFuseBenchmark}, the jnr file system additionally covers
+ * {@code readdir} of a small directory and of a directory of 4096 files, filled by a filler
+ * that only counts the entries. Run with {@code -prof gc} to see the allocations of each
+ * callback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JnrFuseBenchmark {
+  private static final Runtime RUNTIME = Runtime.getSystemRuntime();
+
+  private static FuseFileInfo open(HCFSFuseFileSystem fuse, String path, int flags) {
+    FuseFileInfo fi = new FuseFileInfo(RUNTIME);
+    fi.flags.set(flags);
+    int ret = fuse.open(path, fi);
+    if (ret != 0) {
+      throw new IllegalStateException("Failed to open " + path + ": " + ret);
+    }
+    return fi;
+  }
+
+  /**
+   * The file system and the files it is rooted at.
+   */
+  @State(Scope.Benchmark)
+  public static class FileSystemState {
+    private BenchmarkRoot mRoot;
+    private HCFSFuseFileSystem mFuse;
+
+    /**
+     * Creates the files and the file system.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      mRoot = new BenchmarkRoot();
+      mFuse = new HCFSFuseFileSystem(mRoot.getFileSystem(), mRoot.getFuseOptions(),
+          mRoot.getConf());
+    }
+
+    /**
+     * Deletes the files.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      mRoot.close();
+    }
+  }
+
+  /**
+   * The paths a thread stats.
+   */
+  @State(Scope.Thread)
+  public static class MetaState {
+    /** Number of distinct paths, the path resolver cache holds 500. */
+    @Param({"16", "4096"})
+    public int paths;
+
+    private final FileStat mStat = new FileStat(RUNTIME);
+    private int mNext;
+
+    private String nextPath(FileSystemState fs) {
+      String path = fs.mRoot.getMetaPaths()[mNext];
+      mNext = (mNext + 1) % paths;
+      return path;
+    }
+  }
+
+  /**
+   * The directory a thread lists and the filler counting its entries.
+   */
+  @State(Scope.Thread)
+  public static class DirState {
+    /** The listed directory. */
+    @Param({"/", BenchmarkRoot.META_DIR})
+    public String dir;
+
+    private final FuseFileInfo mFi = new FuseFileInfo(RUNTIME);
+    private final Pointer mBuffer = RUNTIME.getMemoryManager().allocateDirect(1);
+    private long mEntries;
+    private final FuseFillDir mFiller = (buf, name, stat, off) -> {
+      mEntries++;
+      return 0;
+    };
+  }
+
+  /**
+   * A read handle shared by all the threads.
+   */
+  @State(Scope.Benchmark)
+  public static class SharedHandle {
+    private FuseFileInfo mFi;
+
+    /**
+     * @param fs the file system
+     */
+    @Setup(Level.Trial)
+    public void setup(FileSystemState fs) {
+      mFi = open(fs.mFuse, BenchmarkRoot.DATA_FILE, 0);
+    }
+
+    /**
+     * @param fs the file system
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(FileSystemState fs) {
+      fs.mFuse.release(BenchmarkRoot.DATA_FILE, mFi);
+    }
+  }
+
+  /**
+   * A read handle of each thread.
+   */
+  @State(Scope.Thread)
+  public static class OwnHandle {
+    private FuseFileInfo mFi;
+
+    /**
+     * @param fs the file system
+     */
+    @Setup(Level.Trial)
+    public void setup(FileSystemState fs) {
+      mFi = open(fs.mFuse, BenchmarkRoot.DATA_FILE, 0);
+    }
+
+    /**
+     * @param fs the file system
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(FileSystemState fs) {
+      fs.mFuse.release(BenchmarkRoot.DATA_FILE, mFi);
+    }
+  }
+
+  /**
+   * The read buffer and offset of a thread.
+   */
+  @State(Scope.Thread)
+  public static class ReadState {
+    /** Number of bytes per read. */
+    @Param({"4096", "131072"})
+    public int size;
+
+    private Pointer mBuffer;
+    private long mOffset;
+
+    /**
+     * Allocates the buffer.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+      mBuffer = RUNTIME.getMemoryManager().allocateDirect(size);
+    }
+
+    private long nextOffset() {
+      long offset = mOffset;
+      mOffset = (mOffset + size) % BenchmarkRoot.DATA_LENGTH;
+      return offset;
+    }
+  }
+
+  /**
+   * The write handle, buffer and offset of a thread.
+   */
+  @State(Scope.Thread)
+  public static class WriteState {
+    /** Number of bytes per write. */
+    @Param({"4096", "131072"})
+    public int size;
+
+    private Pointer mBuffer;
+    private String mPath;
+    private FuseFileInfo mFi;
+    private long mOffset;
+
+    /**
+     * Creates the written file, the jnr file system only opens existing files for writing.
+     *
+     * @param fs the file system
+     */
+    @Setup(Level.Trial)
+    public void setup(FileSystemState fs) throws IOException {
+      mBuffer = RUNTIME.getMemoryManager().allocateDirect(size);
+      mPath = "/write-" + Thread.currentThread().getId();
+      fs.mRoot.getFileSystem().create(fs.mRoot.resolve(mPath), true).close();
+    }
+
+    /**
+     * Truncates the written file, so that it does not grow across iterations.
+     *
+     * @param fs the file system
+     */
+    @Setup(Level.Iteration)
+    public void open(FileSystemState fs) {
+      mFi = JnrFuseBenchmark.open(fs.mFuse, mPath, 1);
+      mOffset = 0;
+    }
+
+    /**
+     * @param fs the file system
+     */
+    @TearDown(Level.Iteration)
+    public void close(FileSystemState fs) {
+      fs.mFuse.release(mPath, mFi);
+    }
+  }
+
+  /**
+   * @param fs the file system
+   * @param state the paths of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  public int getattr(FileSystemState fs, MetaState state) {
+    return fs.mFuse.getattr(state.nextPath(fs), state.mStat);
+  }
+
+  /**
+   * @param fs the file system
+   * @param state the directory and filler of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  public int readdir(FileSystemState fs, DirState state) {
+    return fs.mFuse.readdir(state.dir, state.mBuffer, state.mFiller, 0, state.mFi);
+  }
+
+  /**
+   * @param fs the file system
+   * @param handle the shared handle
+   * @param state the buffer and offset of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  @Threads(4)
+  public int readSharedHandle(FileSystemState fs, SharedHandle handle, ReadState state) {
+    return fs.mFuse.read(BenchmarkRoot.DATA_FILE, state.mBuffer, state.size,
+        state.nextOffset(), handle.mFi);
+  }
+
+  /**
+   * @param fs the file system
+   * @param handle the handle of the thread
+   * @param state the buffer and offset of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  @Threads(4)
+  public int readOwnHandle(FileSystemState fs, OwnHandle handle, ReadState state) {
+    return fs.mFuse.read(BenchmarkRoot.DATA_FILE, state.mBuffer, state.size,
+        state.nextOffset(), handle.mFi);
+  }
+
+  /**
+   * @param fs the file system
+   * @param state the handle, buffer and offset of the thread
+   * @return the result of the callback
+   */
+  @Benchmark
+  public int write(FileSystemState fs, WriteState state) {
+    int ret = fs.mFuse.write(state.mPath, state.mBuffer, state.size, state.mOffset, state.mFi);
+    state.mOffset += state.size;
+    return ret;
+  }
+}
@@ -1,7 +1,7 @@
 package hcfsfuse.fuse;
 
 /**
- * Convenience class of auth options.
+ * Convenience class of configuration options.
  */
 public class Constants {
   public static final String AUTH_POLICY = "hcfs.fuse.auth.policy";
@@ -11,4 +11,211 @@ public class Constants {
   public static final String AUTH_POLICY_IGNORE_MKDIR_GROUP = "hcfs.fuse.ignore.mkdir.group";
   // jnr fuse max number of files that can be opened simultaneously
   public static final String JNR_OPEN_FILE_CONCURRENT = "hcfs.fuse.jnr.open.file.concurrent";
+  // number of independent backend FileSystem clients used by the jni fuse file system
+  public static final String FS_POOL_SIZE = "hcfs.fuse.fs.pool.size";
+  public static final int FS_POOL_SIZE_DEFAULT = 1;
+  // create the jni fuse backend clients in the background while the mount comes up
+  public static final String STARTUP_LAZY_BACKEND = "hcfs.fuse.startup.lazy.backend";
+  // how long callbacks wait for the backend clients before failing with EAGAIN
+  public static final String STARTUP_WAIT_MS = "hcfs.fuse.startup.wait.ms";
+  public static final long STARTUP_WAIT_MS_DEFAULT = 30000;
+  // file created once every mount serves callbacks, e.g. for a readiness probe
+  public static final String STARTUP_READY_FILE = "hcfs.fuse.startup.ready.file";
+
+  // metrics reporters, all disabled by default
+  public static final String METRICS_JMX_ENABLED = "hcfs.fuse.metrics.jmx.enabled";
+  public static final String METRICS_JMX_DOMAIN = "hcfs.fuse.metrics.jmx.domain";
+  public static final String METRICS_CSV_DIR = "hcfs.fuse.metrics.csv.dir";
+  public static final String METRICS_GRAPHITE_HOST = "hcfs.fuse.metrics.graphite.host";
+  public static final String METRICS_GRAPHITE_PORT = "hcfs.fuse.metrics.graphite.port";
+  public static final int METRICS_GRAPHITE_PORT_DEFAULT = 2003;
+  public static final String METRICS_GRAPHITE_PREFIX = "hcfs.fuse.metrics.graphite.prefix";
+  public static final String METRICS_REPORT_INTERVAL_SEC = "hcfs.fuse.metrics.report.interval.sec";
+  public static final long METRICS_REPORT_INTERVAL_SEC_DEFAULT = 60;
+  // aggregation of backend stream IOStatistics and FileSystem storage statistics
+  public static final String IOSTATS_ENABLED = "hcfs.fuse.iostats.enabled";
+  public static final String IOSTATS_POLL_INTERVAL_SEC = "hcfs.fuse.iostats.poll.interval.sec";
+  public static final long IOSTATS_POLL_INTERVAL_SEC_DEFAULT = 30;
+  // tracing of callbacks slower than a threshold
+  public static final String SLOW_OP_ENABLED = "hcfs.fuse.slow.op.enabled";
+  public static final String SLOW_OP_THRESHOLD_MS = "hcfs.fuse.slow.op.threshold.ms";
+  public static final long SLOW_OP_THRESHOLD_MS_DEFAULT = 200;
+  public static final String SLOW_OP_SAMPLE_RATE = "hcfs.fuse.slow.op.sample.rate";
+  public static final double SLOW_OP_SAMPLE_RATE_DEFAULT = 0.1;
+  public static final String SLOW_OP_BUFFER_SIZE = "hcfs.fuse.slow.op.buffer.size";
+  public static final int SLOW_OP_BUFFER_SIZE_DEFAULT = 512;
+  // the virtual control directory at the mount root, hides a real one of the same name
+  public static final String CONTROL_ENABLED = "hcfs.fuse.control.enabled";
+  // sampled access pattern profiles of open handles
+  public static final String PROFILE_ENABLED = "hcfs.fuse.profile.enabled";
+  public static final String PROFILE_SAMPLE_RATE = "hcfs.fuse.profile.sample.rate";
+  public static final double PROFILE_SAMPLE_RATE_DEFAULT = 0.01;
+  // binary trace of every fuse callback, recorded when the file is set
+  public static final String TRACE_FILE = "hcfs.fuse.trace.file";
+  public static final String TRACE_QUEUE_SIZE = "hcfs.fuse.trace.queue.size";
+  public static final int TRACE_QUEUE_SIZE_DEFAULT = 65536;
+
+  // create records new files locally and creates them on the backend at the first write or
+  // at release, files removed or renamed over before that never reach the backend
+  public static final String CREATE_LAZY_ENABLED = "hcfs.fuse.create.lazy.enabled";
+  // the rmtree control command renames a directory into a hidden trash directory under the
+  // mount root and deletes it in the background, only for stores where renaming a directory
+  // is cheap
+  public static final String TRASH_ENABLED = "hcfs.fuse.trash.enabled";
+  public static final String TRASH_DIR = "hcfs.fuse.trash.dir";
+  public static final String TRASH_DIR_DEFAULT = ".hcfsfuse-trash";
+  // max number of paths deleted from the trash in parallel
+  public static final String TRASH_DELETE_THREADS = "hcfs.fuse.trash.delete.threads";
+  public static final int TRASH_DELETE_THREADS_DEFAULT = 4;
+  // extended attributes mapped onto the backend xattrs, disabling them answers every xattr
+  // callback with ENOTSUP without asking the backend
+  public static final String XATTR_ENABLED = "hcfs.fuse.xattr.enabled";
+  // per path cache of the xattrs of a file, including files that have none
+  public static final String XATTR_CACHE_SIZE = "hcfs.fuse.xattr.cache.size";
+  public static final long XATTR_CACHE_SIZE_DEFAULT = 10000;
+  public static final String XATTR_CACHE_TTL_MS = "hcfs.fuse.xattr.cache.ttl.ms";
+  public static final long XATTR_CACHE_TTL_MS_DEFAULT = 60000;
+
+  // files below a size are read whole at open into a pooled buffer and served from memory
+  public static final String SMALL_FILE_ENABLED = "hcfs.fuse.small.file.enabled";
+  public static final String SMALL_FILE_MAX_SIZE = "hcfs.fuse.small.file.max.size";
+  public static final long SMALL_FILE_MAX_SIZE_DEFAULT = 1024 * 1024;
+  // max memory of the buffers of small files open at the same time
+  public static final String SMALL_FILE_MEMORY = "hcfs.fuse.small.file.memory";
+  public static final long SMALL_FILE_MEMORY_DEFAULT = 256L * 1024 * 1024;
+  // how long the size of a file seen by getattr or readdir is kept to decide at open
+  public static final String SMALL_FILE_STATUS_TTL_MS = "hcfs.fuse.small.file.status.ttl.ms";
+  public static final long SMALL_FILE_STATUS_TTL_MS_DEFAULT = 60000;
+  // a directory read file by file in listing order gets its next small files read ahead
+  // into memory in parallel, needs the small file mode
+  public static final String SIBLING_PREFETCH_ENABLED = "hcfs.fuse.sibling.prefetch.enabled";
+  // number of files read ahead of the last opened one
+  public static final String SIBLING_PREFETCH_DEPTH = "hcfs.fuse.sibling.prefetch.depth";
+  public static final int SIBLING_PREFETCH_DEPTH_DEFAULT = 8;
+  public static final String SIBLING_PREFETCH_THREADS = "hcfs.fuse.sibling.prefetch.threads";
+  public static final int SIBLING_PREFETCH_THREADS_DEFAULT = 8;
+  // max memory of the files read ahead and not opened yet, taken from the small file buffers,
+  // each file counts as a whole buffer of hcfs.fuse.small.file.max.size
+  public static final String SIBLING_PREFETCH_MEMORY = "hcfs.fuse.sibling.prefetch.memory";
+  public static final long SIBLING_PREFETCH_MEMORY_DEFAULT = 128L * 1024 * 1024;
+  // how long a file read ahead is kept if it is not opened
+  public static final String SIBLING_PREFETCH_TTL_MS = "hcfs.fuse.sibling.prefetch.ttl.ms";
+  public static final long SIBLING_PREFETCH_TTL_MS_DEFAULT = 30000;
+
+  // local cache of file blocks on a local disk such as an SSD, LRU evicted except for the
+  // pinned paths
+  public static final String CACHE_ENABLED = "hcfs.fuse.cache.enabled";
+  public static final String CACHE_DIR = "hcfs.fuse.cache.dir";
+  public static final String CACHE_DIR_DEFAULT = "/tmp/hcfsfuse/cache";
+  public static final String CACHE_CAPACITY = "hcfs.fuse.cache.capacity";
+  public static final long CACHE_CAPACITY_DEFAULT = 10L * 1024 * 1024 * 1024;
+  public static final String CACHE_BLOCK_SIZE = "hcfs.fuse.cache.block.size";
+  public static final long CACHE_BLOCK_SIZE_DEFAULT = 4 * 1024 * 1024;
+  // comma separated fuse paths or globs pinned and preloaded into the cache at startup
+  public static final String CACHE_PINS = "hcfs.fuse.cache.pins";
+  // number of blocks preloaded in parallel
+  public static final String CACHE_PRELOAD_THREADS = "hcfs.fuse.cache.preload.threads";
+  public static final int CACHE_PRELOAD_THREADS_DEFAULT = 16;
+  // how long closing preload_wait waits for the preloads before failing with EAGAIN
+  public static final String CACHE_PRELOAD_WAIT_TIMEOUT_MS =
+      "hcfs.fuse.cache.preload.wait.timeout.ms";
+  public static final long CACHE_PRELOAD_WAIT_TIMEOUT_MS_DEFAULT = 60000;
+  // the block index of the cache is journaled and compacted into a snapshot at this interval
+  public static final String CACHE_INDEX_SNAPSHOT_INTERVAL_MS =
+      "hcfs.fuse.cache.index.snapshot.interval.ms";
+  public static final long CACHE_INDEX_SNAPSHOT_INTERVAL_MS_DEFAULT = 600000;
+
+  // hedged reads, a duplicate positional read is sent when the first one is slow
+  public static final String READ_HEDGE_ENABLED = "hcfs.fuse.read.hedge.enabled";
+  // percentile of recent read latency after which a hedge read is issued
+  public static final String READ_HEDGE_PERCENTILE = "hcfs.fuse.read.hedge.percentile";
+  public static final double READ_HEDGE_PERCENTILE_DEFAULT = 95.0;
+  // lower bound of the hedge delay, avoids hedging reads that are fast anyway
+  public static final String READ_HEDGE_MIN_DELAY_MS = "hcfs.fuse.read.hedge.min.delay.ms";
+  public static final long READ_HEDGE_MIN_DELAY_MS_DEFAULT = 20;
+  // max percentage of reads that may be hedged
+  public static final String READ_HEDGE_BUDGET_PERCENT = "hcfs.fuse.read.hedge.budget.percent";
+  public static final double READ_HEDGE_BUDGET_PERCENT_DEFAULT = 5.0;
+  public static final String READ_HEDGE_THREADS = "hcfs.fuse.read.hedge.threads";
+  public static final int READ_HEDGE_THREADS_DEFAULT = 64;
+
+  // large sequential reads split into ranges fetched over several backend streams in parallel
+  public static final String READ_PARALLEL_ENABLED = "hcfs.fuse.read.parallel.enabled";
+  // number of backend streams, and ranges fetched ahead, per handle
+  public static final String READ_PARALLEL_STREAMS = "hcfs.fuse.read.parallel.streams";
+  public static final int READ_PARALLEL_STREAMS_DEFAULT = 8;
+  public static final String READ_PARALLEL_RANGE_SIZE = "hcfs.fuse.read.parallel.range.size";
+  public static final long READ_PARALLEL_RANGE_SIZE_DEFAULT = 8 * 1024 * 1024;
+  // max memory of the ranges fetched ahead by all handles
+  public static final String READ_PARALLEL_MEMORY = "hcfs.fuse.read.parallel.memory";
+  public static final long READ_PARALLEL_MEMORY_DEFAULT = 1024 * 1024 * 1024;
+  public static final String READ_PARALLEL_THREADS = "hcfs.fuse.read.parallel.threads";
+  public static final int READ_PARALLEL_THREADS_DEFAULT = 64;
+
+  // large files written as parts uploaded in parallel and concatenated at close, on backends
+  // that can concat files
+  public static final String WRITE_STRIPED_ENABLED = "hcfs.fuse.write.striped.enabled";
+  // a multiple of the backend block size, files no larger than one part are not striped
+  public static final String WRITE_STRIPED_PART_SIZE = "hcfs.fuse.write.striped.part.size";
+  public static final long WRITE_STRIPED_PART_SIZE_DEFAULT = 128 * 1024 * 1024;
+  // number of parts uploaded in parallel per file
+  public static final String WRITE_STRIPED_STREAMS = "hcfs.fuse.write.striped.streams";
+  public static final int WRITE_STRIPED_STREAMS_DEFAULT = 4;
+  // max memory of the parts buffered by all files
+  public static final String WRITE_STRIPED_MEMORY = "hcfs.fuse.write.striped.memory";
+  public static final long WRITE_STRIPED_MEMORY_DEFAULT = 1024 * 1024 * 1024;
+  public static final String WRITE_STRIPED_THREADS = "hcfs.fuse.write.striped.threads";
+  public static final int WRITE_STRIPED_THREADS_DEFAULT = 16;
+
+  // separate backend executors for metadata, small reads and bulk streaming
+  public static final String EXECUTOR_ENABLED = "hcfs.fuse.executor.enabled";
+  public static final String EXECUTOR_METADATA_THREADS = "hcfs.fuse.executor.metadata.threads";
+  public static final int EXECUTOR_METADATA_THREADS_DEFAULT = 32;
+  public static final String EXECUTOR_SMALL_READ_THREADS =
+      "hcfs.fuse.executor.small.read.threads";
+  public static final int EXECUTOR_SMALL_READ_THREADS_DEFAULT = 32;
+  public static final String EXECUTOR_BULK_THREADS = "hcfs.fuse.executor.bulk.threads";
+  public static final int EXECUTOR_BULK_THREADS_DEFAULT = 8;
+  // max number of queued tasks per executor, callbacks fail with EAGAIN beyond that
+  public static final String EXECUTOR_QUEUE_SIZE = "hcfs.fuse.executor.queue.size";
+  public static final int EXECUTOR_QUEUE_SIZE_DEFAULT = 1024;
+  // how long a fuse thread waits for its task before failing with EIO, the task still runs
+  public static final String EXECUTOR_CALL_TIMEOUT_MS = "hcfs.fuse.executor.call.timeout.ms";
+  public static final long EXECUTOR_CALL_TIMEOUT_MS_DEFAULT = 120000;
+  // how long a bulk task may be held back while metadata operations are pending
+  public static final String EXECUTOR_BULK_MAX_DEFER_MS = "hcfs.fuse.executor.bulk.max.defer.ms";
+  public static final long EXECUTOR_BULK_MAX_DEFER_MS_DEFAULT = 100;
+  // number of consecutive sequential reads after which a handle is treated as streaming
+  public static final String EXECUTOR_STREAMING_READS = "hcfs.fuse.executor.streaming.reads";
+  public static final int EXECUTOR_STREAMING_READS_DEFAULT = 8;
+
+  // per user throttling keyed by the uid of the calling process
+  public static final String THROTTLE_ENABLED = "hcfs.fuse.throttle.enabled";
+  // default limits of every user, 0 means unlimited
+  public static final String THROTTLE_BANDWIDTH = "hcfs.fuse.throttle.bandwidth.bytes.per.sec";
+  public static final String THROTTLE_IOPS = "hcfs.fuse.throttle.iops";
+  // per user limits, hcfs.fuse.throttle.user.<uid>.bandwidth.bytes.per.sec and
+  // hcfs.fuse.throttle.user.<uid>.iops override the defaults
+  public static final String THROTTLE_USER_PREFIX = "hcfs.fuse.throttle.user.";
+  // comma separated fuse path prefixes, each user gets separate buckets per prefix
+  public static final String THROTTLE_PATH_PREFIXES = "hcfs.fuse.throttle.path.prefixes";
+
+  // latency and fault injection of slow+<scheme>:// roots, e.g. slow+file:///tmp
+  // latency distribution of every backend operation in milliseconds: a constant such as 5,
+  // uniform(2,10), exponential(5) with the mean or lognormal(5,0.5) with the median and sigma
+  public static final String INJECT_LATENCY = "hcfs.fuse.inject.latency";
+  // probability of failing an operation with a throttling error
+  public static final String INJECT_ERROR_RATE = "hcfs.fuse.inject.error.rate";
+  // hcfs.fuse.inject.latency.<op> and hcfs.fuse.inject.error.rate.<op> override the defaults
+  // for open, create, append, getattr, list, mkdirs, delete, rename, setattr, read, write,
+  // flush and close
+  // probability of stalling an operation, and for how long
+  public static final String INJECT_STALL_RATE = "hcfs.fuse.inject.stall.rate";
+  public static final String INJECT_STALL_MS = "hcfs.fuse.inject.stall.ms";
+  public static final long INJECT_STALL_MS_DEFAULT = 60000;
+  // bandwidth caps shared by all the clients, 0 means unlimited
+  public static final String INJECT_READ_BANDWIDTH =
+      "hcfs.fuse.inject.read.bandwidth.bytes.per.sec";
+  public static final String INJECT_WRITE_BANDWIDTH =
+      "hcfs.fuse.inject.write.bandwidth.bytes.per.sec";
 }
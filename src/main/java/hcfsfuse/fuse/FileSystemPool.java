@@ -0,0 +1,223 @@
+package hcfsfuse.fuse;
+
+import static hcfsfuse.fuse.Constants.FS_POOL_SIZE;
+import static hcfsfuse.fuse.Constants.FS_POOL_SIZE_DEFAULT;
+import static hcfsfuse.fuse.Constants.STARTUP_WAIT_MS;
+import static hcfsfuse.fuse.Constants.STARTUP_WAIT_MS_DEFAULT;
+
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of independent backend {@link FileSystem} clients.
+ * <p>
+ * HDFS and Ozone clients serialize a lot of work on client-wide locks and a single RPC
+ * connection, so spreading callbacks over several clients lets throughput scale with the
+ * number of fuse threads.
+ */
+@ThreadSafe
+public final class FileSystemPool implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(FileSystemPool.class);
+
+  /** The clients, null until they are created. */
+  private volatile FileSystem[] mFileSystems;
+  private final CompletableFuture<FileSystem[]> mReady;
+  private final long mWaitMs;
+  private final AtomicInteger mNext = new AtomicInteger(0);
+
+  /**
+   * @param fileSystems the clients of the pool, the first one is the primary client
+   */
+  public FileSystemPool(FileSystem... fileSystems) {
+    Preconditions.checkArgument(fileSystems.length > 0, "Empty file system pool");
+    mFileSystems = fileSystems;
+    mReady = CompletableFuture.completedFuture(fileSystems);
+    mWaitMs = 0;
+  }
+
+  private FileSystemPool(CompletableFuture<FileSystemPool> pool, long waitMs) {
+    mReady = pool.thenApply(created -> {
+      mFileSystems = created.mFileSystems;
+      return created.mFileSystems;
+    });
+    mWaitMs = waitMs;
+  }
+
+  /**
+   * Creates a pool whose clients are created on a background thread, so that mounting does
+   * not wait for the backend. Until they are created, getting a client blocks for at most
+   * {@link Constants#STARTUP_WAIT_MS} and fails after that.
+   *
+   * @param factory creates the clients
+   * @param conf configuration
+   * @return the pool
+   */
+  public static FileSystemPool createAsync(Callable<FileSystemPool> factory,
+      Configuration conf) {
+    CompletableFuture<FileSystemPool> pool = new CompletableFuture<>();
+    Thread thread = new Thread(() -> {
+      try {
+        pool.complete(factory.call());
+      } catch (Throwable t) {
+        LOG.error("Failed to create the backend file system clients", t);
+        pool.completeExceptionally(t);
+      }
+    }, "backend-init");
+    thread.setDaemon(true);
+    thread.start();
+    return new FileSystemPool(pool, conf.getLong(STARTUP_WAIT_MS, STARTUP_WAIT_MS_DEFAULT));
+  }
+
+  /**
+   * Waits for at most {@link Constants#STARTUP_WAIT_MS} for the clients to be created.
+   *
+   * @return whether the clients are ready, false if waiting timed out
+   * @throws IOException if the clients could not be created
+   */
+  public boolean awaitReady() throws IOException {
+    if (mFileSystems != null) {
+      return true;
+    }
+    try {
+      mReady.get(mWaitMs, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the backend clients");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to create the backend clients", e.getCause());
+    }
+  }
+
+  /**
+   * @return whether the clients are ready
+   */
+  public boolean isReady() {
+    return mFileSystems != null;
+  }
+
+  /**
+   * @return a future completed once the clients are ready
+   */
+  public CompletableFuture<?> whenReady() {
+    return mReady;
+  }
+
+  private FileSystem[] clients() {
+    FileSystem[] fileSystems = mFileSystems;
+    if (fileSystems != null) {
+      return fileSystems;
+    }
+    try {
+      if (!awaitReady()) {
+        throw new IllegalStateException(String.format(
+            "Backend clients are not ready after %dms", mWaitMs));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return mFileSystems;
+  }
+
+  /**
+   * Creates a pool of {@link Constants#FS_POOL_SIZE} clients for the given root. The given
+   * client is the primary one, the others are created by {@link FileSystem#newInstance} so
+   * that they do not share the cached client.
+   *
+   * @param primary the primary client
+   * @param root the target root
+   * @param conf configuration
+   * @return the pool
+   */
+  public static FileSystemPool create(FileSystem primary, Path root, Configuration conf)
+      throws IOException {
+    int size = Math.max(1, conf.getInt(FS_POOL_SIZE, FS_POOL_SIZE_DEFAULT));
+    FileSystem[] fileSystems = new FileSystem[size];
+    fileSystems[0] = primary;
+    for (int i = 1; i < size; i++) {
+      fileSystems[i] = FileSystem.newInstance(root.toUri(), conf);
+    }
+    LOG.info("Created {} backend file system client(s) for {}", size, root);
+    return new FileSystemPool(fileSystems);
+  }
+
+  /**
+   * @return the primary client
+   */
+  public FileSystem get() {
+    return clients()[0];
+  }
+
+  /**
+   * @return the next client in round robin order
+   */
+  public FileSystem next() {
+    FileSystem[] fileSystems = clients();
+    if (fileSystems.length == 1) {
+      return fileSystems[0];
+    }
+    return fileSystems[Math.floorMod(mNext.getAndIncrement(), fileSystems.length)];
+  }
+
+  /**
+   * @return the number of clients
+   */
+  public int size() {
+    return clients().length;
+  }
+
+  /**
+   * @return all clients, the primary client first
+   */
+  public List<FileSystem> getAll() {
+    return Collections.unmodifiableList(Arrays.asList(clients()));
+  }
+
+  @Override
+  public void close() throws IOException {
+    FileSystem[] fileSystems = mFileSystems;
+    if (fileSystems == null) {
+      // still being created, close them once they are
+      mReady.thenAccept(created -> {
+        try {
+          close();
+        } catch (IOException e) {
+          LOG.warn("Failed to close the backend clients", e);
+        }
+      });
+      return;
+    }
+    IOException error = null;
+    for (FileSystem fs : fileSystems) {
+      try {
+        fs.close();
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+}
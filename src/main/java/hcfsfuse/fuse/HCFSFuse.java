@@ -1,5 +1,18 @@
 package hcfsfuse.fuse;
 
+import static hcfsfuse.fuse.Constants.CACHE_DIR;
+import static hcfsfuse.fuse.Constants.CACHE_DIR_DEFAULT;
+import static hcfsfuse.fuse.Constants.METRICS_CSV_DIR;
+import static hcfsfuse.fuse.Constants.METRICS_GRAPHITE_PREFIX;
+import static hcfsfuse.fuse.Constants.METRICS_JMX_DOMAIN;
+import static hcfsfuse.fuse.Constants.STARTUP_LAZY_BACKEND;
+import static hcfsfuse.fuse.Constants.TRACE_FILE;
+
+import hcfsfuse.fuse.auth.IdentityCache;
+import hcfsfuse.fuse.cache.LocalBlockCache;
+import hcfsfuse.fuse.inject.FaultInjectingFileSystem;
+import hcfsfuse.fuse.inject.FaultInjector;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -14,10 +27,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.serce.jnrfuse.FuseException;
 
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Main entry point to HCFS-FUSE.
@@ -36,49 +60,311 @@ public class HCFSFuse {
    * @param args arguments to run the command line
    */
   public static void main(String[] args) throws IOException {
-    FuseOptions opts = parseOptions(args);
-    if (opts == null) {
+    long start = System.currentTimeMillis();
+    Map<String, FuseOptions> mounts = parseOptions(args);
+    if (mounts == null) {
       System.exit(1);
     }
     Configuration conf = new Configuration();
-    for (String confPath : opts.getConfPaths()) {
+    for (String confPath : mounts.values().iterator().next().getConfPaths()) {
       conf.addResource(new Path(confPath));
     }
-    final FileSystem tfs = new Path(opts.getRoot()).getFileSystem(conf);
+    // resources are loaded on first access
+    StartupMonitor monitor = new StartupMonitor(conf, mounts.size());
+    monitor.phase("conf", start);
+    long identityStart = System.currentTimeMillis();
+    CompletableFuture.runAsync(() -> {
+      IdentityCache.defaultUid();
+      IdentityCache.defaultGid();
+      monitor.phase("identity", identityStart);
+    });
+    Backends backends = new Backends(conf, monitor, mounts.size() > 1);
+    if (mounts.size() == 1) {
+      Map.Entry<String, FuseOptions> mount = mounts.entrySet().iterator().next();
+      try {
+        mount(mount.getKey(), mount.getValue(), conf, backends, monitor, true);
+      } finally {
+        backends.close();
+      }
+      return;
+    }
+    // every mount gets its own fuse session, the main thread only keeps the process alive
+    int mounted = 0;
+    for (Map.Entry<String, FuseOptions> entry : mounts.entrySet()) {
+      if (mount(entry.getKey(), entry.getValue(), withMountName(conf, entry.getKey()), backends,
+          monitor, false)) {
+        mounted++;
+      }
+    }
+    if (mounted == 0) {
+      backends.close();
+      System.exit(1);
+    }
+    // the fuse sessions are unmounted by shutdown hooks as well, closing stops their tasks
+    // in case it runs first
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        backends.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close the backend clients: {}", e.toString());
+      }
+    }));
+    LOG.info("Serving {} of {} mounts", mounted, mounts.size());
+    try {
+      new CountDownLatch(1).await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Mounts one root.
+   *
+   * @param name the name of the mount
+   * @param opts the options of the mount
+   * @param conf configuration of the mount
+   * @param backends the backend clients shared by the mounts
+   * @param monitor times the startup and signals readiness
+   * @param blocking whether to serve the mount on the calling thread
+   * @return whether the mount succeeded
+   */
+  private static boolean mount(String name, FuseOptions opts, Configuration conf,
+      Backends backends, StartupMonitor monitor, boolean blocking) throws IOException {
+    long start = System.currentTimeMillis();
+    Path root = new Path(opts.getRoot());
+    FileSystemPool pool = backends.get(root, opts.isJniFuseEnable());
+    LocalBlockCache cache = opts.isJniFuseEnable() ? backends.getCache(root, pool) : null;
+    if (FaultInjectingFileSystem.isFaultInjecting(root)) {
+      opts = new FuseOptions(opts.getMountPoint(),
+          FaultInjectingFileSystem.unwrap(root).toString(), opts.isDebug(),
+          opts.getFuseOpts(), opts.getConfPaths(), opts.isJniFuseEnable());
+    }
     final List<String> fuseOpts = opts.getFuseOpts();
     if (opts.isJniFuseEnable()) {
-      final HCFSJniFuseFileSystem fuseFs = new HCFSJniFuseFileSystem(tfs, opts, conf);
+      final HCFSJniFuseFileSystem fuseFs =
+          new HCFSJniFuseFileSystem(pool, opts, conf, backends.getIdentities(), cache);
+      monitor.phase("init." + name, start);
+      backends.onClose(fuseFs::shutdown);
+      monitor.register(fuseFs.getMetrics().getRegistry());
+      fuseFs.getMetrics().startReporters(conf);
+      monitor.watch(name, opts.getMountPoint(), pool, start);
       try {
         LOG.info("Mounting HCFSJniFuseFileSystem: mount point=\"{}\", OPTIONS=\"{}\"",
             opts.getMountPoint(), fuseOpts.toArray(new String[0]));
-        fuseFs.mount(true, opts.isDebug(), fuseOpts.toArray(new String[0]));
+        fuseFs.mount(blocking, opts.isDebug(), fuseOpts.toArray(new String[0]));
+        return true;
       } catch (FuseException e) {
         LOG.error("Failed to mount {}", opts.getMountPoint(), e);
+        monitor.failed(name);
         // only try to umount file system when exception occurred.
         // jni-fuse registers JVM shutdown hook to ensure fs.umount()
         // will be executed when this process is exiting.
         fuseFs.umount();
+        return false;
       }
     } else {
       fuseOpts.add("-odirect_io");
       LOG.info("mounting to {}", opts.getMountPoint());
-      HCFSFuseFileSystem fs = new HCFSFuseFileSystem(tfs, opts, conf);
+      HCFSFuseFileSystem fs = new HCFSFuseFileSystem(pool.get(), opts, conf);
+      monitor.phase("init." + name, start);
+      backends.onClose(fs::shutdown);
+      monitor.register(fs.getMetrics().getRegistry());
+      fs.getMetrics().startReporters(conf);
+      monitor.watch(name, opts.getMountPoint(), pool, start);
       try {
-        fs.mount(Paths.get(opts.getMountPoint()), true, opts.isDebug(),
+        fs.mount(Paths.get(opts.getMountPoint()), blocking, opts.isDebug(),
             fuseOpts.toArray(new String[0]));
+        return true;
       } catch (FuseException e) {
         LOG.error("Failed to mount {}", opts.getMountPoint(), e);
+        monitor.failed(name);
         // only try to umount file system when exception occurred.
         // jnr-fuse registers JVM shutdown hook to ensure fs.umount()
         // will be executed when this process is exiting.
         fs.umount();
-      } finally {
-        tfs.close();
+        return false;
       }
     }
   }
 
-  private static FuseOptions parseOptions(String[] args) {
+  /**
+   * Suffixes the metrics and trace destinations with the name of a mount, so that the
+   * mounts of one process do not overwrite each other's.
+   *
+   * @param conf the shared configuration
+   * @param name the name of the mount
+   * @return configuration of the mount
+   */
+  private static Configuration withMountName(Configuration conf, String name) {
+    Configuration mountConf = new Configuration(conf);
+    mountConf.set(METRICS_JMX_DOMAIN, conf.get(METRICS_JMX_DOMAIN, "hcfsfuse") + "." + name);
+    mountConf.set(METRICS_GRAPHITE_PREFIX,
+        conf.get(METRICS_GRAPHITE_PREFIX, "hcfsfuse") + "." + name);
+    String csvDir = conf.get(METRICS_CSV_DIR);
+    if (csvDir != null) {
+      mountConf.set(METRICS_CSV_DIR, new File(csvDir, name).getPath());
+    }
+    String traceFile = conf.get(TRACE_FILE);
+    if (traceFile != null) {
+      mountConf.set(TRACE_FILE, traceFile + "." + name);
+    }
+    return mountConf;
+  }
+
+  private static FileSystem wrap(FileSystem fs, FaultInjector injector) {
+    return injector == null ? fs : new FaultInjectingFileSystem(fs, injector);
+  }
+
+  /**
+   * Backend clients and identity caches shared by the mounts of the process. Mounts of
+   * roots on the same store share one pool of clients, so that connections, credentials
+   * and the client side caches of the store are set up once, and one local cache. Unless
+   * {@link Constants#STARTUP_LAZY_BACKEND} is off, jni fuse clients are created in the
+   * background while the mount comes up. Closing stops the background tasks of the mounts
+   * before the caches and clients they use.
+   */
+  private static final class Backends implements Closeable {
+    private final Configuration mConf;
+    private final StartupMonitor mMonitor;
+    private final IdentityCache mIdentities;
+    private final Map<String, FileSystemPool> mPools = new HashMap<>();
+    /** The local cache of each store, null values if they are disabled. */
+    private final Map<String, LocalBlockCache> mCaches = new HashMap<>();
+    /** Whether the local cache of each store is in its own subdirectory of the cache dir. */
+    private final boolean mCacheDirPerStore;
+    /** Stop the background tasks of the mounts. */
+    private final List<Runnable> mShutdowns = new ArrayList<>();
+    /** Shared by all the slow+ roots, created on first use. */
+    private FaultInjector mInjector;
+
+    Backends(Configuration conf, StartupMonitor monitor, boolean cacheDirPerStore) {
+      mConf = conf;
+      mMonitor = monitor;
+      mCacheDirPerStore = cacheDirPerStore;
+      mIdentities = new IdentityCache(conf);
+    }
+
+    /**
+     * @param root the root of a mount, may have a slow+ scheme
+     * @param pooled whether to create {@link Constants#FS_POOL_SIZE} clients
+     * @return the clients of the store of the root
+     */
+    FileSystemPool get(Path root, boolean pooled) throws IOException {
+      String key = storeKey(root);
+      FileSystemPool pool = mPools.get(key);
+      if (pool != null) {
+        return pool;
+      }
+      FaultInjector injector = null;
+      if (FaultInjectingFileSystem.isFaultInjecting(root)) {
+        root = FaultInjectingFileSystem.unwrap(root);
+        if (mInjector == null) {
+          mInjector = new FaultInjector(mConf);
+        }
+        injector = mInjector;
+      }
+      long start = System.currentTimeMillis();
+      String phase = "backend." + storeName(key);
+      if (pooled && mConf.getBoolean(STARTUP_LAZY_BACKEND, true)) {
+        Path backendRoot = root;
+        FaultInjector backendInjector = injector;
+        pool = FileSystemPool.createAsync(() -> {
+          FileSystemPool created = create(backendRoot, backendInjector, true);
+          mMonitor.phase(phase, start);
+          return created;
+        }, mConf);
+      } else {
+        pool = create(root, injector, pooled);
+        mMonitor.phase(phase, start);
+      }
+      mPools.put(key, pool);
+      return pool;
+    }
+
+    /**
+     * @param root the root of a mount, may have a slow+ scheme
+     * @param pool the clients of the store of the root
+     * @return the local cache of the store of the root, null if it is disabled
+     */
+    @Nullable
+    LocalBlockCache getCache(Path root, FileSystemPool pool) {
+      String key = storeKey(root);
+      if (!mCaches.containsKey(key)) {
+        Configuration conf = mConf;
+        if (mCacheDirPerStore) {
+          conf = new Configuration(mConf);
+          conf.set(CACHE_DIR,
+              new File(mConf.get(CACHE_DIR, CACHE_DIR_DEFAULT), storeName(key)).getPath());
+        }
+        mCaches.put(key, HCFSJniFuseFileSystem.createCache(pool, conf));
+      }
+      return mCaches.get(key);
+    }
+
+    private static String storeKey(Path root) {
+      URI uri = root.toUri();
+      return uri.getScheme() + "://" + uri.getAuthority();
+    }
+
+    private static String storeName(String key) {
+      return key.replaceAll("[^A-Za-z0-9_-]+", "_");
+    }
+
+    private FileSystemPool create(Path root, FaultInjector injector, boolean pooled)
+        throws IOException {
+      FileSystem tfs = wrap(root.getFileSystem(mConf), injector);
+      if (!pooled) {
+        return new FileSystemPool(tfs);
+      }
+      FileSystemPool pool = FileSystemPool.create(tfs, root, mConf);
+      if (injector == null) {
+        return pool;
+      }
+      FileSystem[] clients = new FileSystem[pool.size()];
+      for (int i = 0; i < clients.length; i++) {
+        clients[i] = i == 0 ? tfs : wrap(pool.getAll().get(i), injector);
+      }
+      return new FileSystemPool(clients);
+    }
+
+    IdentityCache getIdentities() {
+      return mIdentities;
+    }
+
+    /**
+     * @param shutdown stops the background tasks of a mount, run first on close
+     */
+    synchronized void onClose(Runnable shutdown) {
+      mShutdowns.add(shutdown);
+    }
+
+    @Override
+    public void close() throws IOException {
+      List<Runnable> shutdowns;
+      synchronized (this) {
+        shutdowns = new ArrayList<>(mShutdowns);
+      }
+      for (Runnable shutdown : shutdowns) {
+        shutdown.run();
+      }
+      for (LocalBlockCache cache : mCaches.values()) {
+        if (cache != null) {
+          cache.close();
+        }
+      }
+      for (FileSystemPool pool : mPools.values()) {
+        pool.close();
+      }
+    }
+  }
+
+  /**
+   * Parses the command line, mount points and roots are paired in the order they are given.
+   *
+   * @param args the command line
+   * @return the options of each mount keyed by the mount name, null on errors or help
+   */
+  private static Map<String, FuseOptions> parseOptions(String[] args) {
     final Options opts = new Options();
     final Option configOpt =
         Option.builder("c")
@@ -89,17 +375,24 @@ public class HCFSFuse {
             .build();
     final Option mntPoint = Option.builder("m")
         .hasArg()
-        .required(true)
+        .required(false)
         .longOpt("mount-point")
-        .desc("Desired local mount point for fuse.")
+        .desc("Desired local mount point for fuse, may be repeated.")
         .build();
 
     final Option root = Option.builder("r")
         .hasArg()
-        .required(true)
+        .required(false)
         .longOpt("target-root")
         .desc("Path within target root that will be used as the root of the FUSE mount "
-            + "(e.g., /users/foo; defaults to /)")
+            + "(e.g., /users/foo; defaults to /), one per mount point.")
+        .build();
+
+    final Option mountTable = Option.builder("mt")
+        .hasArg()
+        .required(false)
+        .longOpt("mount-table")
+        .desc("File with a \"<mount point> <target root> [name]\" line per mount.")
         .build();
 
     final Option help = Option.builder("h")
@@ -127,6 +420,7 @@ public class HCFSFuse {
     opts.addOption(configOpt);
     opts.addOption(mntPoint);
     opts.addOption(root);
+    opts.addOption(mountTable);
     opts.addOption(help);
     opts.addOption(fuseOption);
     opts.addOption(debugOption);
@@ -149,8 +443,22 @@ public class HCFSFuse {
         configFiles = new String[0];
       }
 
-      String mntPointValue = cli.getOptionValue("m");
-      String rootValue = cli.getOptionValue("r");
+      List<String[]> mountValues = new ArrayList<>();
+      String[] mntPointValues = cli.hasOption("m") ? cli.getOptionValues("m") : new String[0];
+      String[] rootValues = cli.hasOption("r") ? cli.getOptionValues("r") : new String[0];
+      if (mntPointValues.length != rootValues.length) {
+        throw new ParseException(String.format("Got %d mount points but %d target roots",
+            mntPointValues.length, rootValues.length));
+      }
+      for (int i = 0; i < mntPointValues.length; i++) {
+        mountValues.add(new String[] {mntPointValues[i], rootValues[i]});
+      }
+      if (cli.hasOption("mt")) {
+        mountValues.addAll(readMountTable(cli.getOptionValue("mt")));
+      }
+      if (mountValues.isEmpty()) {
+        throw new ParseException("Missing a mount point and target root");
+      }
 
       List<String> fuseOpts = new ArrayList<>();
       if (cli.hasOption("o")) {
@@ -169,8 +477,21 @@ public class HCFSFuse {
       if (cli.hasOption("jniFuse")) {
         jniFuseEnable = true;
       }
-      return new FuseOptions(mntPointValue, rootValue, fuseDebug,
-          fuseOpts, configFiles, jniFuseEnable);
+      Map<String, FuseOptions> mounts = new LinkedHashMap<>();
+      for (String[] values : mountValues) {
+        java.nio.file.Path fileName = Paths.get(values[0]).getFileName();
+        String name = values.length > 2 ? values[2]
+            : fileName == null ? "root" : fileName.toString();
+        name = name.replaceAll("[^A-Za-z0-9_-]", "_");
+        String unique = name;
+        for (int i = 2; mounts.containsKey(unique); i++) {
+          unique = name + "-" + i;
+        }
+        // every mount gets its own list, jnr mounts append to it
+        mounts.put(unique, new FuseOptions(values[0], values[1], fuseDebug,
+            new ArrayList<>(fuseOpts), configFiles, jniFuseEnable));
+      }
+      return mounts;
     } catch (ParseException e) {
       System.err.println("Error while parsing CLI: " + e.getMessage());
       final HelpFormatter fmt = new HelpFormatter();
@@ -183,4 +504,26 @@ public class HCFSFuse {
       return null;
     }
   }
+
+  /**
+   * Reads a mount table, blank lines and lines starting with # are skipped.
+   *
+   * @param file the mount table
+   * @return the mount point, target root and optional name of each mount
+   */
+  private static List<String[]> readMountTable(String file) throws IOException {
+    List<String[]> mounts = new ArrayList<>();
+    for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] values = line.split("\\s+");
+      if (values.length < 2 || values.length > 3) {
+        throw new IOException(String.format("Malformed line in mount table %s: %s", file, line));
+      }
+      mounts.add(values);
+    }
+    return mounts;
+  }
 }
@@ -2,11 +2,15 @@ package hcfsfuse.fuse;
 
 import static hcfsfuse.fuse.Constants.JNR_OPEN_FILE_CONCURRENT;
 
+import hcfsfuse.fuse.auth.IdentityCache;
+import hcfsfuse.fuse.metrics.FuseMetrics;
+
 import alluxio.collections.IndexDefinition;
 import alluxio.collections.IndexedSet;
 import alluxio.fuse.AlluxioFuseUtils;
 import alluxio.fuse.OpenFileEntry;
 
+import com.codahale.metrics.Gauge;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -39,6 +43,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.InvalidPathException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
 
 /**
  * Main FUSE implementation class.
@@ -61,8 +66,6 @@ public class HCFSFuseFileSystem extends FuseStubFS {
   @VisibleForTesting
   public static final long ID_NOT_SET_VALUE_UNSIGNED = 4294967295L;
 
-  private static final long UID = AlluxioFuseUtils.getUid(System.getProperty("user.name"));
-  private static final long GID = AlluxioFuseUtils.getGid(System.getProperty("user.name"));
   private final Path mRootPath;
   private final FileSystem mFileSystem;
   // Table of open files with corresponding InputStreams and OutputStreams
@@ -71,6 +74,8 @@ public class HCFSFuseFileSystem extends FuseStubFS {
   private final LoadingCache<String, Path> mPathResolverCache;
   private final Configuration mConfiguration;
   private final int openoncurrent;
+  private final FuseMetrics mMetrics = new FuseMetrics();
+  private final XAttrCache mXAttrs;
 
   // Open file managements
   private static final IndexDefinition<OpenFileEntry<FSDataInputStream, FSDataOutputStream>, Long>
@@ -108,10 +113,49 @@ public class HCFSFuseFileSystem extends FuseStubFS {
     mOpenFiles = new IndexedSet<>(ID_INDEX, PATH_INDEX);
     mConfiguration = conf;
     openoncurrent = mConfiguration.getInt(JNR_OPEN_FILE_CONCURRENT, MAX_OPEN_FILES);
+    mMetrics.getRegistry().register("handles.open", (Gauge<Integer>) mOpenFiles::size);
+    mXAttrs = new XAttrCache(() -> mFileSystem, conf, mMetrics.getRegistry());
+  }
+
+  /**
+   * @return the metrics of this file system
+   */
+  public FuseMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  @Override
+  public void umount() {
+    super.umount();
+    shutdown();
+  }
+
+  /**
+   * Stops the metrics reporters of the mount, on unmount or before the backend client is
+   * closed.
+   */
+  public void shutdown() {
+    try {
+      mMetrics.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close the metrics reporters: {}", e.toString());
+    }
+  }
+
+  /**
+   * Runs a callback and records its metrics, the whole callback is backend work here.
+   */
+  private int call(String op, IntSupplier task) {
+    FuseMetrics.Op metrics = mMetrics.op(op);
+    return metrics.time(() -> metrics.timeBackend(task));
   }
 
   @Override
   public int chown(String path, @uid_t long uid, @gid_t long gid) {
+    return call("chown", () -> chownInternal(path, uid, gid));
+  }
+
+  private int chownInternal(String path, @uid_t long uid, @gid_t long gid) {
 
     try {
       final Path turi = mPathResolverCache.getUnchecked(path);
@@ -161,6 +205,10 @@ public class HCFSFuseFileSystem extends FuseStubFS {
 
   @Override
   public int getattr(String path, FileStat stat) {
+    return call("getattr", () -> getattrInternal(path, stat));
+  }
+
+  private int getattrInternal(String path, FileStat stat) {
     int res = 0;
     final Path turi = mPathResolverCache.getUnchecked(path);
     try {
@@ -184,12 +232,12 @@ public class HCFSFuseFileSystem extends FuseStubFS {
       Long stUid = AlluxioFuseUtils.getUid(status.getOwner());
       Long stGid = AlluxioFuseUtils.getGidFromGroupName(status.getGroup());
       if (stUid == -1) {
-        stat.st_uid.set(UID);
+        stat.st_uid.set(IdentityCache.defaultUid());
       } else {
         stat.st_uid.set(stUid);
       }
       if (stGid == -1) {
-        stat.st_gid.set(GID);
+        stat.st_gid.set(IdentityCache.defaultGid());
       } else {
         stat.st_gid.set(stGid);
       }
@@ -215,6 +263,11 @@ public class HCFSFuseFileSystem extends FuseStubFS {
   @Override
   public int readdir(String path, Pointer buff, FuseFillDir filter,
       @off_t long offset, FuseFileInfo fi) {
+    return call("readdir", () -> readdirInternal(path, buff, filter, offset, fi));
+  }
+
+  private int readdirInternal(String path, Pointer buff, FuseFillDir filter,
+      @off_t long offset, FuseFileInfo fi) {
     final Path turi = mPathResolverCache.getUnchecked(path);
     LOG.trace("readdir({}) [target: {}]", path, turi);
 
@@ -247,6 +300,10 @@ public class HCFSFuseFileSystem extends FuseStubFS {
    */
   @Override
   public int mkdir(String path, @mode_t long mode) {
+    return call("mkdir", () -> mkdirInternal(path, mode));
+  }
+
+  private int mkdirInternal(String path, @mode_t long mode) {
     final Path turi = mPathResolverCache.getUnchecked(path);
     LOG.trace("mkdir({}) [target: {}]", path, turi);
     if (turi.getName().length() > MAX_NAME_LENGTH) {
@@ -296,6 +353,10 @@ public class HCFSFuseFileSystem extends FuseStubFS {
 
   @Override
   public int open(String path, FuseFileInfo fi) {
+    return call("open", () -> openInternal(path, fi));
+  }
+
+  private int openInternal(String path, FuseFileInfo fi) {
     final Path turi = mPathResolverCache.getUnchecked(path);
     // (see {@code man 2 open} for the structure of the flags bitfield)
     // File creation flags are the last two bits of flags
@@ -355,6 +416,11 @@ public class HCFSFuseFileSystem extends FuseStubFS {
   @Override
   public int read(String path, Pointer buf, @size_t long size, @off_t long offset,
       FuseFileInfo fi) {
+    return call("read", () -> readInternal(path, buf, size, offset, fi));
+  }
+
+  private int readInternal(String path, Pointer buf, @size_t long size, @off_t long offset,
+      FuseFileInfo fi) {
 
     if (size > Integer.MAX_VALUE) {
       LOG.error("Cannot read more than Integer.MAX_VALUE");
@@ -396,6 +462,7 @@ public class HCFSFuseFileSystem extends FuseStubFS {
         nread = 0;
       } else if (nread > 0) {
         buf.put(0, dest, 0, nread);
+        mMetrics.markBytesRead(nread);
       }
     } catch (Throwable t) {
       LOG.error("Failed to read file {}", path, t);
@@ -415,6 +482,10 @@ public class HCFSFuseFileSystem extends FuseStubFS {
    */
   @Override
   public int create(String path, @mode_t long mode, FuseFileInfo fi) {
+    return call("create", () -> createInternal(path, mode, fi));
+  }
+
+  private int createInternal(String path, @mode_t long mode, FuseFileInfo fi) {
     final Path uri = mPathResolverCache.getUnchecked(path);
     final int flags = fi.flags.get();
     LOG.trace("create({}, {}) [target: {}]", path, Integer.toHexString(flags), uri);
@@ -436,7 +507,7 @@ public class HCFSFuseFileSystem extends FuseStubFS {
 
       String gname = "";
       String uname = "";
-      if (gid != GID) {
+      if (gid != IdentityCache.defaultGid()) {
         String groupName = AlluxioFuseUtils.getGroupName(gid);
         if (groupName.isEmpty()) {
           // This should never be reached since input gid is always valid
@@ -445,7 +516,7 @@ public class HCFSFuseFileSystem extends FuseStubFS {
         }
         gname = groupName;
       }
-      if (uid != UID) {
+      if (uid != IdentityCache.defaultUid()) {
         String userName = AlluxioFuseUtils.getUserName(uid);
         if (userName.isEmpty()) {
           // This should never be reached since input uid is always valid
@@ -457,8 +528,9 @@ public class HCFSFuseFileSystem extends FuseStubFS {
       FSDataOutputStream os = mFileSystem.create(mFileSystem, uri, new FsPermission((int) mode));
       long fid = mNextOpenFileId.getAndIncrement();
       mOpenFiles.add(new OpenFileEntry(fid, path, null, os));
+      mXAttrs.created(uri);
       fi.fh.set(fid);
-      if (gid != GID || uid != UID) {
+      if (gid != IdentityCache.defaultGid() || uid != IdentityCache.defaultUid()) {
         LOG.debug("Set attributes of path {} to {}, {}", path, gid, uid);
         mFileSystem.setOwner(uri, uname, gname);
       }
@@ -488,6 +560,10 @@ public class HCFSFuseFileSystem extends FuseStubFS {
    */
   @Override
   public int flush(String path, FuseFileInfo fi) {
+    return call("flush", () -> flushInternal(path, fi));
+  }
+
+  private int flushInternal(String path, FuseFileInfo fi) {
     LOG.trace("flush({})", path);
     final long fd = fi.fh.get();
     OpenFileEntry oe = mOpenFiles.getFirstByField(ID_INDEX, fd);
@@ -519,6 +595,10 @@ public class HCFSFuseFileSystem extends FuseStubFS {
    */
   @Override
   public int release(String path, FuseFileInfo fi) {
+    return call("release", () -> releaseInternal(path, fi));
+  }
+
+  private int releaseInternal(String path, FuseFileInfo fi) {
     LOG.trace("release({})", path);
     OpenFileEntry oe;
     final long fd = fi.fh.get();
@@ -545,6 +625,10 @@ public class HCFSFuseFileSystem extends FuseStubFS {
    */
   @Override
   public int rename(String oldPath, String newPath) {
+    return call("rename", () -> renameInternal(oldPath, newPath));
+  }
+
+  private int renameInternal(String oldPath, String newPath) {
     final Path oldUri = mPathResolverCache.getUnchecked(oldPath);
     final Path newUri = mPathResolverCache.getUnchecked(newPath);
     final String name = newUri.getName();
@@ -557,6 +641,8 @@ public class HCFSFuseFileSystem extends FuseStubFS {
     }
     try {
       mFileSystem.rename(oldUri, newUri);
+      mXAttrs.invalidateUnder(oldUri);
+      mXAttrs.invalidateUnder(newUri);
       OpenFileEntry oe = mOpenFiles.getFirstByField(PATH_INDEX, oldPath);
       if (oe != null) {
         oe.setPath(newPath);
@@ -591,6 +677,11 @@ public class HCFSFuseFileSystem extends FuseStubFS {
   @Override
   public int write(String path, Pointer buf, @size_t long size, @off_t long offset,
       FuseFileInfo fi) {
+    return call("write", () -> writeInternal(path, buf, size, offset, fi));
+  }
+
+  private int writeInternal(String path, Pointer buf, @size_t long size, @off_t long offset,
+      FuseFileInfo fi) {
     if (size > Integer.MAX_VALUE) {
       LOG.error("Cannot write more than Integer.MAX_VALUE");
       return ErrorCodes.EIO();
@@ -620,6 +711,7 @@ public class HCFSFuseFileSystem extends FuseStubFS {
       buf.get(0, dest, 0, sz);
       oe.getOut().write(dest);
       oe.setWriteOffset(offset + size);
+      mMetrics.markBytesWritten(sz);
     } catch (IOException e) {
       LOG.error("IOException while writing to {}.", path, e);
       return -ErrorCodes.EIO();
@@ -637,7 +729,8 @@ public class HCFSFuseFileSystem extends FuseStubFS {
   @Override
   public int unlink(String path) {
     LOG.trace("unlink({})", path);
-    return rmInternal(path);
+    mXAttrs.invalidate(mPathResolverCache.getUnchecked(path));
+    return call("unlink", () -> rmInternal(path));
   }
 
   @Override
@@ -654,7 +747,8 @@ public class HCFSFuseFileSystem extends FuseStubFS {
   @Override
   public int rmdir(String path) {
     LOG.trace("rmdir({})", path);
-    return rmInternal(path);
+    mXAttrs.invalidateUnder(mPathResolverCache.getUnchecked(path));
+    return call("rmdir", () -> rmInternal(path));
   }
 
   /**
@@ -666,6 +760,10 @@ public class HCFSFuseFileSystem extends FuseStubFS {
    */
   @Override
   public int chmod(String path, @mode_t long mode) {
+    return call("chmod", () -> chmodInternal(path, mode));
+  }
+
+  private int chmodInternal(String path, @mode_t long mode) {
     final Path turi = mPathResolverCache.getUnchecked(path);
     try {
       mFileSystem.setPermission(turi, new FsPermission((int) mode));
@@ -705,21 +803,128 @@ public class HCFSFuseFileSystem extends FuseStubFS {
 
   @Override
   public int setxattr(String path, String name, Pointer value, @size_t long size, int flags) {
+    if (!mXAttrs.isEnabled()) {
+      return -ErrorCodes.ENOTSUP();
+    }
+    return call("setxattr", () -> setxattrInternal(path, name, value, size, flags));
+  }
+
+  private int setxattrInternal(String path, String name, Pointer value, @size_t long size,
+      int flags) {
+    final Path turi = mPathResolverCache.getUnchecked(path);
+    byte[] bytes = new byte[(int) size];
+    value.get(0, bytes, 0, bytes.length);
+    try {
+      if ((flags & (XAttrCache.XATTR_CREATE | XAttrCache.XATTR_REPLACE)) != 0) {
+        boolean exists = mXAttrs.get(turi, name) != null;
+        if (exists && (flags & XAttrCache.XATTR_CREATE) != 0) {
+          return -ErrorCodes.EEXIST();
+        }
+        if (!exists && (flags & XAttrCache.XATTR_REPLACE) != 0) {
+          return -ErrorCodes.ENODATA();
+        }
+      }
+      mXAttrs.set(turi, name, bytes, XAttrCache.toSetFlags(flags));
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      // the backend lacks xattrs or the namespace of the name
+      LOG.debug("Failed to set xattr {} of {}: {}", name, path, e.toString());
+      return -ErrorCodes.ENOTSUP();
+    } catch (Throwable t) {
+      LOG.error("Failed to set xattr {} of {}", name, path, t);
+      return AlluxioFuseUtils.getErrorCode(t);
+    }
     return 0;
   }
 
   @Override
   public int getxattr(String path, String name, Pointer value, @size_t long size) {
-    return 0;
+    if (!mXAttrs.isEnabled()) {
+      return -ErrorCodes.ENOTSUP();
+    }
+    return call("getxattr", () -> getxattrInternal(path, name, value, size));
+  }
+
+  private int getxattrInternal(String path, String name, Pointer value, @size_t long size) {
+    final Path turi = mPathResolverCache.getUnchecked(path);
+    try {
+      byte[] bytes = mXAttrs.get(turi, name);
+      if (bytes == null) {
+        return -ErrorCodes.ENODATA();
+      }
+      return copyXAttr(bytes, value, size);
+    } catch (UnsupportedOperationException e) {
+      return -ErrorCodes.ENOTSUP();
+    } catch (FileNotFoundException e) {
+      LOG.debug("Failed to get xattr {} of {}, path does not exist", name, path);
+      return -ErrorCodes.ENOENT();
+    } catch (Throwable t) {
+      LOG.error("Failed to get xattr {} of {}", name, path, t);
+      return AlluxioFuseUtils.getErrorCode(t);
+    }
   }
 
   @Override
   public int listxattr(String path, Pointer list, @size_t long size) {
-    return 0;
+    if (!mXAttrs.isEnabled()) {
+      return -ErrorCodes.ENOTSUP();
+    }
+    return call("listxattr", () -> listxattrInternal(path, list, size));
+  }
+
+  private int listxattrInternal(String path, Pointer list, @size_t long size) {
+    final Path turi = mPathResolverCache.getUnchecked(path);
+    try {
+      return copyXAttr(mXAttrs.getNames(turi), list, size);
+    } catch (UnsupportedOperationException e) {
+      return -ErrorCodes.ENOTSUP();
+    } catch (FileNotFoundException e) {
+      LOG.debug("Failed to list xattrs of {}, path does not exist", path);
+      return -ErrorCodes.ENOENT();
+    } catch (Throwable t) {
+      LOG.error("Failed to list xattrs of {}", path, t);
+      return AlluxioFuseUtils.getErrorCode(t);
+    }
+  }
+
+  /**
+   * Copies an xattr value or name list into a fuse buffer.
+   *
+   * @return the length of the bytes, only the length if the size is 0, or ERANGE if the
+   *         bytes do not fit
+   */
+  private static int copyXAttr(byte[] bytes, Pointer buf, long size) {
+    if (size == 0) {
+      return bytes.length;
+    }
+    if (size < bytes.length) {
+      return -ErrorCodes.ERANGE();
+    }
+    buf.put(0, bytes, 0, bytes.length);
+    return bytes.length;
   }
 
   @Override
   public int removexattr(String path, String name) {
+    if (!mXAttrs.isEnabled()) {
+      return -ErrorCodes.ENOTSUP();
+    }
+    return call("removexattr", () -> removexattrInternal(path, name));
+  }
+
+  private int removexattrInternal(String path, String name) {
+    final Path turi = mPathResolverCache.getUnchecked(path);
+    try {
+      if (mXAttrs.get(turi, name) == null) {
+        return -ErrorCodes.ENODATA();
+      }
+      mXAttrs.remove(turi, name);
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      LOG.debug("Failed to remove xattr {} of {}: {}", name, path, e.toString());
+      return -ErrorCodes.ENOTSUP();
+    } catch (Throwable t) {
+      LOG.error("Failed to remove xattr {} of {}", name, path, t);
+      return AlluxioFuseUtils.getErrorCode(t);
+    }
     return 0;
   }
 
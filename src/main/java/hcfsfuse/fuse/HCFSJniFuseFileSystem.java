@@ -1,10 +1,51 @@
 package hcfsfuse.fuse;
 
-import static hcfsfuse.fuse.Constants.AUTH_POLICY;
-import static hcfsfuse.fuse.Constants.AUTH_POLICY_CUSTOM;
+import static hcfsfuse.fuse.Constants.CACHE_DIR;
+import static hcfsfuse.fuse.Constants.CACHE_DIR_DEFAULT;
+import static hcfsfuse.fuse.Constants.CACHE_ENABLED;
+import static hcfsfuse.fuse.Constants.CACHE_PINS;
+import static hcfsfuse.fuse.Constants.CACHE_PRELOAD_WAIT_TIMEOUT_MS;
+import static hcfsfuse.fuse.Constants.CACHE_PRELOAD_WAIT_TIMEOUT_MS_DEFAULT;
+import static hcfsfuse.fuse.Constants.CONTROL_ENABLED;
+import static hcfsfuse.fuse.Constants.CREATE_LAZY_ENABLED;
+import static hcfsfuse.fuse.Constants.EXECUTOR_ENABLED;
+import static hcfsfuse.fuse.Constants.EXECUTOR_STREAMING_READS;
+import static hcfsfuse.fuse.Constants.EXECUTOR_STREAMING_READS_DEFAULT;
+import static hcfsfuse.fuse.Constants.PROFILE_ENABLED;
+import static hcfsfuse.fuse.Constants.IOSTATS_ENABLED;
+import static hcfsfuse.fuse.Constants.READ_HEDGE_ENABLED;
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_ENABLED;
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_ENABLED;
+import static hcfsfuse.fuse.Constants.SLOW_OP_ENABLED;
+import static hcfsfuse.fuse.Constants.SMALL_FILE_ENABLED;
+import static hcfsfuse.fuse.Constants.THROTTLE_ENABLED;
+import static hcfsfuse.fuse.Constants.TRACE_FILE;
+import static hcfsfuse.fuse.Constants.TRASH_ENABLED;
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_ENABLED;
 
 import hcfsfuse.fuse.auth.AuthPolicy;
 import hcfsfuse.fuse.auth.AuthPolicyFactory;
+import hcfsfuse.fuse.auth.IdentityCache;
+import hcfsfuse.fuse.cache.CachedFile;
+import hcfsfuse.fuse.cache.LocalBlockCache;
+import hcfsfuse.fuse.cache.Preload;
+import hcfsfuse.fuse.control.ControlNamespace;
+import hcfsfuse.fuse.io.BackendExecutors;
+import hcfsfuse.fuse.io.BackendExecutors.Kind;
+import hcfsfuse.fuse.io.HedgedReader;
+import hcfsfuse.fuse.io.ParallelReader;
+import hcfsfuse.fuse.io.SiblingPrefetcher;
+import hcfsfuse.fuse.io.SmallFilePrefetcher;
+import hcfsfuse.fuse.io.StripedWriter;
+import hcfsfuse.fuse.io.TrashDeleter;
+import hcfsfuse.fuse.metrics.AccessProfile;
+import hcfsfuse.fuse.metrics.AccessProfiler;
+import hcfsfuse.fuse.metrics.BackendIOStatistics;
+import hcfsfuse.fuse.metrics.FuseMetrics;
+import hcfsfuse.fuse.metrics.SlowOpTracer;
+import hcfsfuse.fuse.metrics.SlowOpTracer.Phase;
+import hcfsfuse.fuse.throttle.UserThrottler;
+import hcfsfuse.fuse.trace.OpTraceRecorder;
 
 import alluxio.fuse.AlluxioFuseUtils;
 import alluxio.jnifuse.AbstractFuseFileSystem;
@@ -14,7 +55,10 @@ import alluxio.jnifuse.struct.FuseFileInfo;
 import alluxio.jnifuse.FuseFillDir;
 import alluxio.resource.LockResource;
 
+import com.codahale.metrics.Gauge;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -31,15 +75,29 @@ import org.apache.hadoop.fs.permission.FsPermission;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.IntSupplier;
 
 /**
  * Main FUSE implementation class.
@@ -49,12 +107,13 @@ import java.util.concurrent.locks.ReadWriteLock;
 @ThreadSafe
 public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
   private static final Logger LOG = LoggerFactory.getLogger(HCFSJniFuseFileSystem.class);
-  private final FileSystem mFileSystem;
+  /** Backend clients, open handles stick to one client and other calls are spread. */
+  private final FileSystemPool mFileSystems;
   private final Configuration mConf;
   private final Path mRootPath;
   private final LoadingCache<String, Path> mPathResolverCache;
-  private final LoadingCache<String, Long> mUidCache;
-  private final LoadingCache<String, Long> mGidCache;
+  /** Translates owners to uids and gids, shared by the mounts of a process. */
+  private final IdentityCache mIdentities;
   private final AtomicLong mNextOpenFileId = new AtomicLong(0);
   private final String mFsName;
 
@@ -62,10 +121,50 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
   /** A readwrite lock pool to guard individual files based on striping. */
   private final Striped<ReadWriteLock> mFileLocks = Striped.readWriteLock(LOCK_SIZE);
 
-  private final Map<Long, FSDataInputStream> mOpenFileEntries = new ConcurrentHashMap<>();
-  private final Map<Long, FSDataOutputStream> mCreateFileEntries = new ConcurrentHashMap<>();
+  private final Map<Long, InputFileEntry> mOpenFileEntries = new ConcurrentHashMap<>();
+  private final Map<Long, OutputFileEntry> mCreateFileEntries = new ConcurrentHashMap<>();
+  /**
+   * Files open for writing keyed by fuse path, including lazily created files that are not
+   * created on the backend yet. getattr answers from them instead of the backend.
+   */
+  private final Map<String, OutputFileEntry> mWriters = new ConcurrentHashMap<>();
+  private final boolean mLazyCreate;
   private final boolean mIsUserGroupTranslation;
-  private final AuthPolicy mAuthPolicy;
+  /** Created on first use, the backend clients may still be starting up. */
+  private final Supplier<AuthPolicy> mAuthPolicy;
+  private final FuseMetrics mMetrics = new FuseMetrics();
+  /** Issues hedged positional reads, null if hedging is disabled. */
+  private final HedgedReader mHedgedReader;
+  /** Fetches sequential reads over parallel streams, null if disabled. */
+  private final ParallelReader mParallelReader;
+  private final StripedWriter mStripedWriter;
+  /** Runs backend work off the fuse threads, null if callbacks run the work inline. */
+  private final BackendExecutors mBackendExecutors;
+  private final int mStreamingReads;
+  private final long mPreloadWaitMs;
+  /** Throttles callbacks per calling user, null if throttling is disabled. */
+  private final UserThrottler mThrottler;
+  /** Collects statistics of the backend streams and clients, null if disabled. */
+  private final BackendIOStatistics mIOStatistics;
+  /** Traces slow callbacks, null if disabled. */
+  private final SlowOpTracer mSlowOps;
+  /** Serves the control directory at the mount root, null if disabled. */
+  private final ControlNamespace mControl;
+  /** Profiles the access pattern of sampled handles, null if disabled. */
+  private final AccessProfiler mProfiler;
+  /** Records every callback to a trace file, null if disabled. */
+  private final OpTraceRecorder mRecorder;
+  /** Deletes removed directories in the background, null if rmdir deletes inline. */
+  private final TrashDeleter mTrash;
+  /** Extended attributes of backend files. */
+  private final XAttrCache mXAttrs;
+  /** Reads small files whole at open, null if disabled. */
+  private final SmallFilePrefetcher mSmallFiles;
+  /** Reads ahead the next small files of directories read file by file, null if disabled. */
+  private final SiblingPrefetcher mSiblings;
+  /** Caches file blocks on a local disk, null if disabled. */
+  private final LocalBlockCache mCache;
+  private final AtomicBoolean mShutdown = new AtomicBoolean();
 
   // To make test build
   @VisibleForTesting
@@ -83,10 +182,6 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
   @VisibleForTesting
   public static final int MAX_NAME_LENGTH = 255;
 
-  private static final String USER_NAME = System.getProperty("user.name");
-  private static final String GROUP_NAME = System.getProperty("user.name");
-  private static final long DEFAULT_UID = AlluxioFuseUtils.getUid(USER_NAME);
-  private static final long DEFAULT_GID = AlluxioFuseUtils.getGid(GROUP_NAME);
 
   /**
    * Creates a new instance of {@link HCFSJniFuseFileSystem}.
@@ -97,12 +192,52 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
    */
   public HCFSJniFuseFileSystem(
       FileSystem fs, FuseOptions fuseOptions, Configuration conf) {
+    this(new FileSystemPool(fs), fuseOptions, conf);
+  }
+
+  /**
+   * Creates a new instance of {@link HCFSJniFuseFileSystem} backed by several clients.
+   *
+   * @param fileSystems target file system clients
+   * @param fuseOptions options
+   * @param conf configuration
+   */
+  public HCFSJniFuseFileSystem(
+      FileSystemPool fileSystems, FuseOptions fuseOptions, Configuration conf) {
+    this(fileSystems, fuseOptions, conf, new IdentityCache(conf));
+  }
+
+  /**
+   * Creates a new instance of {@link HCFSJniFuseFileSystem} sharing the uid and gid
+   * translations with other mounts.
+   *
+   * @param fileSystems target file system clients
+   * @param fuseOptions options
+   * @param conf configuration
+   * @param identities the uid and gid translations
+   */
+  public HCFSJniFuseFileSystem(FileSystemPool fileSystems, FuseOptions fuseOptions,
+      Configuration conf, IdentityCache identities) {
+    this(fileSystems, fuseOptions, conf, identities, createCache(fileSystems, conf));
+  }
+
+  /**
+   * Creates a new instance of {@link HCFSJniFuseFileSystem} sharing the uid and gid
+   * translations and the local cache with other mounts.
+   *
+   * @param fileSystems target file system clients
+   * @param fuseOptions options
+   * @param conf configuration
+   * @param identities the uid and gid translations
+   * @param cache the local cache of the store of the root, null to not cache reads
+   */
+  public HCFSJniFuseFileSystem(FileSystemPool fileSystems, FuseOptions fuseOptions,
+      Configuration conf, IdentityCache identities, @Nullable LocalBlockCache cache) {
     super(Paths.get(fuseOptions.getMountPoint()));
     mFsName = "hcfsJniFuse-" + ThreadLocalRandom.current().nextInt();
-    mFileSystem = fs;
+    mFileSystems = fileSystems;
     mConf = conf;
     mRootPath = new Path(fuseOptions.getRoot());
-    String authPolicy = conf.get(AUTH_POLICY, "default");
     mPathResolverCache = CacheBuilder.newBuilder()
         .maximumSize(500)
         .build(new CacheLoader<String, Path>() {
@@ -118,39 +253,380 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
             return turi;
           }
         });
-    mUidCache = CacheBuilder.newBuilder()
-        .maximumSize(100)
-        .build(new CacheLoader<String, Long>() {
-          @Override
-          public Long load(String userName) {
-            if (authPolicy.equalsIgnoreCase(AUTH_POLICY_CUSTOM)) {
-              return DEFAULT_UID;
-            } else {
-              return AlluxioFuseUtils.getUid(userName);
-            }
-          }
-        });
-    mGidCache = CacheBuilder.newBuilder()
-        .maximumSize(100)
-        .build(new CacheLoader<String, Long>() {
-          @Override
-          public Long load(String groupName) {
-            if (authPolicy.equalsIgnoreCase(AUTH_POLICY_CUSTOM)) {
-              return DEFAULT_GID;
-            } else {
-              return AlluxioFuseUtils.getGidFromGroupName(groupName);
-            }
-          }
-        });
+    mIdentities = identities;
     mIsUserGroupTranslation = true;
-    mAuthPolicy = AuthPolicyFactory.create(mFileSystem, conf, this);
+    mAuthPolicy = Suppliers.memoize(
+        () -> AuthPolicyFactory.create(mFileSystems.get(), conf, this));
+    mHedgedReader = conf.getBoolean(READ_HEDGE_ENABLED, false)
+        ? new HedgedReader(conf, mMetrics.getRegistry()) : null;
+    mParallelReader = conf.getBoolean(READ_PARALLEL_ENABLED, false)
+        ? new ParallelReader(conf, mMetrics.getRegistry()) : null;
+    mStripedWriter = conf.getBoolean(WRITE_STRIPED_ENABLED, false)
+        ? new StripedWriter(conf, mMetrics.getRegistry()) : null;
+    mBackendExecutors = conf.getBoolean(EXECUTOR_ENABLED, false)
+        ? new BackendExecutors(conf, mMetrics.getRegistry()) : null;
+    mStreamingReads = conf.getInt(EXECUTOR_STREAMING_READS, EXECUTOR_STREAMING_READS_DEFAULT);
+    mThrottler = conf.getBoolean(THROTTLE_ENABLED, false)
+        ? new UserThrottler(conf, mMetrics.getRegistry()) : null;
+    mIOStatistics = conf.getBoolean(IOSTATS_ENABLED, true)
+        ? new BackendIOStatistics(
+            () -> fileSystems.isReady() ? fileSystems.getAll() : Collections.emptyList(),
+            conf, mMetrics.getRegistry()) : null;
+    mSlowOps = conf.getBoolean(SLOW_OP_ENABLED, false)
+        ? new SlowOpTracer(conf, mMetrics.getRegistry()) : null;
+    mCache = cache;
+    mPreloadWaitMs =
+        conf.getLong(CACHE_PRELOAD_WAIT_TIMEOUT_MS, CACHE_PRELOAD_WAIT_TIMEOUT_MS_DEFAULT);
+    if (mCache != null) {
+      mMetrics.getRegistry().registerAll(mCache.getMetrics());
+      fileSystems.whenReady().thenRun(() -> {
+        for (String pattern : conf.getTrimmedStrings(CACHE_PINS)) {
+          try {
+            mCache.pin(resolvePin(pattern));
+          } catch (IllegalArgumentException e) {
+            LOG.error("Failed to pin {}: {}", pattern, e.toString());
+          }
+        }
+      });
+    }
+    mProfiler = conf.getBoolean(PROFILE_ENABLED, false) ? new AccessProfiler(conf) : null;
+    mRecorder = conf.get(TRACE_FILE) != null ? createRecorder(conf) : null;
+    mLazyCreate = conf.getBoolean(CREATE_LAZY_ENABLED, false);
+    mTrash = conf.getBoolean(TRASH_ENABLED, false)
+        ? new TrashDeleter(fileSystems::next, mRootPath, conf, mMetrics.getRegistry()) : null;
+    if (mTrash != null) {
+      fileSystems.whenReady().thenRun(mTrash::recover);
+    }
+    mXAttrs = new XAttrCache(fileSystems::next, conf, mMetrics.getRegistry());
+    mSmallFiles = conf.getBoolean(SMALL_FILE_ENABLED, false)
+        ? new SmallFilePrefetcher(conf, mMetrics.getRegistry()) : null;
+    mSiblings = mSmallFiles != null && conf.getBoolean(SIBLING_PREFETCH_ENABLED, false)
+        ? new SiblingPrefetcher(mSmallFiles, fileSystems::next, conf, mMetrics.getRegistry())
+        : null;
+    // commands are registered for the features created above
+    mControl = conf.getBoolean(CONTROL_ENABLED, false) ? createControlNamespace() : null;
+    if (mTrash != null && mControl == null) {
+      LOG.warn("{} needs {}, trees can only be removed through the rmtree control command",
+          TRASH_ENABLED, CONTROL_ENABLED);
+    }
+    mMetrics.getRegistry().register("handles.open.read",
+        (Gauge<Integer>) mOpenFileEntries::size);
+    mMetrics.getRegistry().register("handles.open.write",
+        (Gauge<Integer>) mCreateFileEntries::size);
+  }
+
+  private ControlNamespace createControlNamespace() {
+    ControlNamespace control = new ControlNamespace(IdentityCache::defaultUid,
+        IdentityCache::defaultGid);
+    control.addFile("stats", mMetrics::dump);
+    control.addFile("handles", this::dumpHandles);
+    if (mSlowOps != null) {
+      control.addFile("slow_ops", () -> {
+        StringBuilder sb = new StringBuilder();
+        for (SlowOpTracer.Record record : mSlowOps.getRecent()) {
+          sb.append(record.getTimeMs()).append(' ').append(record).append('\n');
+        }
+        return sb.toString();
+      });
+    }
+    control.addCommand("drop_caches", input -> {
+      invalidateCaches(null);
+      return 0;
+    });
+    control.addCommand("invalidate", input -> {
+      if (!input.startsWith("/")) {
+        return -ErrorCodes.EINVAL();
+      }
+      invalidateCaches(input);
+      return 0;
+    });
+    if (mTrash != null) {
+      control.addCommand("rmtree", input -> call("rmtree", Kind.METADATA, input, 0,
+          () -> trashInternal(input), "path=%s", input));
+    }
+    if (mCache != null) {
+      addCacheCommands(control);
+    }
+    return control;
+  }
+
+  /**
+   * Adds the commands that pin paths in the local cache and wait for their preload.
+   */
+  private void addCacheCommands(ControlNamespace control) {
+    control.addFile("pins", () -> {
+      StringBuilder sb = new StringBuilder();
+      for (Preload preload : mCache.getPreloads(mRootPath)) {
+        sb.append(preload).append('\n');
+      }
+      return sb.toString();
+    });
+    control.addCommand("pin", input -> {
+      if (!input.startsWith("/")) {
+        return -ErrorCodes.EINVAL();
+      }
+      if (!mFileSystems.isReady()) {
+        return -ErrorCodes.EAGAIN();
+      }
+      try {
+        mCache.pin(resolvePin(input));
+      } catch (IllegalArgumentException e) {
+        LOG.error("Failed to pin {}: {}", input, e.toString());
+        return -ErrorCodes.EINVAL();
+      }
+      return 0;
+    });
+    control.addCommand("unpin",
+        input -> mCache.unpin(resolvePin(input)) ? 0 : -ErrorCodes.ENOENT());
+    control.addCommand("preload_wait", input -> {
+      // waits for one pin, or for all of them if no path is given
+      List<Preload> preloads;
+      if (input.isEmpty()) {
+        preloads = mCache.getPreloads(mRootPath);
+      } else {
+        Preload preload = mCache.getPreload(resolvePin(input));
+        if (preload == null) {
+          return -ErrorCodes.ENOENT();
+        }
+        preloads = Collections.singletonList(preload);
+      }
+      // a fuse thread waits, so the wait is bounded and the caller retries on EAGAIN
+      long deadline = System.currentTimeMillis() + mPreloadWaitMs;
+      int failed = 0;
+      try {
+        for (Preload preload : preloads) {
+          long remaining = Math.max(0, deadline - System.currentTimeMillis());
+          failed += preload.getDone().get(remaining, TimeUnit.MILLISECONDS).getFailedFiles();
+        }
+      } catch (TimeoutException e) {
+        return -ErrorCodes.EAGAIN();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -ErrorCodes.EINTR();
+      } catch (ExecutionException e) {
+        return -ErrorCodes.EIO();
+      }
+      return failed > 0 ? -ErrorCodes.EIO() : 0;
+    });
+  }
+
+  /**
+   * @param pattern a fuse path or glob
+   * @return the backend path or glob of the pattern
+   */
+  private Path resolvePin(String pattern) {
+    String relative = pattern.replaceFirst("^/+", "");
+    return relative.isEmpty() ? mRootPath : new Path(mRootPath, relative);
+  }
+
+  /**
+   * Creates the local cache of a store if it is enabled.
+   *
+   * @param fileSystems the clients of the store
+   * @param conf configuration
+   * @return the cache, null if it is disabled or cannot be set up
+   */
+  @Nullable
+  static LocalBlockCache createCache(FileSystemPool fileSystems, Configuration conf) {
+    if (!conf.getBoolean(CACHE_ENABLED, false)) {
+      return null;
+    }
+    try {
+      return new LocalBlockCache(fileSystems::next, conf);
+    } catch (IOException e) {
+      LOG.error("Failed to create local cache in {}, reads are not cached",
+          conf.get(CACHE_DIR, CACHE_DIR_DEFAULT), e);
+      return null;
+    }
+  }
+
+  private OpTraceRecorder createRecorder(Configuration conf) {
+    try {
+      return new OpTraceRecorder(conf, mMetrics.getRegistry());
+    } catch (IOException e) {
+      LOG.error("Failed to create op trace {}, callbacks are not recorded", conf.get(TRACE_FILE),
+          e);
+      return null;
+    }
+  }
+
+  private String dumpHandles() {
+    Map<Long, String> lines = new TreeMap<>();
+    for (Map.Entry<Long, InputFileEntry> e : mOpenFileEntries.entrySet()) {
+      InputFileEntry entry = e.getValue();
+      lines.put(e.getKey(), "r " + entry.getBytesRead() + " " + entry.getPath());
+    }
+    for (Map.Entry<Long, OutputFileEntry> e : mCreateFileEntries.entrySet()) {
+      OutputFileEntry entry = e.getValue();
+      lines.put(e.getKey(), "w " + entry.getBytesWritten() + " " + entry.getPath());
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<Long, String> line : lines.entrySet()) {
+      sb.append(line.getKey()).append(' ').append(line.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Drops the cached state of a path and the paths under it, including the xattrs and the
+   * data read ahead or cached locally.
+   *
+   * @param path the fuse path, or null to drop all cached state but the blocks cached locally
+   */
+  public void invalidateCaches(String path) {
+    if (path == null) {
+      mPathResolverCache.invalidateAll();
+      mIdentities.invalidateAll();
+      mXAttrs.invalidateUnder(mRootPath);
+      // the blocks cached locally are kept, their files are checked again once their status
+      // expires
+      if (mSiblings != null) {
+        mSiblings.invalidateUnder(mRootPath);
+      }
+      if (mSmallFiles != null) {
+        mSmallFiles.invalidateUnder(mRootPath);
+      }
+      return;
+    }
+    Path uri = mPathResolverCache.getUnchecked(path);
+    String prefix = path.endsWith("/") ? path : path + "/";
+    mPathResolverCache.asMap().keySet()
+        .removeIf(key -> key.equals(path) || key.startsWith(prefix));
+    mXAttrs.invalidateUnder(uri);
+    invalidateDataUnder(uri);
+  }
+
+  private AccessProfile profile(String path, boolean write) {
+    return mProfiler == null ? null : mProfiler.start(path, write);
+  }
+
+  /**
+   * Attaches the details of the callback running on the fuse thread to its trace event.
+   */
+  private void annotate(FuseFileInfo fi, long offset, String target) {
+    if (mRecorder != null) {
+      mRecorder.annotate(fi, offset, target);
+    }
+  }
+
+  private boolean isControl(String path) {
+    return mControl != null && mControl.contains(path);
+  }
+
+  private boolean isControl(FuseFileInfo fi) {
+    return mControl != null && mControl.isHandle(fi.fh.get());
+  }
+
+  /**
+   * @return whether a path is the trash directory or under it, which are hidden from the mount
+   */
+  private boolean isTrash(String path) {
+    if (mTrash == null || path.length() < 2 || path.charAt(0) != '/') {
+      return false;
+    }
+    String name = mTrash.getTrashName();
+    return path.startsWith(name, 1)
+        && (path.length() == name.length() + 1 || path.charAt(name.length() + 1) == '/');
+  }
+
+  /**
+   * Throttles the calling user, must be called on the fuse thread.
+   *
+   * @param path the fuse path of the operation
+   * @param bytes the number of bytes transferred, 0 for metadata operations
+   */
+  private void throttle(String path, long bytes) {
+    if (mThrottler != null) {
+      long begin = SlowOpTracer.begin();
+      mThrottler.acquire(getContext().uid.get(), path, bytes);
+      SlowOpTracer.end(Phase.THROTTLE, begin);
+    }
+  }
+
+  /**
+   * Runs a callback: records its metrics, traces it if it is slow, throttles the calling user
+   * and runs the backend work on the executor of its kind, or inline if the backend executors
+   * are disabled.
+   *
+   * @param op the callback name
+   * @param kind the kind of backend work, null if the work must stay on the fuse thread
+   *        because it reads the {@link #getContext() fuse context}
+   * @param path the fuse path
+   * @param bytes the number of bytes transferred, 0 for metadata operations
+   * @param task the backend work
+   * @param description format of the debug log arguments
+   * @param args the debug log arguments
+   * @return the result of the callback
+   */
+  private int call(String op, Kind kind, String path, long bytes, IntSupplier task,
+      String description, Object... args) {
+    FuseMetrics.Op metrics = mMetrics.op(op);
+    IntSupplier callback = () -> metrics.time(() -> {
+      // waits inside the timed and recorded part, so callbacks failed at startup are seen
+      int ready = awaitReady(op, path);
+      if (ready != 0) {
+        return ready;
+      }
+      throttle(path, bytes);
+      if (kind == null || mBackendExecutors == null) {
+        return metrics.timeBackend(task);
+      }
+      return mBackendExecutors.call(kind,
+          SlowOpTracer.propagate(() -> metrics.timeBackend(task)));
+    });
+    IntSupplier traced = mSlowOps == null ? callback
+        : () -> mSlowOps.trace(op, path, getContext().uid.get(), bytes, callback);
+    if (mRecorder == null) {
+      return AlluxioFuseUtils.call(LOG, traced::getAsInt, op, description, args);
+    }
+    long start = System.nanoTime();
+    int ret = AlluxioFuseUtils.call(LOG, traced::getAsInt, op, description, args);
+    mRecorder.record(op, path, bytes, start, System.nanoTime() - start, ret);
+    return ret;
+  }
+
+  /**
+   * Waits for the backend clients created in the background.
+   *
+   * @return 0 once they are ready, the error to return otherwise
+   */
+  private int awaitReady(String op, String path) {
+    try {
+      if (!mFileSystems.awaitReady()) {
+        LOG.warn("Failed to {} {}: backend clients are not ready yet", op, path);
+        return -ErrorCodes.EAGAIN();
+      }
+      return 0;
+    } catch (IOException e) {
+      LOG.error("Failed to {} {}: ", op, path, e);
+      return -ErrorCodes.EIO();
+    }
+  }
+
+  private void setUserGroupIfNeeded(Path uri) throws IOException {
+    long begin = SlowOpTracer.begin();
+    mAuthPolicy.get().setUserGroupIfNeeded(uri);
+    SlowOpTracer.end(Phase.AUTH, begin);
+  }
+
+  private Kind readKind(FuseFileInfo fi) {
+    InputFileEntry entry = mOpenFileEntries.get(fi.fh.get());
+    if (entry != null && entry.getData() != null) {
+      // served from memory, no need to queue behind backend reads
+      return null;
+    }
+    return entry != null && entry.getSequentialReads() >= mStreamingReads
+        ? Kind.BULK : Kind.SMALL_READ;
   }
 
   @Override
   public int create(String path, long mode, FuseFileInfo fi) {
-    return AlluxioFuseUtils.call(LOG, () ->
-            createInternal(path, mode, fi),
-        "create", "path=%s,mode=%o", path, mode);
+    if (isControl(path) || isTrash(path)) {
+      return -ErrorCodes.EACCES();
+    }
+    annotate(fi, mode, null);
+    return call("create", null, path, 0, () -> createInternal(path, mode, fi),
+        "path=%s,mode=%o", path, mode);
   }
 
   private int createInternal(String path, long mode, FuseFileInfo fi) {
@@ -161,12 +637,35 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
       return -ErrorCodes.ENAMETOOLONG();
     }
     try {
-      FSDataOutputStream os =
-          mFileSystem.create(mFileSystem, uri, new FsPermission((int) mode));
+      FileSystem fs = mFileSystems.next();
       long fid = mNextOpenFileId.getAndIncrement();
-      mCreateFileEntries.put(fid, os);
+      long uid = getContext().uid.get();
+      long gid = getContext().gid.get();
+      if (mLazyCreate) {
+        OutputFileEntry entry = new OutputFileEntry(path, uri,
+            target -> createLazily(fs, target, mode, uid, gid), mode, uid, gid,
+            profile(path, true));
+        mWriters.put(path, entry);
+        mCreateFileEntries.put(fid, entry);
+        mXAttrs.created(uri);
+        invalidateData(uri);
+        fi.fh.set(fid);
+        SlowOpTracer.handle(fid, 0);
+        return 0;
+      }
+      long begin = SlowOpTracer.begin();
+      FSDataOutputStream os =
+          stripe(fs, uri, FileSystem.create(fs, uri, new FsPermission((int) mode)));
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      OutputFileEntry entry =
+          new OutputFileEntry(path, uri, os, mode, uid, gid, profile(path, true));
+      mWriters.put(path, entry);
+      mCreateFileEntries.put(fid, entry);
+      mXAttrs.created(uri);
+      invalidateData(uri);
       fi.fh.set(fid);
-      mAuthPolicy.setUserGroupIfNeeded(uri);
+      SlowOpTracer.handle(fid, 0);
+      setUserGroupIfNeeded(uri);
     } catch (Throwable e) {
       LOG.error("Failed to create {}: ", path, e);
       return -ErrorCodes.EIO();
@@ -174,16 +673,156 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     return 0;
   }
 
+  /**
+   * Creates a lazily created file on the backend, may run after the create callback returned.
+   */
+  private FSDataOutputStream createLazily(FileSystem fs, Path uri, long mode, long uid,
+      long gid) throws IOException {
+    long begin = SlowOpTracer.begin();
+    FSDataOutputStream os =
+        stripe(fs, uri, FileSystem.create(fs, uri, new FsPermission((int) mode)));
+    SlowOpTracer.end(Phase.BACKEND, begin);
+    begin = SlowOpTracer.begin();
+    mAuthPolicy.get().setUserGroupIfNeeded(uri, uid, gid);
+    SlowOpTracer.end(Phase.AUTH, begin);
+    return os;
+  }
+
+  /**
+   * @return the stream to write a file created through the given stream, striped over
+   *         parallel uploads when enabled and supported by the backend
+   */
+  private FSDataOutputStream stripe(FileSystem fs, Path uri, FSDataOutputStream os) {
+    return mStripedWriter == null ? os : mStripedWriter.wrap(fs, uri, os);
+  }
+
+  /**
+   * @return the stream of the entry, null if the file was removed before it was created
+   */
+  private FSDataOutputStream open(OutputFileEntry entry) throws IOException {
+    if (!entry.isPending()) {
+      return entry.getOut();
+    }
+    return entry.open();
+  }
+
+  /**
+   * Creates a lazily created file on the backend before a path based operation needs it.
+   */
+  private void createPending(String path) throws IOException {
+    OutputFileEntry writer = getWriter(path);
+    if (writer != null) {
+      open(writer);
+    }
+  }
+
+  /**
+   * Makes a lazily created file visible on the backend before it is opened for reading.
+   */
+  private void touchPending(String path) throws IOException {
+    OutputFileEntry writer = getWriter(path);
+    if (writer != null) {
+      writer.touch();
+    }
+  }
+
+  private OutputFileEntry getWriter(String path) {
+    return mWriters.isEmpty() ? null : mWriters.get(path);
+  }
+
+  /**
+   * Creates the lazily created files under a directory, or forgets the files open for
+   * writing under it and drops those not created yet if discard is set.
+   */
+  private void resolveWritersUnder(String dir, boolean discard) throws IOException {
+    if (mWriters.isEmpty()) {
+      return;
+    }
+    String prefix = dir.endsWith("/") ? dir : dir + "/";
+    for (Map.Entry<String, OutputFileEntry> e : mWriters.entrySet()) {
+      if (!e.getKey().startsWith(prefix)) {
+        continue;
+      }
+      if (discard) {
+        mWriters.remove(e.getKey(), e.getValue());
+        e.getValue().discard();
+      } else {
+        open(e.getValue());
+      }
+    }
+  }
+
+  /**
+   * Follows a backend rename with the files open for writing at or under the old path.
+   */
+  private void moveWriters(String oldPath, String newPath) {
+    if (mWriters.isEmpty()) {
+      return;
+    }
+    String prefix = oldPath + "/";
+    Path from = mPathResolverCache.getUnchecked(oldPath);
+    Path to = mPathResolverCache.getUnchecked(newPath);
+    for (Map.Entry<String, OutputFileEntry> e : mWriters.entrySet()) {
+      String key = e.getKey();
+      if ((key.equals(oldPath) || key.startsWith(prefix))
+          && mWriters.remove(key, e.getValue())) {
+        String moved = newPath + key.substring(oldPath.length());
+        e.getValue().setPath(moved, mPathResolverCache.getUnchecked(moved), from, to);
+        mWriters.put(moved, e.getValue());
+      }
+    }
+  }
+
+  /**
+   * Fills the attributes of a file open for writing from the state of its handle, the
+   * backend may only learn the size at close.
+   */
+  private static void writerAttr(OutputFileEntry entry, FileStat stat) {
+    long mtime = entry.getModificationTimeMs();
+    long sec = mtime / 1000;
+    long nsec = (mtime % 1000) * 1000000;
+    long size = entry.getLength();
+    stat.st_size.set(size);
+    stat.st_blocks.set((size + 511) / 512);
+    stat.st_ctim.tv_sec.set(sec);
+    stat.st_ctim.tv_nsec.set(nsec);
+    stat.st_mtim.tv_sec.set(sec);
+    stat.st_mtim.tv_nsec.set(nsec);
+    stat.st_uid.set(entry.getUid());
+    stat.st_gid.set(entry.getGid());
+    stat.st_mode.set(FileStat.S_IFREG | (int) (entry.getMode() & 07777));
+    stat.st_nlink.set(1);
+  }
+
   @Override
   public int getattr(String path, FileStat stat) {
-    return AlluxioFuseUtils.call(
-        LOG, () -> getattrInternal(path, stat), "getattr", "path=%s", path);
+    if (isControl(path)) {
+      return mControl.getattr(path, stat);
+    }
+    if (isTrash(path)) {
+      return -ErrorCodes.ENOENT();
+    }
+    return call("getattr", Kind.METADATA, path, 0, () -> getattrInternal(path, stat),
+        "path=%s", path);
   }
 
   private int getattrInternal(String path, FileStat stat) {
+    OutputFileEntry writer = getWriter(path);
+    if (writer != null) {
+      writerAttr(writer, stat);
+      return 0;
+    }
     final Path uri = mPathResolverCache.getUnchecked(path);
     try {
-      FileStatus status = mFileSystem.getFileStatus(uri);
+      long begin = SlowOpTracer.begin();
+      FileStatus status = mFileSystems.next().getFileStatus(uri);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      if (mSmallFiles != null) {
+        mSmallFiles.recordStatus(uri, status);
+      }
+      if (mCache != null) {
+        mCache.recordStatus(uri, status);
+      }
       long size = status.getLen();
       stat.st_size.set(size);
 
@@ -207,11 +846,11 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
         // Translate the file owner/group to unix uid/gid
         // Show as uid==-1 (nobody) if owner does not exist in unix
         // Show as gid==-1 (nogroup) if group does not exist in unix
-        stat.st_uid.set(mUidCache.get(status.getOwner()));
-        stat.st_gid.set(mGidCache.get(status.getGroup()));
+        stat.st_uid.set(mIdentities.getUid(status.getOwner()));
+        stat.st_gid.set(mIdentities.getGid(status.getGroup()));
       } else {
-        stat.st_uid.set(DEFAULT_UID);
-        stat.st_gid.set(DEFAULT_GID);
+        stat.st_uid.set(IdentityCache.defaultUid());
+        stat.st_gid.set(IdentityCache.defaultGid());
       }
 
       int mode = status.getPermission().toShort();
@@ -236,8 +875,11 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
   @Override
   public int readdir(String path, long buff, long filter, long offset,
       FuseFileInfo fi) {
-    return AlluxioFuseUtils.call(LOG, () -> readdirInternal(path, buff, filter, offset, fi),
-        "readdir", "path=%s,buf=%s", path, buff);
+    if (isControl(path)) {
+      return mControl.readdir(path, buff, filter);
+    }
+    return call("readdir", Kind.METADATA, path, 0,
+        () -> readdirInternal(path, buff, filter, offset, fi), "path=%s,buf=%s", path, buff);
   }
 
   private int readdirInternal(String path, long buff, long filter, long offset,
@@ -247,9 +889,43 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
       // standard . and .. entries
       FuseFillDir.apply(filter, buff, ".", null, 0);
       FuseFillDir.apply(filter, buff, "..", null, 0);
-      final FileStatus[] ls = mFileSystem.listStatus(uri);
+      long begin = SlowOpTracer.begin();
+      final FileStatus[] ls = mFileSystems.next().listStatus(uri);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      boolean root = path.equals("/");
+      Set<String> names = mWriters.isEmpty() ? null : new HashSet<>();
+      List<String> files = mSiblings == null ? null : new ArrayList<>(ls.length);
       for (FileStatus file : ls) {
-        FuseFillDir.apply(filter, buff, file.getPath().getName(), null, 0);
+        String name = file.getPath().getName();
+        if (root && mTrash != null && name.equals(mTrash.getTrashName())) {
+          continue;
+        }
+        FuseFillDir.apply(filter, buff, name, null, 0);
+        if (names != null) {
+          names.add(name);
+        }
+        if (mSmallFiles != null) {
+          mSmallFiles.recordStatus(new Path(uri, name), file);
+        }
+        if (mCache != null) {
+          mCache.recordStatus(new Path(uri, name), file);
+        }
+        if (files != null && file.isFile()) {
+          files.add(name);
+        }
+      }
+      if (files != null) {
+        mSiblings.recordListing(uri, files);
+      }
+      if (names != null) {
+        // lazily created files are listed before they reach the backend
+        String prefix = root ? "/" : path + "/";
+        for (String writer : mWriters.keySet()) {
+          if (writer.startsWith(prefix) && writer.indexOf('/', prefix.length()) < 0
+              && names.add(writer.substring(prefix.length()))) {
+            FuseFillDir.apply(filter, buff, writer.substring(prefix.length()), null, 0);
+          }
+        }
       }
     } catch (Throwable e) {
       LOG.error("Failed to readdir {}: ", path, e);
@@ -261,7 +937,16 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
 
   @Override
   public int open(String path, FuseFileInfo fi) {
-    return AlluxioFuseUtils.call(LOG, () -> openInternal(path, fi), "open", "path=%s", path);
+    if (isControl(path)) {
+      long fd = mNextOpenFileId.getAndIncrement();
+      int ret = mControl.open(path, fd, fi.flags.get());
+      if (ret == 0) {
+        fi.fh.set(fd);
+      }
+      return ret;
+    }
+    annotate(fi, fi.flags.get(), null);
+    return call("open", null, path, 0, () -> openInternal(path, fi), "path=%s", path);
   }
 
   private int openInternal(String path, FuseFileInfo fi) {
@@ -271,16 +956,43 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     try {
       long fd = mNextOpenFileId.getAndIncrement();
       if ((flags & 0b11) != 0) {
-        FSDataOutputStream os =
-            mFileSystem.create(uri);
+        createPending(path);
+        long begin = SlowOpTracer.begin();
+        FileSystem fs = mFileSystems.next();
+        FSDataOutputStream os = stripe(fs, uri, fs.create(uri));
+        SlowOpTracer.end(Phase.BACKEND, begin);
         long fid = mNextOpenFileId.getAndIncrement();
-        mCreateFileEntries.put(fid, os);
+        OutputFileEntry entry = new OutputFileEntry(path, uri, os,
+            FsPermission.getFileDefault().applyUMask(FsPermission.getUMask(mConf)).toShort(),
+            getContext().uid.get(), getContext().gid.get(), profile(path, true));
+        mWriters.put(path, entry);
+        mCreateFileEntries.put(fid, entry);
+        invalidateData(uri);
         fi.fh.set(fid);
-        mAuthPolicy.setUserGroupIfNeeded(uri);
+        SlowOpTracer.handle(fid, 0);
+        setUserGroupIfNeeded(uri);
       } else {
-        FSDataInputStream is = mFileSystem.open(uri);
-        mOpenFileEntries.put(fd, is);
+        touchPending(path);
+        ByteBuffer data = mSiblings == null ? null : mSiblings.take(uri);
+        FSDataInputStream is = null;
+        CachedFile cached = null;
+        if (data == null) {
+          long begin = SlowOpTracer.begin();
+          is = mFileSystems.next().open(uri);
+          data = mSmallFiles == null ? null : prefetch(uri, is);
+          if (data == null && mCache != null) {
+            cached = openCached(uri, is);
+          }
+          SlowOpTracer.end(Phase.BACKEND, begin);
+        }
+        mOpenFileEntries.put(fd, data == null
+            ? new InputFileEntry(path, uri, is, cached, profile(path, false))
+            : new InputFileEntry(path, uri, data, profile(path, false)));
         fi.fh.set(fd);
+        if (mSiblings != null) {
+          mSiblings.onOpen(uri);
+        }
+        SlowOpTracer.handle(fd, 0);
       }
       return 0;
     } catch (Throwable e) {
@@ -289,24 +1001,116 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     }
   }
 
+  /**
+   * Drops the data read ahead or cached locally for a file that was written or removed.
+   */
+  private void invalidateData(Path uri) {
+    if (mSiblings != null) {
+      mSiblings.invalidate(uri);
+    }
+    if (mCache != null) {
+      mCache.invalidate(uri);
+    }
+  }
+
+  /**
+   * Drops the data read ahead or cached locally at or under a path that was renamed or
+   * removed, which may be a directory.
+   */
+  private void invalidateDataUnder(Path uri) {
+    if (mSiblings != null) {
+      mSiblings.invalidateUnder(uri);
+    }
+    if (mSmallFiles != null) {
+      mSmallFiles.invalidateUnder(uri);
+    }
+    if (mCache != null) {
+      mCache.invalidateUnder(uri);
+    }
+  }
+
+  /**
+   * Looks up the cached version of a file and closes its stream on failure.
+   */
+  private CachedFile openCached(Path uri, FSDataInputStream is) throws IOException {
+    try {
+      return mCache.open(uri);
+    } catch (IOException | RuntimeException e) {
+      is.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads a small file whole and closes its stream.
+   *
+   * @return the content of the file, null if the stream is to be used
+   */
+  private ByteBuffer prefetch(Path uri, FSDataInputStream is) throws IOException {
+    ByteBuffer data;
+    try {
+      data = mSmallFiles.prefetch(uri, is);
+    } catch (IOException | RuntimeException e) {
+      is.close();
+      throw e;
+    }
+    if (data != null) {
+      is.close();
+      if (mIOStatistics != null) {
+        mIOStatistics.aggregate(is);
+      }
+    }
+    return data;
+  }
+
   @Override
   public int read(String path, ByteBuffer buf, long size, long offset, FuseFileInfo fi) {
-    return AlluxioFuseUtils.call(LOG, () -> readInternal(path, buf, size, offset, fi),
-        "read", "path=%s,buf=%s,size=%d,offset=%d", path, buf, size, offset);
+    if (isControl(fi)) {
+      return mControl.read(fi.fh.get(), buf, size, offset);
+    }
+    annotate(fi, offset, null);
+    return call("read", readKind(fi), path, size, () -> readInternal(path, buf, size, offset, fi),
+        "path=%s,buf=%s,size=%d,offset=%d", path, buf, size, offset);
   }
 
   private int readInternal(String path, ByteBuffer buf, long size, long offset, FuseFileInfo fi) {
+    if (mSmallFiles != null) {
+      InputFileEntry entry = mOpenFileEntries.get(fi.fh.get());
+      if (entry != null && entry.getData() != null) {
+        return memoryReadInternal(path, buf, size, offset, fi);
+      }
+    }
+    if (mCache != null) {
+      InputFileEntry entry = mOpenFileEntries.get(fi.fh.get());
+      if (entry != null && entry.getCached() != null) {
+        return cachedReadInternal(path, buf, size, offset, fi);
+      }
+    }
+    if (mParallelReader != null) {
+      int nread = parallelReadInternal(path, buf, size, offset, fi);
+      if (nread != ParallelReader.NOT_SERVED) {
+        return nread;
+      }
+    }
+    if (mHedgedReader != null) {
+      return hedgedReadInternal(path, buf, size, offset, fi);
+    }
     int nread = 0;
     int rd = 0;
     final int sz = (int) size;
     long fd = fi.fh.get();
+    SlowOpTracer.handle(fd, offset);
+    long begin = SlowOpTracer.begin();
     // FileInStream is not thread safe
     try (LockResource r1 = new LockResource(mFileLocks.get(fd).writeLock())) {
-      FSDataInputStream is = mOpenFileEntries.get(fd);
-      if (is == null) {
+      SlowOpTracer.end(Phase.LOCK, begin);
+      InputFileEntry entry = mOpenFileEntries.get(fd);
+      if (entry == null) {
         LOG.error("Cannot find fd {} for {}", fd, path);
         return -ErrorCodes.EBADFD();
       }
+      FSDataInputStream is = entry.getIn();
+      begin = SlowOpTracer.begin();
       if (offset - is.getPos() < is.available()) {
         is.seek(offset);
         final byte[] dest = new byte[sz];
@@ -316,13 +1120,18 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
             nread += rd;
           }
         }
+        SlowOpTracer.end(Phase.BACKEND, begin);
 
         if (nread == -1) { // EOF
           nread = 0;
         } else if (nread > 0) {
+          begin = SlowOpTracer.begin();
           buf.put(dest, 0, nread);
+          SlowOpTracer.end(Phase.COPY, begin);
         }
       }
+      entry.recordRead(offset, nread);
+      mMetrics.markBytesRead(nread);
     } catch (Throwable e) {
       LOG.error("Failed to read, path: {} size: {} offset: {}", path, size, offset, e);
       return -ErrorCodes.EIO();
@@ -330,10 +1139,163 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     return nread;
   }
 
+  /**
+   * Reads a small file from the memory it was read into at open.
+   */
+  private int memoryReadInternal(String path, ByteBuffer buf, long size, long offset,
+      FuseFileInfo fi) {
+    final long fd = fi.fh.get();
+    SlowOpTracer.handle(fd, offset);
+    long begin = SlowOpTracer.begin();
+    // the read lock keeps release from returning the buffer to the pool during the copy
+    try (LockResource r1 = new LockResource(mFileLocks.get(fd).readLock())) {
+      SlowOpTracer.end(Phase.LOCK, begin);
+      InputFileEntry entry = mOpenFileEntries.get(fd);
+      if (entry == null) {
+        LOG.error("Cannot find fd {} for {}", fd, path);
+        return -ErrorCodes.EBADFD();
+      }
+      ByteBuffer data = entry.getData();
+      int nread = (int) Math.max(0, Math.min(size, data.limit() - offset));
+      if (nread > 0) {
+        begin = SlowOpTracer.begin();
+        buf.put(data.array(), data.arrayOffset() + (int) offset, nread);
+        SlowOpTracer.end(Phase.COPY, begin);
+      }
+      entry.recordRead(offset, nread);
+      mMetrics.markBytesRead(nread);
+      return nread;
+    }
+  }
+
+  /**
+   * Reads through the local cache, which fetches missing blocks with positional reads of the
+   * stream, so reads of the same fd only share the read lock.
+   */
+  private int cachedReadInternal(String path, ByteBuffer buf, long size, long offset,
+      FuseFileInfo fi) {
+    final int sz = (int) size;
+    final long fd = fi.fh.get();
+    SlowOpTracer.handle(fd, offset);
+    long begin = SlowOpTracer.begin();
+    try (LockResource r1 = new LockResource(mFileLocks.get(fd).readLock())) {
+      SlowOpTracer.end(Phase.LOCK, begin);
+      InputFileEntry entry = mOpenFileEntries.get(fd);
+      if (entry == null) {
+        LOG.error("Cannot find fd {} for {}", fd, path);
+        return -ErrorCodes.EBADFD();
+      }
+      final byte[] dest = new byte[sz];
+      begin = SlowOpTracer.begin();
+      int nread = mCache.read(entry.getCached(), entry.getIn(), offset, dest, sz);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      if (nread > 0) {
+        begin = SlowOpTracer.begin();
+        buf.put(dest, 0, nread);
+        SlowOpTracer.end(Phase.COPY, begin);
+      }
+      entry.recordRead(offset, nread);
+      mMetrics.markBytesRead(nread);
+      return nread;
+    } catch (Throwable e) {
+      LOG.error("Failed to read, path: {} size: {} offset: {}", path, size, offset, e);
+      return -ErrorCodes.EIO();
+    }
+  }
+
+  /**
+   * Reads a handle that reads sequentially from the ranges fetched ahead over parallel
+   * streams. The window is synchronized, so reads of the same fd only share the read lock.
+   *
+   * @return the number of bytes read, a negative errno, or {@link ParallelReader#NOT_SERVED}
+   *         if the read is to be served by the handle stream
+   */
+  private int parallelReadInternal(String path, ByteBuffer buf, long size, long offset,
+      FuseFileInfo fi) {
+    final int sz = (int) size;
+    final long fd = fi.fh.get();
+    SlowOpTracer.handle(fd, offset);
+    long begin = SlowOpTracer.begin();
+    try (LockResource r1 = new LockResource(mFileLocks.get(fd).readLock())) {
+      SlowOpTracer.end(Phase.LOCK, begin);
+      InputFileEntry entry = mOpenFileEntries.get(fd);
+      if (entry == null) {
+        LOG.error("Cannot find fd {} for {}", fd, path);
+        return -ErrorCodes.EBADFD();
+      }
+      if (entry.getSequentialReads() < mStreamingReads) {
+        ParallelReader.Window window = entry.getOpenedWindow();
+        if (window != null) {
+          window.reset();
+        }
+        return ParallelReader.NOT_SERVED;
+      }
+      ParallelReader.Window window = entry.getWindow(mParallelReader, mFileSystems.next());
+      final byte[] dest = new byte[sz];
+      begin = SlowOpTracer.begin();
+      int nread = window.read(offset, dest, sz);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      if (nread == ParallelReader.NOT_SERVED) {
+        return nread;
+      }
+      if (nread > 0) {
+        begin = SlowOpTracer.begin();
+        buf.put(dest, 0, nread);
+        SlowOpTracer.end(Phase.COPY, begin);
+      }
+      entry.recordRead(offset, nread);
+      mMetrics.markBytesRead(nread);
+      return nread;
+    } catch (Throwable e) {
+      LOG.error("Failed to read, path: {} size: {} offset: {}", path, size, offset, e);
+      return -ErrorCodes.EIO();
+    }
+  }
+
+  /**
+   * Reads with positional reads that are hedged on a second stream when slow. Positional
+   * reads do not move the stream position, so reads of the same fd only share the read lock.
+   */
+  private int hedgedReadInternal(String path, ByteBuffer buf, long size, long offset,
+      FuseFileInfo fi) {
+    final int sz = (int) size;
+    final long fd = fi.fh.get();
+    SlowOpTracer.handle(fd, offset);
+    long begin = SlowOpTracer.begin();
+    try (LockResource r1 = new LockResource(mFileLocks.get(fd).readLock())) {
+      SlowOpTracer.end(Phase.LOCK, begin);
+      InputFileEntry entry = mOpenFileEntries.get(fd);
+      if (entry == null) {
+        LOG.error("Cannot find fd {} for {}", fd, path);
+        return -ErrorCodes.EBADFD();
+      }
+      final byte[] dest = new byte[sz];
+      begin = SlowOpTracer.begin();
+      int nread = mHedgedReader.read(entry.getIn(), () -> entry.getHedgeIn(mFileSystems.next()),
+          offset, dest, sz, entry::addHedgeRead);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      if (nread > 0) {
+        begin = SlowOpTracer.begin();
+        buf.put(dest, 0, nread);
+        SlowOpTracer.end(Phase.COPY, begin);
+      }
+      entry.recordRead(offset, nread);
+      mMetrics.markBytesRead(nread);
+      return nread;
+    } catch (Throwable e) {
+      LOG.error("Failed to read, path: {} size: {} offset: {}", path, size, offset, e);
+      return -ErrorCodes.EIO();
+    }
+  }
+
   @Override
   public int write(String path, ByteBuffer buf, long size, long offset, FuseFileInfo fi) {
-    return AlluxioFuseUtils.call(LOG, () -> writeInternal(path, buf, size, offset, fi),
-        "write", "path=%s,buf=%s,size=%d,offset=%d", path, buf, size, offset);
+    if (isControl(fi)) {
+      return mControl.write(fi.fh.get(), buf, size);
+    }
+    annotate(fi, offset, null);
+    return call("write", Kind.BULK, path, size, () -> writeInternal(path, buf, size, offset, fi),
+        "path=%s,buf=%s,size=%d,offset=%d", path, buf, size, offset);
   }
 
   private int writeInternal(String path, ByteBuffer buf, long size, long offset, FuseFileInfo fi) {
@@ -343,20 +1305,38 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     }
     final int sz = (int) size;
     final long fd = fi.fh.get();
-    FSDataOutputStream os = mCreateFileEntries.get(fd);
-    if (os == null) {
+    SlowOpTracer.handle(fd, offset);
+    OutputFileEntry entry = mCreateFileEntries.get(fd);
+    if (entry == null) {
       LOG.error("Cannot find fd for {} in table", path);
       return -ErrorCodes.EBADFD();
     }
+    FSDataOutputStream os;
+    try {
+      os = open(entry);
+    } catch (IOException e) {
+      LOG.error("Failed to create {}: ", path, e);
+      return -ErrorCodes.EIO();
+    }
+    if (os == null) {
+      // removed before it was created
+      return sz;
+    }
     if (offset < os.getPos()) {
       // no op
       return sz;
     }
 
     try {
+      long begin = SlowOpTracer.begin();
       final byte[] dest = new byte[sz];
       buf.get(dest, 0, sz);
+      SlowOpTracer.end(Phase.COPY, begin);
+      begin = SlowOpTracer.begin();
       os.write(dest);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      entry.recordWrite(offset, sz);
+      mMetrics.markBytesWritten(sz);
     } catch (IOException e) {
       LOG.error("IOException while writing to {}.", path, e);
       return -ErrorCodes.EIO();
@@ -366,7 +1346,11 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
 
   @Override
   public int flush(String path, FuseFileInfo fi) {
-    return AlluxioFuseUtils.call(LOG, () -> flushInternal(path, fi), "flush", "path=%s", path);
+    if (isControl(fi)) {
+      return mControl.flush(fi.fh.get());
+    }
+    annotate(fi, 0, null);
+    return call("flush", null, path, 0, () -> flushInternal(path, fi), "path=%s", path);
   }
 
   private int flushInternal(String path, FuseFileInfo fi) {
@@ -375,23 +1359,57 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
 
   @Override
   public int release(String path, FuseFileInfo fi) {
-    return AlluxioFuseUtils.call(LOG, () -> releaseInternal(path, fi), "release", "path=%s", path);
+    if (isControl(fi)) {
+      return mControl.release(fi.fh.get());
+    }
+    annotate(fi, 0, null);
+    return call("release", null, path, 0, () -> releaseInternal(path, fi), "path=%s", path);
   }
 
   private int releaseInternal(String path, FuseFileInfo fi) {
     long fd = fi.fh.get();
+    SlowOpTracer.handle(fd, -1);
+    long begin = SlowOpTracer.begin();
     try (LockResource r1 = new LockResource(mFileLocks.get(fd).writeLock())) {
-      FSDataInputStream is = mOpenFileEntries.remove(fd);
-      FSDataOutputStream os = mCreateFileEntries.remove(fd);
+      SlowOpTracer.end(Phase.LOCK, begin);
+      InputFileEntry is = mOpenFileEntries.remove(fd);
+      OutputFileEntry os = mCreateFileEntries.remove(fd);
       if (is == null && os == null) {
         LOG.error("Cannot find fd {} for {}", fd, path);
         return -ErrorCodes.EBADFD();
       }
+      begin = SlowOpTracer.begin();
       if (is != null) {
         is.close();
+        if (is.getData() != null) {
+          mSmallFiles.release(is.getData());
+        }
       }
       if (os != null) {
-        os.close();
+        try {
+          os.close();
+        } finally {
+          mWriters.remove(os.getPath(), os);
+        }
+      }
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      if (mIOStatistics != null) {
+        // streams finalize their statistics on close
+        if (is != null) {
+          mIOStatistics.aggregate(is.getIn());
+          mIOStatistics.aggregate(is.getOpenedHedgeIn());
+          if (is.getOpenedWindow() != null) {
+            for (FSDataInputStream in : is.getOpenedWindow().getOpened()) {
+              mIOStatistics.aggregate(in);
+            }
+          }
+        }
+        if (os != null) {
+          mIOStatistics.aggregate(os.getOut());
+        }
+      }
+      if (mProfiler != null) {
+        mProfiler.finish(is != null ? is.getProfile() : os.getProfile());
       }
     } catch (Throwable e) {
       LOG.error("Failed closing {}", path, e);
@@ -402,8 +1420,12 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
 
   @Override
   public int mkdir(String path, long mode) {
-    return AlluxioFuseUtils.call(LOG, () -> mkdirInternal(path, mode),
-        "mkdir", "path=%s,mode=%o,", path, mode);
+    if (isControl(path) || isTrash(path)) {
+      return -ErrorCodes.EACCES();
+    }
+    annotate(null, mode, null);
+    return call("mkdir", null, path, 0, () -> mkdirInternal(path, mode),
+        "path=%s,mode=%o,", path, mode);
   }
 
   private int mkdirInternal(String path, long mode) {
@@ -414,8 +1436,10 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
       return -ErrorCodes.ENAMETOOLONG();
     }
     try {
-      mFileSystem.mkdirs(uri, new FsPermission((int) mode));
-      mAuthPolicy.setUserGroupIfNeeded(uri);
+      long begin = SlowOpTracer.begin();
+      mFileSystems.next().mkdirs(uri, new FsPermission((int) mode));
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      setUserGroupIfNeeded(uri);
     } catch (Throwable e) {
       LOG.error("Failed to mkdir {}: ", path, e);
       return -ErrorCodes.EIO();
@@ -425,12 +1449,38 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
 
   @Override
   public int unlink(String path) {
-    return AlluxioFuseUtils.call(LOG, () -> rmInternal(path), "unlink", "path=%s", path);
+    if (isControl(path)) {
+      return -ErrorCodes.EACCES();
+    }
+    return call("unlink", Kind.METADATA, path, 0, () -> unlinkInternal(path), "path=%s", path);
   }
 
   @Override
   public int rmdir(String path) {
-    return AlluxioFuseUtils.call(LOG, () -> rmInternal(path), "rmdir", "path=%s", path);
+    if (isControl(path)) {
+      return -ErrorCodes.EACCES();
+    }
+    return call("rmdir", Kind.METADATA, path, 0, () -> rmdirInternal(path), "path=%s", path);
+  }
+
+  private int rmdirInternal(String path) {
+    mXAttrs.invalidateUnder(mPathResolverCache.getUnchecked(path));
+    invalidateDataUnder(mPathResolverCache.getUnchecked(path));
+    return rmInternal(path);
+  }
+
+  private int unlinkInternal(String path) {
+    mXAttrs.invalidate(mPathResolverCache.getUnchecked(path));
+    invalidateData(mPathResolverCache.getUnchecked(path));
+    OutputFileEntry writer = getWriter(path);
+    if (writer != null) {
+      mWriters.remove(path, writer);
+      if (writer.discard()) {
+        LOG.debug("Dropped {} before it was created", path);
+        return 0;
+      }
+    }
+    return rmInternal(path);
   }
 
   /**
@@ -443,7 +1493,10 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     final Path uri = mPathResolverCache.getUnchecked(path);
 
     try {
-      mFileSystem.delete(uri, true);
+      resolveWritersUnder(path, true);
+      long begin = SlowOpTracer.begin();
+      mFileSystems.next().delete(uri, true);
+      SlowOpTracer.end(Phase.BACKEND, begin);
     } catch (Throwable e) {
       LOG.error("Failed to delete {}: ", path, e);
       return -ErrorCodes.EIO();
@@ -452,10 +1505,41 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     return 0;
   }
 
+  /**
+   * Removes a directory tree by moving it into the trash, which deletes it in the background.
+   * Removing a tree file by file, as rm -r does, leaves only empty directories to rmdir, so
+   * large trees are handed over through the rmtree control command instead.
+   */
+  private int trashInternal(String path) {
+    if (!path.startsWith("/") || path.equals("/") || isControl(path) || isTrash(path)) {
+      return -ErrorCodes.EINVAL();
+    }
+    final Path uri = mPathResolverCache.getUnchecked(path);
+    mXAttrs.invalidateUnder(uri);
+    invalidateDataUnder(uri);
+    try {
+      resolveWritersUnder(path, true);
+      long begin = SlowOpTracer.begin();
+      mTrash.moveToTrash(uri);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+    } catch (FileNotFoundException e) {
+      LOG.debug("Failed to remove {}, directory does not exist", path);
+      return -ErrorCodes.ENOENT();
+    } catch (Throwable e) {
+      LOG.warn("Failed to move {} to trash, deleting it inline: ", path, e);
+      return rmInternal(path);
+    }
+    return 0;
+  }
+
   @Override
   public int rename(String oldPath, String newPath) {
-    return AlluxioFuseUtils.call(LOG, () -> renameInternal(oldPath, newPath),
-        "rename", "oldPath=%s,newPath=%s,", oldPath, newPath);
+    if (isControl(oldPath) || isControl(newPath) || isTrash(oldPath) || isTrash(newPath)) {
+      return -ErrorCodes.EACCES();
+    }
+    annotate(null, 0, newPath);
+    return call("rename", Kind.METADATA, oldPath, 0, () -> renameInternal(oldPath, newPath),
+        "oldPath=%s,newPath=%s,", oldPath, newPath);
   }
 
   private int renameInternal(String oldPath, String newPath) {
@@ -468,7 +1552,36 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
       return -ErrorCodes.ENAMETOOLONG();
     }
     try {
-      mFileSystem.rename(oldUri, newUri);
+      if (!mWriters.isEmpty()) {
+        OutputFileEntry pending = mWriters.get(oldPath);
+        if (pending != null && pending.isPending() && !mWriters.containsKey(newPath)
+            && isDirectory(newUri)) {
+          // the backend is not asked for a pending file, so this is where a directory in the
+          // way is noticed
+          return -ErrorCodes.EISDIR();
+        }
+        OutputFileEntry target = mWriters.remove(newPath);
+        if (target != null) {
+          target.discard();
+        }
+        if (pending != null && pending.moveTo(newPath, newUri)) {
+          mWriters.remove(oldPath, pending);
+          mWriters.put(newPath, pending);
+          mXAttrs.invalidate(oldUri);
+          mXAttrs.created(newUri);
+          return 0;
+        }
+        // files under a renamed directory have to exist on the backend to move with it
+        resolveWritersUnder(oldPath, false);
+      }
+      long begin = SlowOpTracer.begin();
+      mFileSystems.next().rename(oldUri, newUri);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+      moveWriters(oldPath, newPath);
+      mXAttrs.invalidateUnder(oldUri);
+      mXAttrs.invalidateUnder(newUri);
+      invalidateDataUnder(oldUri);
+      invalidateDataUnder(newUri);
     } catch (Throwable e) {
       LOG.error("Failed to rename {} to {}: ", oldPath, newPath, e);
       return -ErrorCodes.EIO();
@@ -477,17 +1590,32 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     return 0;
   }
 
+  private boolean isDirectory(Path uri) throws IOException {
+    try {
+      return mFileSystems.next().getFileStatus(uri).isDirectory();
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+  }
+
   @Override
   public int chmod(String path, long mode) {
-    return AlluxioFuseUtils.call(LOG, () -> chmodInternal(path, mode),
-        "chmod", "path=%s,mode=%o", path, mode);
+    if (isControl(path)) {
+      return -ErrorCodes.EACCES();
+    }
+    annotate(null, mode, null);
+    return call("chmod", Kind.METADATA, path, 0, () -> chmodInternal(path, mode),
+        "path=%s,mode=%o", path, mode);
   }
 
   private int chmodInternal(String path, long mode) {
     Path uri = mPathResolverCache.getUnchecked(path);
 
     try {
-      mFileSystem.setPermission(uri, new FsPermission((int) mode));
+      createPending(path);
+      long begin = SlowOpTracer.begin();
+      mFileSystems.next().setPermission(uri, new FsPermission((int) mode));
+      SlowOpTracer.end(Phase.BACKEND, begin);
     } catch (Throwable t) {
       LOG.error("Failed to change {} to mode {}", path, mode, t);
       return AlluxioFuseUtils.getErrorCode(t);
@@ -497,8 +1625,14 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
 
   @Override
   public int chown(String path, long uid, long gid) {
-    return AlluxioFuseUtils.call(LOG, () -> chownInternal(path, uid, gid),
-        "chown", "path=%s,uid=%o,gid=%o", path, uid, gid);
+    if (isControl(path)) {
+      return -ErrorCodes.EACCES();
+    }
+    if (mRecorder != null) {
+      mRecorder.annotateOwner(uid, gid);
+    }
+    return call("chown", Kind.METADATA, path, 0, () -> chownInternal(path, uid, gid),
+        "path=%s,uid=%o,gid=%o", path, uid, gid);
   }
 
   private int chownInternal(String path, long uid, long gid) {
@@ -508,7 +1642,9 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     }
 
     try {
+      createPending(path);
       final Path uri = mPathResolverCache.getUnchecked(path);
+      final FileSystem fs = mFileSystems.next();
 
       String userName = "";
       if (uid != ID_NOT_SET_VALUE && uid != ID_NOT_SET_VALUE_UNSIGNED) {
@@ -538,13 +1674,13 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
             userName, groupName);
       } else if (userName.isEmpty()) {
         LOG.info("Change group of file {} to {}", path, groupName);
-        mFileSystem.setOwner(uri, null, groupName);
+        fs.setOwner(uri, null, groupName);
       } else if (groupName.isEmpty()) {
         LOG.info("Change user of file {} to {}", path, userName);
-        mFileSystem.setOwner(uri, userName, null);
+        fs.setOwner(uri, userName, null);
       } else {
         LOG.info("Change owner of file {} to {}:{}", path, userName, groupName);
-        mFileSystem.setOwner(uri, userName, groupName);
+        fs.setOwner(uri, userName, groupName);
       }
     } catch (Throwable t) {
       LOG.error("Failed to chown {} to uid {} and gid {}", path, uid, gid, t);
@@ -558,6 +1694,201 @@ public final class HCFSJniFuseFileSystem extends AbstractFuseFileSystem {
     return 0;
   }
 
+  @Override
+  public int getxattr(String path, String name, ByteBuffer value) {
+    if (isControl(path)) {
+      return -ErrorCodes.ENODATA();
+    }
+    if (!mXAttrs.isEnabled()) {
+      return -ErrorCodes.ENOTSUP();
+    }
+    return call("getxattr", Kind.METADATA, path, 0, () -> getxattrInternal(path, name, value),
+        "path=%s,name=%s", path, name);
+  }
+
+  private int getxattrInternal(String path, String name, ByteBuffer value) {
+    OutputFileEntry writer = getWriter(path);
+    if (writer != null && writer.isPending()) {
+      return -ErrorCodes.ENODATA();
+    }
+    final Path uri = mPathResolverCache.getUnchecked(path);
+    try {
+      byte[] bytes = mXAttrs.get(uri, name);
+      if (bytes == null) {
+        return -ErrorCodes.ENODATA();
+      }
+      return copyXAttr(bytes, value);
+    } catch (UnsupportedOperationException e) {
+      return -ErrorCodes.ENOTSUP();
+    } catch (FileNotFoundException e) {
+      LOG.debug("Failed to get xattr {} of {}, path does not exist", name, path);
+      return -ErrorCodes.ENOENT();
+    } catch (Throwable t) {
+      LOG.error("Failed to get xattr {} of {}: ", name, path, t);
+      return AlluxioFuseUtils.getErrorCode(t);
+    }
+  }
+
+  @Override
+  public int listxattr(String path, ByteBuffer list) {
+    if (isControl(path)) {
+      return 0;
+    }
+    if (!mXAttrs.isEnabled()) {
+      return -ErrorCodes.ENOTSUP();
+    }
+    return call("listxattr", Kind.METADATA, path, 0, () -> listxattrInternal(path, list),
+        "path=%s", path);
+  }
+
+  private int listxattrInternal(String path, ByteBuffer list) {
+    OutputFileEntry writer = getWriter(path);
+    if (writer != null && writer.isPending()) {
+      return 0;
+    }
+    final Path uri = mPathResolverCache.getUnchecked(path);
+    try {
+      return copyXAttr(mXAttrs.getNames(uri), list);
+    } catch (UnsupportedOperationException e) {
+      return -ErrorCodes.ENOTSUP();
+    } catch (FileNotFoundException e) {
+      LOG.debug("Failed to list xattrs of {}, path does not exist", path);
+      return -ErrorCodes.ENOENT();
+    } catch (Throwable t) {
+      LOG.error("Failed to list xattrs of {}: ", path, t);
+      return AlluxioFuseUtils.getErrorCode(t);
+    }
+  }
+
+  /**
+   * Copies an xattr value or name list into a fuse buffer.
+   *
+   * @return the length of the bytes, only the length if the buffer is empty, or ERANGE if
+   *         the bytes do not fit
+   */
+  private static int copyXAttr(byte[] bytes, ByteBuffer buf) {
+    if (buf.capacity() == 0) {
+      return bytes.length;
+    }
+    if (buf.capacity() < bytes.length) {
+      return -ErrorCodes.ERANGE();
+    }
+    buf.put(bytes);
+    return bytes.length;
+  }
+
+  @Override
+  public int setxattr(String path, String name, ByteBuffer value, long size, int flags) {
+    if (isControl(path)) {
+      return -ErrorCodes.EACCES();
+    }
+    if (!mXAttrs.isEnabled()) {
+      return -ErrorCodes.ENOTSUP();
+    }
+    return call("setxattr", Kind.METADATA, path, size,
+        () -> setxattrInternal(path, name, value, size, flags),
+        "path=%s,name=%s,size=%d,flags=%d", path, name, size, flags);
+  }
+
+  private int setxattrInternal(String path, String name, ByteBuffer value, long size,
+      int flags) {
+    final Path uri = mPathResolverCache.getUnchecked(path);
+    byte[] bytes = new byte[(int) size];
+    value.get(bytes);
+    try {
+      createPending(path);
+      if ((flags & (XAttrCache.XATTR_CREATE | XAttrCache.XATTR_REPLACE)) != 0) {
+        boolean exists = mXAttrs.get(uri, name) != null;
+        if (exists && (flags & XAttrCache.XATTR_CREATE) != 0) {
+          return -ErrorCodes.EEXIST();
+        }
+        if (!exists && (flags & XAttrCache.XATTR_REPLACE) != 0) {
+          return -ErrorCodes.ENODATA();
+        }
+      }
+      long begin = SlowOpTracer.begin();
+      mXAttrs.set(uri, name, bytes, XAttrCache.toSetFlags(flags));
+      SlowOpTracer.end(Phase.BACKEND, begin);
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      // the backend lacks xattrs or the namespace of the name
+      LOG.debug("Failed to set xattr {} of {}: {}", name, path, e.toString());
+      return -ErrorCodes.ENOTSUP();
+    } catch (Throwable t) {
+      LOG.error("Failed to set xattr {} of {}: ", name, path, t);
+      return AlluxioFuseUtils.getErrorCode(t);
+    }
+    return 0;
+  }
+
+  @Override
+  public int removexattr(String path, String name) {
+    if (isControl(path)) {
+      return -ErrorCodes.EACCES();
+    }
+    if (!mXAttrs.isEnabled()) {
+      return -ErrorCodes.ENOTSUP();
+    }
+    return call("removexattr", Kind.METADATA, path, 0, () -> removexattrInternal(path, name),
+        "path=%s,name=%s", path, name);
+  }
+
+  private int removexattrInternal(String path, String name) {
+    final Path uri = mPathResolverCache.getUnchecked(path);
+    try {
+      createPending(path);
+      if (mXAttrs.get(uri, name) == null) {
+        return -ErrorCodes.ENODATA();
+      }
+      long begin = SlowOpTracer.begin();
+      mXAttrs.remove(uri, name);
+      SlowOpTracer.end(Phase.BACKEND, begin);
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      LOG.debug("Failed to remove xattr {} of {}: {}", name, path, e.toString());
+      return -ErrorCodes.ENOTSUP();
+    } catch (Throwable t) {
+      LOG.error("Failed to remove xattr {} of {}: ", name, path, t);
+      return AlluxioFuseUtils.getErrorCode(t);
+    }
+    return 0;
+  }
+
+  @Override
+  public void umount() {
+    super.umount();
+    shutdown();
+  }
+
+  /**
+   * Stops the background tasks, reporters and trace of the mount, on unmount or before the
+   * backend clients are closed. Later calls do nothing.
+   */
+  public void shutdown() {
+    if (!mShutdown.compareAndSet(false, true)) {
+      return;
+    }
+    if (mBackendExecutors != null) {
+      mBackendExecutors.shutdown();
+    }
+    for (Closeable closeable : new Closeable[] {mHedgedReader, mParallelReader, mStripedWriter,
+        mTrash, mSiblings, mIOStatistics, mRecorder, mMetrics}) {
+      if (closeable == null) {
+        continue;
+      }
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close {}: {}", closeable.getClass().getSimpleName(), e.toString());
+      }
+    }
+  }
+
+  /**
+   * @return the metrics of this file system
+   */
+  public FuseMetrics getMetrics() {
+    return mMetrics;
+  }
+
   /**
    * @return Name of the file system
    */
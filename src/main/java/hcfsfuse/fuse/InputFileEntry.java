@@ -0,0 +1,241 @@
+package hcfsfuse.fuse;
+
+import hcfsfuse.fuse.cache.CachedFile;
+import hcfsfuse.fuse.io.ParallelReader;
+import hcfsfuse.fuse.metrics.AccessProfile;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A file opened for reading through the jni fuse file system, either through a backend
+ * stream, possibly cached locally, or, for a small file read whole at open, from memory.
+ */
+final class InputFileEntry implements Closeable {
+  private final String mPath;
+  private final Path mUri;
+  /** The stream of the target file, null if the file is served from memory. */
+  private final FSDataInputStream mIn;
+  /** The content of a file served from memory, null otherwise. */
+  private final ByteBuffer mData;
+  /** The version of the file in the local cache, null if the file is not cached. */
+  private final CachedFile mCached;
+  private final AccessProfile mProfile;
+  /** Second stream used by hedged reads, opened lazily. */
+  private FSDataInputStream mHedgeIn;
+  /** Hedged reads left running on the streams, awaited before the streams are closed. */
+  private final Queue<Future<?>> mHedgeReads = new ConcurrentLinkedQueue<>();
+  /** Ranges fetched ahead over parallel streams, created lazily. */
+  private ParallelReader.Window mWindow;
+  private boolean mClosed;
+  /** Offset right after the last read, used to detect sequential access. */
+  private volatile long mNextOffset;
+  /** Number of consecutive sequential reads. */
+  private volatile int mSequentialReads;
+  /** Number of bytes read through the handle. */
+  private volatile long mBytesRead;
+
+  /**
+   * @param path the fuse path
+   * @param uri the resolved target path
+   * @param in the stream of the target file
+   * @param cached the version of the file in the local cache, null if the file is not cached
+   * @param profile the access profile of the handle, null if the handle is not profiled
+   */
+  InputFileEntry(String path, Path uri, FSDataInputStream in, @Nullable CachedFile cached,
+      @Nullable AccessProfile profile) {
+    this(path, uri, in, null, cached, profile);
+  }
+
+  /**
+   * Creates an entry served from memory.
+   *
+   * @param path the fuse path
+   * @param uri the resolved target path
+   * @param data the whole content of the file
+   * @param profile the access profile of the handle, null if the handle is not profiled
+   */
+  InputFileEntry(String path, Path uri, ByteBuffer data, @Nullable AccessProfile profile) {
+    this(path, uri, null, data, null, profile);
+  }
+
+  private InputFileEntry(String path, Path uri, FSDataInputStream in, ByteBuffer data,
+      CachedFile cached, AccessProfile profile) {
+    mPath = path;
+    mUri = uri;
+    mIn = in;
+    mData = data;
+    mCached = cached;
+    mProfile = profile;
+  }
+
+  /**
+   * @return the fuse path
+   */
+  String getPath() {
+    return mPath;
+  }
+
+  /**
+   * @return the resolved target path
+   */
+  Path getUri() {
+    return mUri;
+  }
+
+  /**
+   * @return the stream of the target file, null if the file is served from memory
+   */
+  @Nullable
+  FSDataInputStream getIn() {
+    return mIn;
+  }
+
+  /**
+   * @return the content of a file served from memory, null otherwise
+   */
+  @Nullable
+  ByteBuffer getData() {
+    return mData;
+  }
+
+  /**
+   * @return the version of the file in the local cache, null if the file is not cached
+   */
+  @Nullable
+  CachedFile getCached() {
+    return mCached;
+  }
+
+  /**
+   * Records a completed read to track whether the handle is read sequentially.
+   *
+   * @param offset the offset of the read
+   * @param length the number of bytes read
+   */
+  void recordRead(long offset, int length) {
+    mSequentialReads = offset == mNextOffset ? mSequentialReads + 1 : 0;
+    mBytesRead += Math.max(length, 0);
+    mNextOffset = offset + Math.max(length, 0);
+    if (mProfile != null) {
+      mProfile.recordRead(offset, length);
+    }
+  }
+
+  /**
+   * @return the number of bytes read through the handle
+   */
+  long getBytesRead() {
+    return mBytesRead;
+  }
+
+  /**
+   * @return the number of consecutive sequential reads
+   */
+  int getSequentialReads() {
+    return mSequentialReads;
+  }
+
+  /**
+   * @param fs the file system to open the stream with
+   * @return the hedge stream, opened on first use
+   */
+  synchronized FSDataInputStream getHedgeIn(FileSystem fs) throws IOException {
+    if (mClosed) {
+      throw new IOException("Stream of " + mPath + " is already closed");
+    }
+    if (mHedgeIn == null) {
+      mHedgeIn = fs.open(mUri);
+    }
+    return mHedgeIn;
+  }
+
+  /**
+   * @return the hedge stream, or null if it was never opened
+   */
+  synchronized FSDataInputStream getOpenedHedgeIn() {
+    return mHedgeIn;
+  }
+
+  /**
+   * Records a hedged read still running on one of the streams.
+   *
+   * @param read the read
+   */
+  void addHedgeRead(Future<?> read) {
+    mHedgeReads.removeIf(Future::isDone);
+    mHedgeReads.add(read);
+  }
+
+  /**
+   * @param reader the parallel reader to create the window with
+   * @param fs the file system to open the parallel streams with
+   * @return the window of ranges fetched ahead, created on first use
+   */
+  synchronized ParallelReader.Window getWindow(ParallelReader reader, FileSystem fs)
+      throws IOException {
+    if (mClosed) {
+      throw new IOException("Stream of " + mPath + " is already closed");
+    }
+    if (mWindow == null) {
+      mWindow = reader.open(() -> fs.open(mUri));
+    }
+    return mWindow;
+  }
+
+  /**
+   * @return the window of ranges fetched ahead, or null if it was never created
+   */
+  synchronized ParallelReader.Window getOpenedWindow() {
+    return mWindow;
+  }
+
+  /**
+   * @return the access profile of the handle, null if the handle is not profiled
+   */
+  @Nullable
+  AccessProfile getProfile() {
+    return mProfile;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    mClosed = true;
+    for (Future<?> read = mHedgeReads.poll(); read != null; read = mHedgeReads.poll()) {
+      try {
+        read.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while closing " + mPath);
+      } catch (ExecutionException e) {
+        // the read lost the race, its failure does not matter
+      }
+    }
+    try {
+      if (mIn != null) {
+        mIn.close();
+      }
+    } finally {
+      try {
+        if (mHedgeIn != null) {
+          mHedgeIn.close();
+        }
+      } finally {
+        if (mWindow != null) {
+          mWindow.close();
+        }
+      }
+    }
+  }
+}
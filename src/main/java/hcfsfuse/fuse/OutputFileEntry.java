@@ -0,0 +1,264 @@
+package hcfsfuse.fuse;
+
+import hcfsfuse.fuse.io.StripedWriter;
+import hcfsfuse.fuse.metrics.AccessProfile;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A file opened for writing through the jni fuse file system.
+ * <p>
+ * A lazily created file is only recorded locally until the first write or the release of
+ * the handle, so files that are renamed over or removed right away never reach the backend.
+ * While the handle is open its attributes are served from the entry, since the backend may
+ * only learn the size of the file when the stream is closed.
+ */
+final class OutputFileEntry implements Closeable {
+  /**
+   * Creates the backend file of a lazily created entry.
+   */
+  interface Opener {
+    /**
+     * @param uri the target path as of now, it may have been renamed since the create
+     * @return the stream of the created file
+     */
+    FSDataOutputStream open(Path uri) throws IOException;
+  }
+
+  private volatile String mPath;
+  private volatile Path mUri;
+  /** The stream of the target file, null until a lazily created file is opened. */
+  private volatile FSDataOutputStream mOut;
+  /** Creates the target file, null once it is created. */
+  private Opener mOpener;
+  /** Whether a lazily created file was removed before it was created. */
+  private boolean mDiscarded;
+  private final AccessProfile mProfile;
+  private final long mMode;
+  private final long mUid;
+  private final long mGid;
+  private final long mCreationTimeMs = System.currentTimeMillis();
+  /** Number of bytes written through the handle. */
+  private volatile long mBytesWritten;
+  /** When the handle was last written to, in epoch milliseconds, 0 if never. */
+  private volatile long mLastWriteMs;
+
+  /**
+   * @param path the fuse path
+   * @param uri the resolved target path
+   * @param out the stream of the target file
+   * @param mode the mode of the file
+   * @param uid the uid of the writer
+   * @param gid the gid of the writer
+   * @param profile the access profile of the handle, null if the handle is not profiled
+   */
+  OutputFileEntry(String path, Path uri, FSDataOutputStream out, long mode, long uid, long gid,
+      @Nullable AccessProfile profile) {
+    this(path, uri, out, null, mode, uid, gid, profile);
+  }
+
+  /**
+   * Creates a lazily created entry.
+   *
+   * @param path the fuse path
+   * @param uri the resolved target path
+   * @param opener creates the target file
+   * @param mode the mode of the file
+   * @param uid the uid of the creator
+   * @param gid the gid of the creator
+   * @param profile the access profile of the handle, null if the handle is not profiled
+   */
+  OutputFileEntry(String path, Path uri, Opener opener, long mode, long uid, long gid,
+      @Nullable AccessProfile profile) {
+    this(path, uri, null, opener, mode, uid, gid, profile);
+  }
+
+  private OutputFileEntry(String path, Path uri, FSDataOutputStream out, Opener opener,
+      long mode, long uid, long gid, AccessProfile profile) {
+    mPath = path;
+    mUri = uri;
+    mOut = out;
+    mOpener = opener;
+    mMode = mode;
+    mUid = uid;
+    mGid = gid;
+    mProfile = profile;
+  }
+
+  /**
+   * @return the fuse path
+   */
+  String getPath() {
+    return mPath;
+  }
+
+  /**
+   * @return the resolved target path
+   */
+  Path getUri() {
+    return mUri;
+  }
+
+  /**
+   * @return the stream of the target file, null if the file is not created yet
+   */
+  @Nullable
+  FSDataOutputStream getOut() {
+    return mOut;
+  }
+
+  /**
+   * Creates the target file if it is not created yet.
+   *
+   * @return the stream of the target file, null if the file was removed before it was created
+   */
+  @Nullable
+  synchronized FSDataOutputStream open() throws IOException {
+    if (mOut == null && !mDiscarded) {
+      mOut = mOpener.open(mUri);
+      mOpener = null;
+    }
+    return mOut;
+  }
+
+  /**
+   * Creates a file that is not created yet empty and closes it, so that it can be opened for
+   * reading even on object stores, where a file only appears once its stream is closed. The
+   * file stays pending, its first write creates it anew.
+   */
+  synchronized void touch() throws IOException {
+    if (mOut == null && !mDiscarded) {
+      mOpener.open(mUri).close();
+    }
+  }
+
+  /**
+   * @return whether the target file is not created yet
+   */
+  boolean isPending() {
+    return mOut == null;
+  }
+
+  /**
+   * Drops a file that is not created yet, writes to the handle are then ignored.
+   *
+   * @return whether the file was dropped, false if it is already created
+   */
+  synchronized boolean discard() {
+    if (mOut != null) {
+      return false;
+    }
+    mDiscarded = true;
+    return true;
+  }
+
+  /**
+   * Moves a file that is not created yet.
+   *
+   * @param path the new fuse path
+   * @param uri the new target path
+   * @return whether the file was moved, false if it is already created
+   */
+  synchronized boolean moveTo(String path, Path uri) {
+    if (mOut != null || mDiscarded) {
+      return false;
+    }
+    mPath = path;
+    mUri = uri;
+    return true;
+  }
+
+  /**
+   * Follows a rename of the file, or of one of its parent directories, on the backend.
+   *
+   * @param path the new fuse path
+   * @param uri the new target path
+   * @param from the renamed target path
+   * @param to the target path it was renamed to
+   */
+  synchronized void setPath(String path, Path uri, Path from, Path to) {
+    mPath = path;
+    mUri = uri;
+    StripedWriter.renamed(mOut, from, to);
+  }
+
+  /**
+   * @return the mode of the file
+   */
+  long getMode() {
+    return mMode;
+  }
+
+  /**
+   * @return the uid of the writer
+   */
+  long getUid() {
+    return mUid;
+  }
+
+  /**
+   * @return the gid of the writer
+   */
+  long getGid() {
+    return mGid;
+  }
+
+  /**
+   * @return the current length of the file as written through the handle
+   */
+  long getLength() {
+    FSDataOutputStream out = mOut;
+    return out == null ? 0 : out.getPos();
+  }
+
+  /**
+   * @return when the file was last written to, or created, in epoch milliseconds
+   */
+  long getModificationTimeMs() {
+    long lastWriteMs = mLastWriteMs;
+    return lastWriteMs == 0 ? mCreationTimeMs : lastWriteMs;
+  }
+
+  /**
+   * Records a completed write.
+   *
+   * @param offset the offset of the write
+   * @param length the number of bytes written
+   */
+  void recordWrite(long offset, int length) {
+    mBytesWritten += length;
+    mLastWriteMs = System.currentTimeMillis();
+    if (mProfile != null) {
+      mProfile.recordWrite(offset, length);
+    }
+  }
+
+  /**
+   * @return the number of bytes written through the handle
+   */
+  long getBytesWritten() {
+    return mBytesWritten;
+  }
+
+  /**
+   * @return the access profile of the handle, null if the handle is not profiled
+   */
+  @Nullable
+  AccessProfile getProfile() {
+    return mProfile;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // a file that was never written is created empty at release
+    FSDataOutputStream out = open();
+    if (out != null) {
+      out.close();
+    }
+  }
+}
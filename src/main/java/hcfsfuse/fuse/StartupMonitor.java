@@ -0,0 +1,168 @@
+package hcfsfuse.fuse;
+
+import static hcfsfuse.fuse.Constants.STARTUP_READY_FILE;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times the phases of startup and signals when every mount serves callbacks.
+ * <p>
+ * Each phase is logged and published as a {@code startup.<phase>.ms} gauge. A mount is ready
+ * once its backend clients are created and the mount point shows up as a fuse file system,
+ * then the {@link Constants#STARTUP_READY_FILE} is created with the time since JVM start.
+ */
+@ThreadSafe
+public final class StartupMonitor {
+  private static final Logger LOG = LoggerFactory.getLogger(StartupMonitor.class);
+  private static final long POLL_INTERVAL_MS = 50;
+
+  private final long mJvmStartMs = ManagementFactory.getRuntimeMXBean().getStartTime();
+  private final String mReadyFile;
+  private final Map<String, Long> mPhases = new LinkedHashMap<>();
+  private final List<MetricRegistry> mRegistries = new ArrayList<>();
+  private final AtomicInteger mPending = new AtomicInteger();
+  private final AtomicInteger mServing = new AtomicInteger();
+  private final Set<String> mFailed = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService mPoller = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("startup-monitor").build());
+
+  /**
+   * @param conf configuration
+   * @param mounts the number of mounts to wait for
+   */
+  public StartupMonitor(Configuration conf, int mounts) {
+    mReadyFile = conf.get(STARTUP_READY_FILE);
+    mPending.set(mounts);
+    phase("jvm", mJvmStartMs);
+  }
+
+  /**
+   * Records a phase that ended now.
+   *
+   * @param name the phase
+   * @param startMs when the phase started, in epoch milliseconds
+   */
+  public synchronized void phase(String name, long startMs) {
+    long ms = System.currentTimeMillis() - startMs;
+    LOG.info("Startup phase {} took {}ms", name, ms);
+    mPhases.put(name, ms);
+    for (MetricRegistry registry : mRegistries) {
+      register(registry, name);
+    }
+  }
+
+  /**
+   * Publishes the phases to a registry, including those recorded later.
+   *
+   * @param registry the registry of a mount
+   */
+  public synchronized void register(MetricRegistry registry) {
+    mRegistries.add(registry);
+    for (String name : mPhases.keySet()) {
+      register(registry, name);
+    }
+  }
+
+  private void register(MetricRegistry registry, String name) {
+    String metric = "startup." + name + ".ms";
+    if (!registry.getNames().contains(metric)) {
+      registry.register(metric, (Gauge<Long>) () -> getPhase(name));
+    }
+  }
+
+  private synchronized Long getPhase(String name) {
+    return mPhases.get(name);
+  }
+
+  /**
+   * Waits in the background for a mount to serve callbacks.
+   *
+   * @param name the name of the mount
+   * @param mountPoint the mount point
+   * @param fileSystems the backend clients of the mount
+   * @param startMs when mounting started, in epoch milliseconds
+   */
+  public void watch(String name, String mountPoint, FileSystemPool fileSystems, long startMs) {
+    mPoller.execute(() -> poll(name, mountPoint, fileSystems, startMs));
+  }
+
+  private void poll(String name, String mountPoint, FileSystemPool fileSystems, long startMs) {
+    if (mFailed.contains(name)) {
+      return;
+    }
+    if (!fileSystems.isReady() || !isMounted(mountPoint)) {
+      mPoller.schedule(() -> poll(name, mountPoint, fileSystems, startMs), POLL_INTERVAL_MS,
+          TimeUnit.MILLISECONDS);
+      return;
+    }
+    phase("mount." + name, startMs);
+    mServing.incrementAndGet();
+    done();
+  }
+
+  /**
+   * Stops waiting for a mount that failed.
+   *
+   * @param name the name of the mount
+   */
+  public void failed(String name) {
+    LOG.warn("Mount {} failed, readiness no longer waits for it", name);
+    mFailed.add(name);
+    done();
+  }
+
+  private void done() {
+    if (mPending.decrementAndGet() > 0) {
+      return;
+    }
+    mPoller.shutdown();
+    if (mServing.get() == 0) {
+      return;
+    }
+    phase("ready", mJvmStartMs);
+    if (mReadyFile == null) {
+      return;
+    }
+    File file = new File(mReadyFile);
+    try {
+      Files.write(file.toPath(), (getPhase("ready") + "\n").getBytes(StandardCharsets.UTF_8));
+      file.deleteOnExit();
+    } catch (IOException e) {
+      LOG.error("Failed to create ready file {}", mReadyFile, e);
+    }
+  }
+
+  private static boolean isMounted(String mountPoint) {
+    try {
+      // stats the mount root, which goes through the fuse getattr callback once mounted
+      FileStore store = Files.getFileStore(Paths.get(mountPoint));
+      return store.type().contains("fuse");
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+}
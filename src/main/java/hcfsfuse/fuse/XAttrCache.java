@@ -0,0 +1,238 @@
+package hcfsfuse.fuse;
+
+import static hcfsfuse.fuse.Constants.XATTR_CACHE_SIZE;
+import static hcfsfuse.fuse.Constants.XATTR_CACHE_SIZE_DEFAULT;
+import static hcfsfuse.fuse.Constants.XATTR_CACHE_TTL_MS;
+import static hcfsfuse.fuse.Constants.XATTR_CACHE_TTL_MS_DEFAULT;
+import static hcfsfuse.fuse.Constants.XATTR_ENABLED;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.XAttrSetFlag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Extended attributes of backend files, cached per path.
+ * <p>
+ * {@code ls}, {@code cp -a} and security modules probe xattrs such as
+ * {@code security.selinux} on every file. All xattrs of a file are fetched with one backend
+ * call and cached, including the fact that a file has none, so that these probes are
+ * answered locally. Backends without xattr support are detected on the first call, after
+ * which every callback fails with ENOTSUP without asking the backend.
+ */
+@ThreadSafe
+public final class XAttrCache {
+  private static final Logger LOG = LoggerFactory.getLogger(XAttrCache.class);
+  private static final byte[] EMPTY_VALUE = new byte[0];
+  /** setxattr flag that fails if the xattr exists. */
+  public static final int XATTR_CREATE = 1;
+  /** setxattr flag that fails if the xattr does not exist. */
+  public static final int XATTR_REPLACE = 2;
+
+  private final Supplier<FileSystem> mFileSystems;
+  private final Cache<Path, Map<String, byte[]>> mCache;
+  private final Counter mHits;
+  private final Counter mMisses;
+  private volatile boolean mEnabled;
+
+  /**
+   * @param fileSystems supplies the backend clients
+   * @param conf configuration
+   * @param metrics registry to publish the cache metrics to
+   */
+  public XAttrCache(Supplier<FileSystem> fileSystems, Configuration conf,
+      MetricRegistry metrics) {
+    mFileSystems = fileSystems;
+    mEnabled = conf.getBoolean(XATTR_ENABLED, true);
+    mCache = CacheBuilder.newBuilder()
+        .maximumSize(conf.getLong(XATTR_CACHE_SIZE, XATTR_CACHE_SIZE_DEFAULT))
+        .expireAfterWrite(conf.getLong(XATTR_CACHE_TTL_MS, XATTR_CACHE_TTL_MS_DEFAULT),
+            TimeUnit.MILLISECONDS)
+        .build();
+    mHits = metrics.counter("xattr.cache.hits");
+    mMisses = metrics.counter("xattr.cache.misses");
+  }
+
+  /**
+   * @return whether xattrs are enabled and supported by the backend as far as known
+   */
+  public boolean isEnabled() {
+    return mEnabled;
+  }
+
+  /**
+   * @param uri the backend path
+   * @param name the name of the xattr, including its namespace
+   * @return the value, null if the file has no such xattr
+   * @throws UnsupportedOperationException if the backend does not support xattrs
+   */
+  @Nullable
+  public byte[] get(Path uri, String name) throws IOException {
+    return getAll(uri).get(name);
+  }
+
+  /**
+   * @param uri the backend path
+   * @return the names of the xattrs of the file, each followed by a NUL as listxattr returns
+   *         them
+   * @throws UnsupportedOperationException if the backend does not support xattrs
+   */
+  public byte[] getNames(Path uri) throws IOException {
+    ByteArrayOutputStream names = new ByteArrayOutputStream();
+    for (String name : getAll(uri).keySet()) {
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      names.write(bytes, 0, bytes.length);
+      names.write(0);
+    }
+    return names.toByteArray();
+  }
+
+  /**
+   * Sets an xattr on the backend.
+   *
+   * @param uri the backend path
+   * @param name the name of the xattr, including its namespace
+   * @param value the value
+   * @param flags whether the xattr may be created, replaced or both
+   * @throws UnsupportedOperationException if the backend does not support xattrs
+   */
+  public void set(Path uri, String name, byte[] value, EnumSet<XAttrSetFlag> flags)
+      throws IOException {
+    try {
+      mFileSystems.get().setXAttr(uri, name, value, flags);
+    } catch (UnsupportedOperationException e) {
+      throw unsupported(e);
+    } finally {
+      mCache.invalidate(uri);
+    }
+  }
+
+  /**
+   * @param flags the flags of setxattr
+   * @return the flags of {@link FileSystem#setXAttr(Path, String, byte[], EnumSet)}
+   */
+  public static EnumSet<XAttrSetFlag> toSetFlags(int flags) {
+    if ((flags & XATTR_CREATE) != 0) {
+      return EnumSet.of(XAttrSetFlag.CREATE);
+    }
+    if ((flags & XATTR_REPLACE) != 0) {
+      return EnumSet.of(XAttrSetFlag.REPLACE);
+    }
+    return EnumSet.of(XAttrSetFlag.CREATE, XAttrSetFlag.REPLACE);
+  }
+
+  /**
+   * Removes an xattr on the backend.
+   *
+   * @param uri the backend path
+   * @param name the name of the xattr, including its namespace
+   * @throws UnsupportedOperationException if the backend does not support xattrs
+   */
+  public void remove(Path uri, String name) throws IOException {
+    try {
+      mFileSystems.get().removeXAttr(uri, name);
+    } catch (UnsupportedOperationException e) {
+      throw unsupported(e);
+    } finally {
+      mCache.invalidate(uri);
+    }
+  }
+
+  /**
+   * Records a file that was just created, it has no xattrs yet.
+   *
+   * @param uri the backend path
+   */
+  public void created(Path uri) {
+    if (mEnabled) {
+      mCache.put(uri, Collections.emptyMap());
+    }
+  }
+
+  /**
+   * Drops the xattrs cached for a path, after it was removed or renamed.
+   *
+   * @param uri the backend path
+   */
+  public void invalidate(Path uri) {
+    mCache.invalidate(uri);
+  }
+
+  /**
+   * Drops the xattrs cached for a path and everything under it, after a directory was
+   * removed or a path renamed.
+   *
+   * @param uri the backend path
+   */
+  public void invalidateUnder(Path uri) {
+    mCache.invalidate(uri);
+    String prefix = uri.toString() + Path.SEPARATOR;
+    mCache.asMap().keySet().removeIf(key -> key.toString().startsWith(prefix));
+  }
+
+  private Map<String, byte[]> getAll(Path uri) throws IOException {
+    Map<String, byte[]> xattrs = mCache.getIfPresent(uri);
+    if (xattrs != null) {
+      mHits.inc();
+      return xattrs;
+    }
+    mMisses.inc();
+    try {
+      return mCache.get(uri, () -> load(uri));
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } catch (RuntimeException e) {
+      // unchecked exceptions of the loader are wrapped by the cache
+      Throwables.throwIfInstanceOf(e.getCause(), UnsupportedOperationException.class);
+      throw e;
+    }
+  }
+
+  private Map<String, byte[]> load(Path uri) throws IOException {
+    Map<String, byte[]> xattrs;
+    try {
+      xattrs = mFileSystems.get().getXAttrs(uri);
+    } catch (UnsupportedOperationException e) {
+      throw unsupported(e);
+    }
+    if (xattrs == null || xattrs.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, byte[]> sorted = new TreeMap<>();
+    for (Map.Entry<String, byte[]> e : xattrs.entrySet()) {
+      sorted.put(e.getKey(), e.getValue() == null ? EMPTY_VALUE : e.getValue());
+    }
+    return Collections.unmodifiableMap(sorted);
+  }
+
+  private UnsupportedOperationException unsupported(UnsupportedOperationException e) {
+    if (mEnabled) {
+      mEnabled = false;
+      mCache.invalidateAll();
+      LOG.warn("The backend does not support xattrs, xattr callbacks fail with ENOTSUP: {}",
+          e.toString());
+    }
+    return e;
+  }
+}
@@ -13,4 +13,14 @@ public interface AuthPolicy {
    * @param uri - path url
    */
   void setUserGroupIfNeeded(Path uri) throws IOException;
+
+  /**
+   * Sets the user and group of a path created on behalf of the given caller, for work that
+   * runs after the fuse callback of the caller returned.
+   *
+   * @param uri - path url
+   * @param uid - uid of the caller
+   * @param gid - gid of the caller
+   */
+  void setUserGroupIfNeeded(Path uri, long uid, long gid) throws IOException;
 }
@@ -42,4 +42,9 @@ public class CustomAuthPolicy implements AuthPolicy {
     LOG.debug("Set attributes of path {} to {}, {}", uri, fUname, fGname);
     mFileSystem.setOwner(uri, fUname, fGname);
   }
+
+  @Override
+  public void setUserGroupIfNeeded(Path uri, long uid, long gid) throws IOException {
+    setUserGroupIfNeeded(uri);
+  }
 }
@@ -19,8 +19,6 @@ public class DefaultAuthPolicy implements AuthPolicy {
   private static final Logger LOG = LoggerFactory.getLogger(DefaultAuthPolicy.class);
   private static final String USER_NAME = System.getProperty("user.name");
   private static final String GROUP_NAME = System.getProperty("user.name");
-  private static final long DEFAULT_UID = AlluxioFuseUtils.getUid(USER_NAME);
-  private static final long DEFAULT_GID = AlluxioFuseUtils.getGid(GROUP_NAME);
 
   private final FileSystem mFileSystem;
   private final FuseFileSystem mFuseFileSystem;
@@ -39,12 +37,17 @@ public class DefaultAuthPolicy implements AuthPolicy {
   @Override
   public void setUserGroupIfNeeded(Path uri) throws IOException {
     FuseContext fc = mFuseFileSystem.getContext();
-    long uid = fc.uid.get();
-    long gid = fc.gid.get();
+    setUserGroupIfNeeded(uri, fc.uid.get(), fc.gid.get());
+  }
+
+  @Override
+  public void setUserGroupIfNeeded(Path uri, long uid, long gid) throws IOException {
+    long defaultUid = IdentityCache.defaultUid();
+    long defaultGid = IdentityCache.defaultGid();
 
     String gname = "";
     String uname = "";
-    if (gid != DEFAULT_GID) {
+    if (gid != defaultGid) {
       String groupName = AlluxioFuseUtils.getGroupName(gid);
       if (groupName.isEmpty()) {
         // This should never be reached since input gid is always valid
@@ -53,7 +56,7 @@ public class DefaultAuthPolicy implements AuthPolicy {
       }
       gname = groupName;
     }
-    if (uid != DEFAULT_UID) {
+    if (uid != defaultUid) {
       String userName = AlluxioFuseUtils.getUserName(uid);
       if (userName.isEmpty()) {
         // This should never be reached since input uid is always valid
@@ -62,7 +65,7 @@ public class DefaultAuthPolicy implements AuthPolicy {
       }
       uname = userName;
     }
-    if (gid != DEFAULT_GID || uid != DEFAULT_UID) {
+    if (gid != defaultGid || uid != defaultUid) {
       LOG.debug("Set attributes of path {} to {}, {}", uri, gid, uid);
       mFileSystem.setOwner(uri, uname, gname);
     }
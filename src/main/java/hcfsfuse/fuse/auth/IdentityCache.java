@@ -0,0 +1,95 @@
+package hcfsfuse.fuse.auth;
+
+import static hcfsfuse.fuse.Constants.AUTH_POLICY;
+import static hcfsfuse.fuse.Constants.AUTH_POLICY_CUSTOM;
+
+import alluxio.fuse.AlluxioFuseUtils;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.apache.hadoop.conf.Configuration;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Translates backend owners and groups to unix uids and gids. Resolving an id forks a
+ * process, so the results are cached, and the cache can be shared by the mounts of one
+ * process.
+ */
+@ThreadSafe
+public final class IdentityCache {
+  private static final String USER_NAME = System.getProperty("user.name");
+  /** Resolved on first use, each lookup forks a process and slows down startup. */
+  private static final Supplier<Long> DEFAULT_UID =
+      Suppliers.memoize(() -> AlluxioFuseUtils.getUid(USER_NAME));
+  private static final Supplier<Long> DEFAULT_GID =
+      Suppliers.memoize(() -> AlluxioFuseUtils.getGid(USER_NAME));
+
+  private final LoadingCache<String, Long> mUidCache;
+  private final LoadingCache<String, Long> mGidCache;
+
+  /**
+   * @param conf configuration, with the custom auth policy every owner maps to the user
+   *        running the process
+   */
+  public IdentityCache(Configuration conf) {
+    boolean custom = conf.get(AUTH_POLICY, "default").equalsIgnoreCase(AUTH_POLICY_CUSTOM);
+    mUidCache = CacheBuilder.newBuilder()
+        .maximumSize(100)
+        .build(new CacheLoader<String, Long>() {
+          @Override
+          public Long load(String userName) {
+            return custom ? DEFAULT_UID.get() : AlluxioFuseUtils.getUid(userName);
+          }
+        });
+    mGidCache = CacheBuilder.newBuilder()
+        .maximumSize(100)
+        .build(new CacheLoader<String, Long>() {
+          @Override
+          public Long load(String groupName) {
+            return custom ? DEFAULT_GID.get() : AlluxioFuseUtils.getGidFromGroupName(groupName);
+          }
+        });
+  }
+
+  /**
+   * @return the uid of the user running the process
+   */
+  public static long defaultUid() {
+    return DEFAULT_UID.get();
+  }
+
+  /**
+   * @return the gid of the user running the process
+   */
+  public static long defaultGid() {
+    return DEFAULT_GID.get();
+  }
+
+  /**
+   * @param userName the backend owner
+   * @return the uid, -1 if the user does not exist
+   */
+  public long getUid(String userName) {
+    return mUidCache.getUnchecked(userName);
+  }
+
+  /**
+   * @param groupName the backend group
+   * @return the gid, -1 if the group does not exist
+   */
+  public long getGid(String groupName) {
+    return mGidCache.getUnchecked(groupName);
+  }
+
+  /**
+   * Drops all cached ids.
+   */
+  public void invalidateAll() {
+    mUidCache.invalidateAll();
+    mGidCache.invalidateAll();
+  }
+}
@@ -0,0 +1,317 @@
+package hcfsfuse.fuse.cache;
+
+import hcfsfuse.fuse.cache.CachedFile.Block;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The persistent index of a {@link LocalBlockCache}, the blocks stored locally for each file
+ * version, so that a restarted mount starts with the cache it had.
+ * <p>
+ * Every block stored or removed is appended to a journal. From time to time the journal is
+ * set aside, the whole index is written to a compact snapshot and the old journal is deleted
+ * once the snapshot is in place. Recovery loads the snapshot and replays the journals on top
+ * of it, the last record of a block wins, so a crash at any point leaves a loadable index.
+ * <p>
+ * The index may lag behind the block files, when records were lost, but it is never wrong
+ * about their content: a block file only ever holds the data of the version and index it is
+ * named after. Blocks whose files are gone are dropped when they are read, files left out of
+ * the index are swept after recovery, and a recovered version is dropped at its next open if
+ * the file changed on the backend.
+ */
+@ThreadSafe
+final class CacheIndex implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(CacheIndex.class);
+  private static final int MAGIC = 0x48434958;
+  private static final int VERSION = 1;
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2;
+
+  private final File mSnapshot;
+  private final File mJournal;
+  /** The journal replaced by the snapshot being written. */
+  private final File mOldJournal;
+  /** Held while a snapshot is written, they share their temporary file. */
+  private final Object mSnapshotLock = new Object();
+  @GuardedBy("this")
+  private DataOutputStream mOut;
+  /** Number of records since the last snapshot. */
+  @GuardedBy("this")
+  private long mRecords;
+
+  /**
+   * @param dir the directory of the index files
+   */
+  CacheIndex(File dir) {
+    mSnapshot = new File(dir, "snapshot");
+    mJournal = new File(dir, "journal");
+    mOldJournal = new File(dir, "journal.old");
+  }
+
+  /**
+   * Loads the index left by a previous process.
+   *
+   * @param blockDir the directory of the block files
+   * @return the cached files by backend path
+   * @throws IOException if the index cannot be read, the cache should then start empty
+   */
+  synchronized Map<String, CachedFile> recover(File blockDir) throws IOException {
+    Map<String, CachedFile> files = new HashMap<>();
+    if (mSnapshot.exists()) {
+      try (DataInputStream in = open(mSnapshot)) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          String path = in.readUTF();
+          long length = in.readLong();
+          long modificationTime = in.readLong();
+          int blocks = in.readInt();
+          for (int j = 0; j < blocks; j++) {
+            add(files, blockDir, path, length, modificationTime, in.readInt(), in.readInt(),
+                in.readLong());
+          }
+        }
+      }
+    }
+    mRecords = replay(mOldJournal, files, blockDir) + replay(mJournal, files, blockDir);
+    files.values().removeIf(file -> file.mBlocks.isEmpty());
+    return files;
+  }
+
+  /**
+   * @return whether anything was recorded since the last snapshot
+   */
+  synchronized boolean hasRecords() {
+    return mRecords > 0;
+  }
+
+  /**
+   * Sets the current journal aside and starts a new one, must be called before writing a
+   * snapshot.
+   *
+   * @return whether anything was recorded since the last snapshot
+   */
+  synchronized boolean startJournal() throws IOException {
+    if (mOut != null) {
+      mOut.close();
+      mOut = null;
+    }
+    if (mJournal.exists()) {
+      // a snapshot that failed leaves its old journal behind, it is superseded by this one
+      Files.move(mJournal.toPath(), mOldJournal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mJournal)));
+    mOut.writeInt(MAGIC);
+    mOut.writeInt(VERSION);
+    mOut.flush();
+    boolean changed = mRecords > 0;
+    mRecords = 0;
+    return changed;
+  }
+
+  /**
+   * Writes the whole index, it covers at least every record of the journal set aside.
+   *
+   * @param files the cached files
+   */
+  void writeSnapshot(Collection<CachedFile> files) throws IOException {
+    synchronized (mSnapshotLock) {
+      writeSnapshotLocked(files);
+    }
+  }
+
+  @GuardedBy("mSnapshotLock")
+  private void writeSnapshotLocked(Collection<CachedFile> files) throws IOException {
+    File tmp = new File(mSnapshot.getPath() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(tmp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      // files may be added meanwhile, the count is only known at the end
+      Map<CachedFile, Block[]> blocks = new HashMap<>();
+      for (CachedFile file : files) {
+        Block[] fileBlocks = file.mBlocks.values().toArray(new Block[0]);
+        if (fileBlocks.length > 0) {
+          blocks.put(file, fileBlocks);
+        }
+      }
+      out.writeInt(blocks.size());
+      for (Map.Entry<CachedFile, Block[]> e : blocks.entrySet()) {
+        CachedFile file = e.getKey();
+        out.writeUTF(file.getPath());
+        out.writeLong(file.getLength());
+        out.writeLong(file.getModificationTime());
+        out.writeInt(e.getValue().length);
+        for (Block block : e.getValue()) {
+          out.writeInt(block.mIndex);
+          out.writeInt(block.mSize);
+          out.writeLong(block.mLastAccessMs);
+        }
+      }
+      out.flush();
+      fos.getFD().sync();
+    }
+    Files.move(tmp.toPath(), mSnapshot.toPath(), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(mOldJournal.toPath());
+  }
+
+  /**
+   * Records a block that was stored.
+   *
+   * @param file the version the block belongs to
+   * @param block the block
+   */
+  synchronized void added(CachedFile file, Block block) {
+    if (write(ADD, file, block.mIndex)) {
+      try {
+        mOut.writeInt(block.mSize);
+        mOut.writeLong(block.mLastAccessMs);
+        mOut.flush();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  /**
+   * Records a block that was removed.
+   *
+   * @param file the version the block belonged to
+   * @param block the block
+   */
+  synchronized void removed(CachedFile file, Block block) {
+    if (write(REMOVE, file, block.mIndex)) {
+      try {
+        mOut.flush();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (mOut != null) {
+      mOut.close();
+      mOut = null;
+    }
+  }
+
+  /**
+   * Writes the common part of a record.
+   *
+   * @return whether the rest of the record can be written
+   */
+  @GuardedBy("this")
+  private boolean write(byte op, CachedFile file, int index) {
+    if (mOut == null) {
+      return false;
+    }
+    try {
+      mOut.writeByte(op);
+      mOut.writeUTF(file.getPath());
+      mOut.writeLong(file.getLength());
+      mOut.writeLong(file.getModificationTime());
+      mOut.writeInt(index);
+      mRecords++;
+      return true;
+    } catch (IOException e) {
+      fail(e);
+      return false;
+    }
+  }
+
+  @GuardedBy("this")
+  private void fail(IOException e) {
+    // the cache keeps working, the index only lags behind until the next snapshot
+    LOG.warn("Failed to write cache journal {}, journaling stops until the next snapshot: {}",
+        mJournal, e.toString());
+    try {
+      mOut.close();
+    } catch (IOException ignored) {
+      // already failed
+    }
+    mOut = null;
+    mRecords++;
+  }
+
+  /**
+   * @return the number of records replayed
+   */
+  private static long replay(File journal, Map<String, CachedFile> files, File blockDir)
+      throws IOException {
+    if (!journal.exists()) {
+      return 0;
+    }
+    long records = 0;
+    try (DataInputStream in = open(journal)) {
+      while (true) {
+        byte op = in.readByte();
+        String path = in.readUTF();
+        long length = in.readLong();
+        long modificationTime = in.readLong();
+        int index = in.readInt();
+        if (op == ADD) {
+          add(files, blockDir, path, length, modificationTime, index, in.readInt(),
+              in.readLong());
+        } else if (op == REMOVE) {
+          CachedFile file = files.get(path);
+          if (file != null && file.isVersion(length, modificationTime)) {
+            file.mBlocks.remove(index);
+          }
+        } else {
+          throw new IOException("Unknown record " + op + " in " + journal);
+        }
+        records++;
+      }
+    } catch (EOFException e) {
+      // the end of the journal, possibly a record torn by a crash
+    }
+    return records;
+  }
+
+  private static void add(Map<String, CachedFile> files, File blockDir, String path,
+      long length, long modificationTime, int index, int size, long lastAccessMs) {
+    CachedFile file = files.get(path);
+    if (file == null || !file.isVersion(length, modificationTime)) {
+      file = new CachedFile(path, length, modificationTime);
+      files.put(path, file);
+    }
+    Block block = new Block(index, size, file.getBlockFile(blockDir, index));
+    block.mLastAccessMs = lastAccessMs;
+    file.mBlocks.put(index, block);
+  }
+
+  private static DataInputStream open(File file) throws IOException {
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Unknown format of cache index " + file);
+      }
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    return in;
+  }
+}
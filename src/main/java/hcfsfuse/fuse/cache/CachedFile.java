@@ -0,0 +1,110 @@
+package hcfsfuse.fuse.cache;
+
+import com.google.common.hash.Hashing;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One version of a backend file in the {@link LocalBlockCache}, identified by its length and
+ * modification time. A file that changes on the backend gets a new version at its next open,
+ * and the blocks of the previous version are dropped.
+ */
+@ThreadSafe
+public final class CachedFile {
+  private final String mPath;
+  private final long mLength;
+  private final long mModificationTime;
+  /** Names the block files of this version. */
+  private final String mId;
+  /** The blocks stored locally, by index. */
+  final Map<Integer, Block> mBlocks = new ConcurrentHashMap<>();
+  /** Whether the file is pinned and its blocks are never evicted. */
+  volatile boolean mPinned;
+
+  /**
+   * @param path the backend path of the file, without scheme and authority
+   * @param length the length of the file
+   * @param modificationTime the modification time of the file
+   */
+  CachedFile(String path, long length, long modificationTime) {
+    mPath = path;
+    mLength = length;
+    mModificationTime = modificationTime;
+    mId = Hashing.murmur3_128().hashString(path + '\0' + length + '\0'
+        + modificationTime, StandardCharsets.UTF_8).toString();
+  }
+
+  /**
+   * @return the backend path of the file, without scheme and authority
+   */
+  public String getPath() {
+    return mPath;
+  }
+
+  /**
+   * @return the length of the file
+   */
+  public long getLength() {
+    return mLength;
+  }
+
+  /**
+   * @return the modification time of the file
+   */
+  long getModificationTime() {
+    return mModificationTime;
+  }
+
+  /**
+   * @return the id naming the block files of this version
+   */
+  String getId() {
+    return mId;
+  }
+
+  /**
+   * @return whether the file is pinned
+   */
+  public boolean isPinned() {
+    return mPinned;
+  }
+
+  /**
+   * @param length the length of the file on the backend
+   * @param modificationTime the modification time of the file on the backend
+   * @return whether this is the current version of the file
+   */
+  boolean isVersion(long length, long modificationTime) {
+    return mLength == length && mModificationTime == modificationTime;
+  }
+
+  /**
+   * @param dir the directory of the block files
+   * @param index the index of a block
+   * @return the local file of the block
+   */
+  File getBlockFile(File dir, int index) {
+    return new File(new File(dir, mId.substring(0, 2)), mId + "-" + index);
+  }
+
+  /**
+   * A block stored locally.
+   */
+  static final class Block {
+    final int mIndex;
+    final int mSize;
+    final File mFile;
+    /** When the block was last read, in epoch milliseconds. */
+    volatile long mLastAccessMs = System.currentTimeMillis();
+
+    Block(int index, int size, File file) {
+      mIndex = index;
+      mSize = size;
+      mFile = file;
+    }
+  }
+}
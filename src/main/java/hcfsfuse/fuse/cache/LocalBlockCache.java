@@ -0,0 +1,909 @@
+package hcfsfuse.fuse.cache;
+
+import static hcfsfuse.fuse.Constants.CACHE_BLOCK_SIZE;
+import static hcfsfuse.fuse.Constants.CACHE_BLOCK_SIZE_DEFAULT;
+import static hcfsfuse.fuse.Constants.CACHE_CAPACITY;
+import static hcfsfuse.fuse.Constants.CACHE_CAPACITY_DEFAULT;
+import static hcfsfuse.fuse.Constants.CACHE_DIR;
+import static hcfsfuse.fuse.Constants.CACHE_DIR_DEFAULT;
+import static hcfsfuse.fuse.Constants.CACHE_INDEX_SNAPSHOT_INTERVAL_MS;
+import static hcfsfuse.fuse.Constants.CACHE_INDEX_SNAPSHOT_INTERVAL_MS_DEFAULT;
+import static hcfsfuse.fuse.Constants.CACHE_PRELOAD_THREADS;
+import static hcfsfuse.fuse.Constants.CACHE_PRELOAD_THREADS_DEFAULT;
+
+import hcfsfuse.fuse.cache.CachedFile.Block;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches the blocks of backend files on a local disk, such as an SSD.
+ * <p>
+ * Files are split into fixed size blocks. A block is fetched whole from the backend the
+ * first time it is read and later reads of it are served from its local file. Blocks are
+ * evicted least recently read first once the cache is over its capacity, except the blocks
+ * of pinned files.
+ * <p>
+ * Paths and globs can be pinned, for instance to hold the dataset of a training job for its
+ * lifetime: the matching files are preloaded in parallel and stay cached until unpinned.
+ * Files are cached per version, identified by their length and modification time, so a file
+ * changed on the backend is fetched again.
+ * <p>
+ * The blocks stored are recorded in a {@link CacheIndex} next to them, so that a restarted
+ * mount serves them again without fetching them anew. Files are cached by backend path, so
+ * the mounts of roots on one store share a cache.
+ */
+@ThreadSafe
+public final class LocalBlockCache implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(LocalBlockCache.class);
+  private static final int MAX_STATUSES = 100000;
+  /** How long the status seen by getattr or readdir is used to open a file. */
+  private static final long STATUS_TTL_MS = 1000;
+  /** Eviction frees space down to this fraction of the capacity. */
+  private static final double EVICT_TARGET = 0.9;
+  /** How long closing waits for the background tasks before the last snapshot. */
+  private static final long CLOSE_TIMEOUT_MS = 10000;
+
+  private final Supplier<FileSystem> mFileSystems;
+  private final MetricRegistry mMetrics = new MetricRegistry();
+  private final File mBlockDir;
+  private final File mTmpDir;
+  private final long mCapacity;
+  private final int mBlockSize;
+  private final Cache<String, FileStatus> mStatuses;
+  /** The cached version of each file, by backend path, sorted to find those under a path. */
+  private final ConcurrentNavigableMap<String, CachedFile> mFiles =
+      new ConcurrentSkipListMap<>();
+  private final AtomicLong mUsed = new AtomicLong();
+  private final AtomicLong mNextTmpId = new AtomicLong();
+  @GuardedBy("this")
+  private long mPinnedBytes;
+  @GuardedBy("this")
+  private final Map<String, Pin> mPins = new LinkedHashMap<>();
+  /** Lists the files of the pins one pin at a time. */
+  private final ExecutorService mLister;
+  private final ExecutorService mLoaders;
+  /** Bounds the blocks queued for preload. */
+  private final Semaphore mQueued;
+  private final Counter mHits;
+  private final Counter mMisses;
+  private final Counter mEvictions;
+  private final CacheIndex mIndex;
+  /** Writes the snapshots of the index. */
+  private final ScheduledExecutorService mSnapshots;
+  /** Evicts blocks in the background, off the lock that stores them. */
+  private final ExecutorService mEvictor;
+  private final AtomicBoolean mEvicting = new AtomicBoolean();
+  /** Holds the lock of the cache directory for the lifetime of the process. */
+  private final FileChannel mLock;
+  /** Held from setting the journal aside to the end of the snapshot that replaces it. */
+  private final Object mSnapshotLock = new Object();
+  private final AtomicBoolean mClosed = new AtomicBoolean();
+
+  /**
+   * Creates a cache, with the blocks left by a previous process if its index can be read.
+   *
+   * @param fileSystems supplies the backend clients of the store to list and preload with
+   * @param conf configuration
+   * @throws IOException if the cache directory cannot be set up or is used by another process
+   */
+  public LocalBlockCache(Supplier<FileSystem> fileSystems, Configuration conf)
+      throws IOException {
+    long blockSize = conf.getLongBytes(CACHE_BLOCK_SIZE, CACHE_BLOCK_SIZE_DEFAULT);
+    Preconditions.checkArgument(blockSize > 0 && blockSize <= Integer.MAX_VALUE,
+        "%s must be between 1 and %s: %s", CACHE_BLOCK_SIZE, Integer.MAX_VALUE, blockSize);
+    mFileSystems = fileSystems;
+    mBlockSize = (int) blockSize;
+    mCapacity = conf.getLongBytes(CACHE_CAPACITY, CACHE_CAPACITY_DEFAULT);
+    File dir = new File(conf.getTrimmed(CACHE_DIR, CACHE_DIR_DEFAULT));
+    mBlockDir = new File(dir, "blocks");
+    mTmpDir = new File(dir, "tmp");
+    File indexDir = new File(dir, "index");
+    long startMs = System.currentTimeMillis();
+    mLock = lock(dir);
+    mIndex = new CacheIndex(indexDir);
+    Map<String, CachedFile> recovered;
+    try {
+      deleteRecursively(mTmpDir);
+      try {
+        recovered = mIndex.recover(mBlockDir);
+      } catch (IOException e) {
+        LOG.warn("Failed to recover the cache index in {}, the cache starts empty: {}",
+            indexDir, e.toString());
+        deleteRecursively(mBlockDir);
+        deleteRecursively(indexDir);
+        recovered = Collections.emptyMap();
+      }
+      if (!(mBlockDir.isDirectory() || mBlockDir.mkdirs()) || !mTmpDir.mkdirs()
+          || !(indexDir.isDirectory() || indexDir.mkdirs())) {
+        throw new IOException("Failed to create cache directory " + dir);
+      }
+    } catch (IOException e) {
+      mLock.close();
+      throw e;
+    }
+    Map<String, CachedFile> byId = new HashMap<>();
+    for (CachedFile file : recovered.values()) {
+      mFiles.put(file.getPath(), file);
+      byId.put(file.getId(), file);
+      for (Block block : file.mBlocks.values()) {
+        mUsed.addAndGet(block.mSize);
+      }
+    }
+    LOG.info("Recovered {} cached files with {} bytes in {} ms", mFiles.size(), mUsed.get(),
+        System.currentTimeMillis() - startMs);
+    if (mIndex.hasRecords()) {
+      // compacts the replayed journals before the next journal replaces them
+      try {
+        mIndex.writeSnapshot(recovered.values());
+      } catch (IOException e) {
+        LOG.warn("Failed to write cache index snapshot: {}", e.toString());
+      }
+    }
+    try {
+      mIndex.startJournal();
+    } catch (IOException e) {
+      mLock.close();
+      throw e;
+    }
+    mStatuses = CacheBuilder.newBuilder()
+        .maximumSize(MAX_STATUSES)
+        .expireAfterWrite(STATUS_TTL_MS, TimeUnit.MILLISECONDS)
+        .build();
+    mLister = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("cache-preload-list-%d").build());
+    int threads =
+        Math.max(1, conf.getInt(CACHE_PRELOAD_THREADS, CACHE_PRELOAD_THREADS_DEFAULT));
+    mLoaders = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("cache-preload-%d").build());
+    mQueued = new Semaphore(threads * 2);
+    mEvictor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("cache-evict-%d").build());
+    mHits = mMetrics.counter("cache.hits");
+    mMisses = mMetrics.counter("cache.misses");
+    mEvictions = mMetrics.counter("cache.evictions");
+    mMetrics.register("cache.used", (Gauge<Long>) mUsed::get);
+    mMetrics.register("cache.pinned", (Gauge<Long>) this::getPinnedBytes);
+    mSnapshots = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("cache-index-%d").build());
+    mSnapshots.execute(() -> sweep(byId, startMs));
+    long interval =
+        conf.getLong(CACHE_INDEX_SNAPSHOT_INTERVAL_MS, CACHE_INDEX_SNAPSHOT_INTERVAL_MS_DEFAULT);
+    mSnapshots.scheduleWithFixedDelay(this::snapshot, interval, interval, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+  }
+
+  /**
+   * @return the metrics of the cache, for the registries of the mounts sharing it
+   */
+  public MetricRegistry getMetrics() {
+    return mMetrics;
+  }
+
+  /**
+   * Remembers the status of a file that may be opened next.
+   *
+   * @param uri the resolved path of the file
+   * @param status the status of the file
+   */
+  public void recordStatus(Path uri, FileStatus status) {
+    if (status.isFile()) {
+      mStatuses.put(key(uri), status);
+    } else {
+      mStatuses.invalidate(key(uri));
+    }
+  }
+
+  /**
+   * Looks up the cached version of a file that is being opened.
+   *
+   * @param uri the resolved path of the file
+   * @return the current version of the file, null if the path is not a file
+   */
+  @Nullable
+  public CachedFile open(Path uri) throws IOException {
+    String key = key(uri);
+    FileStatus status = mStatuses.getIfPresent(key);
+    if (status == null) {
+      status = mFileSystems.get().getFileStatus(uri);
+    }
+    return status.isFile() ? getFile(key, status) : null;
+  }
+
+  /**
+   * Reads a range of a file, block by block from the cache or from the backend on a miss.
+   *
+   * @param file the version of the file returned by {@link #open}
+   * @param in the stream of the file, its position is not changed
+   * @param offset the offset to read from
+   * @param dest the buffer to read into
+   * @param length the number of bytes to read
+   * @return the number of bytes read, 0 at the end of the file
+   */
+  public int read(CachedFile file, PositionedReadable in, long offset, byte[] dest, int length)
+      throws IOException {
+    int nread = 0;
+    while (nread < length && offset + nread < file.getLength()) {
+      long pos = offset + nread;
+      int index = (int) (pos / mBlockSize);
+      int blockOffset = (int) (pos % mBlockSize);
+      int n = Math.min(length - nread, getBlockSize(file, index) - blockOffset);
+      if (!readLocal(file, index, blockOffset, dest, nread, n)) {
+        byte[] block = fetch(file, in, index);
+        try {
+          store(file, index, block);
+        } catch (IOException e) {
+          LOG.warn("Failed to cache block {} of {}: {}", index, file.getPath(), e.toString());
+        }
+        System.arraycopy(block, blockOffset, dest, nread, n);
+      }
+      nread += n;
+    }
+    return nread;
+  }
+
+  /**
+   * Drops a cached file, after it was written or removed.
+   *
+   * @param uri the resolved path of the file
+   */
+  public void invalidate(Path uri) {
+    String key = key(uri);
+    mStatuses.invalidate(key);
+    CachedFile file = mFiles.get(key);
+    if (file != null) {
+      drop(file);
+    }
+  }
+
+  /**
+   * Drops the cached files at or under a path, after a directory was removed or a path was
+   * renamed.
+   *
+   * @param uri the resolved path
+   */
+  public void invalidateUnder(Path uri) {
+    invalidate(uri);
+    String key = key(uri);
+    String prefix = key.endsWith(Path.SEPARATOR) ? key : key + Path.SEPARATOR;
+    // the statuses only live for a second, but may still name files under the path
+    mStatuses.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+    for (CachedFile file : mFiles.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+      drop(file);
+    }
+  }
+
+  /**
+   * Pins a path and preloads the matching files. Pinning a path again reloads it, for
+   * instance after files were added to a pinned directory.
+   *
+   * @param path a backend path or glob, files under matching directories are pinned too
+   * @return the progress of the preload
+   * @throws IllegalArgumentException if the glob is invalid
+   */
+  public synchronized Preload pin(Path path) {
+    String pattern = key(path);
+    Pin pin = mPins.get(pattern);
+    if (pin != null && !pin.mPreload.getDone().isDone()) {
+      return pin.mPreload;
+    }
+    GlobPattern glob = new GlobPattern(pattern);
+    Pin added = new Pin(path, glob.hasWildcard() ? glob : null, new Preload(pattern));
+    mPins.put(pattern, added);
+    updatePinned();
+    mLister.execute(() -> list(added));
+    LOG.info("Pinned {}", pattern);
+    return added.mPreload;
+  }
+
+  /**
+   * Unpins a path and cancels its preload, its files may be evicted from then on.
+   *
+   * @param path the pinned backend path or glob
+   * @return whether the path was pinned
+   */
+  public synchronized boolean unpin(Path path) {
+    String pattern = key(path);
+    Pin pin = mPins.remove(pattern);
+    if (pin == null) {
+      return false;
+    }
+    pin.mPreload.cancel();
+    updatePinned();
+    if (mUsed.get() > mCapacity) {
+      scheduleEvict();
+    }
+    LOG.info("Unpinned {}", pattern);
+    return true;
+  }
+
+  /**
+   * @param path a pinned backend path or glob
+   * @return the preload of the pin, null if the path is not pinned
+   */
+  @Nullable
+  public synchronized Preload getPreload(Path path) {
+    Pin pin = mPins.get(key(path));
+    return pin == null ? null : pin.mPreload;
+  }
+
+  /**
+   * @param root the root of a mount
+   * @return the preloads of the pins at or under the root, in the order they were pinned
+   */
+  public synchronized List<Preload> getPreloads(Path root) {
+    String key = key(root);
+    String prefix = key.endsWith(Path.SEPARATOR) ? key : key + Path.SEPARATOR;
+    List<Preload> preloads = new ArrayList<>();
+    for (Map.Entry<String, Pin> e : mPins.entrySet()) {
+      if (e.getKey().equals(key) || e.getKey().startsWith(prefix)) {
+        preloads.add(e.getValue().mPreload);
+      }
+    }
+    return preloads;
+  }
+
+  /**
+   * @return the number of bytes of pinned blocks
+   */
+  public synchronized long getPinnedBytes() {
+    return mPinnedBytes;
+  }
+
+  private CachedFile getFile(String key, FileStatus status) {
+    CachedFile file = mFiles.get(key);
+    if (file != null && file.isVersion(status.getLen(), status.getModificationTime())) {
+      return file;
+    }
+    synchronized (this) {
+      file = mFiles.get(key);
+      if (file != null && file.isVersion(status.getLen(), status.getModificationTime())) {
+        return file;
+      }
+      if (file != null) {
+        drop(file);
+      }
+      file = new CachedFile(key, status.getLen(), status.getModificationTime());
+      file.mPinned = isPinned(key);
+      mFiles.put(key, file);
+      return file;
+    }
+  }
+
+  private int getBlockSize(CachedFile file, int index) {
+    return (int) Math.min(mBlockSize, file.getLength() - (long) index * mBlockSize);
+  }
+
+  /**
+   * @return whether the range was read from the cache, false on a miss
+   */
+  private boolean readLocal(CachedFile file, int index, int blockOffset, byte[] dest,
+      int destOffset, int length) {
+    Block block = file.mBlocks.get(index);
+    if (block == null) {
+      mMisses.inc();
+      return false;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(block.mFile, "r")) {
+      raf.seek(blockOffset);
+      raf.readFully(dest, destOffset, length);
+    } catch (IOException e) {
+      // the block was evicted meanwhile or the local disk failed
+      LOG.debug("Failed to read cached block {} of {}: {}", index, file.getPath(),
+          e.toString());
+      remove(file, block);
+      mMisses.inc();
+      return false;
+    }
+    block.mLastAccessMs = System.currentTimeMillis();
+    mHits.inc();
+    return true;
+  }
+
+  private byte[] fetch(CachedFile file, PositionedReadable in, int index) throws IOException {
+    byte[] block = new byte[getBlockSize(file, index)];
+    in.readFully((long) index * mBlockSize, block);
+    return block;
+  }
+
+  /**
+   * Stores a block fetched from the backend.
+   *
+   * @throws IOException if the block could not be written, or it is pinned and the pinned
+   *         blocks would exceed the capacity
+   */
+  private void store(CachedFile file, int index, byte[] data) throws IOException {
+    if (file.mBlocks.containsKey(index)) {
+      return;
+    }
+    File target = file.getBlockFile(mBlockDir, index);
+    File tmp = new File(mTmpDir, target.getName() + "." + mNextTmpId.incrementAndGet());
+    Files.write(tmp.toPath(), data);
+    synchronized (this) {
+      if (mFiles.get(file.getPath()) != file || file.mBlocks.containsKey(index)) {
+        // a newer version replaced the file or the block was stored concurrently
+        Files.deleteIfExists(tmp.toPath());
+        return;
+      }
+      if (file.mPinned && mPinnedBytes + data.length > mCapacity) {
+        Files.deleteIfExists(tmp.toPath());
+        throw new IOException("Pinned blocks exceed the cache capacity of " + mCapacity
+            + " bytes");
+      }
+      File parent = target.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        Files.deleteIfExists(tmp.toPath());
+        throw new IOException("Failed to create cache directory " + parent);
+      }
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      Block block = new Block(index, data.length, target);
+      file.mBlocks.put(index, block);
+      mIndex.added(file, block);
+      mUsed.addAndGet(data.length);
+      if (file.mPinned) {
+        mPinnedBytes += data.length;
+      }
+    }
+    if (mUsed.get() > mCapacity) {
+      scheduleEvict();
+    }
+  }
+
+  private synchronized void remove(CachedFile file, Block block) {
+    if (!file.mBlocks.remove(block.mIndex, block)) {
+      return;
+    }
+    mIndex.removed(file, block);
+    mUsed.addAndGet(-block.mSize);
+    if (file.mPinned) {
+      mPinnedBytes -= block.mSize;
+    }
+    if (!block.mFile.delete() && block.mFile.exists()) {
+      LOG.warn("Failed to delete cached block {}", block.mFile);
+    }
+  }
+
+  private synchronized void drop(CachedFile file) {
+    mFiles.remove(file.getPath(), file);
+    for (Block block : file.mBlocks.values()) {
+      remove(file, block);
+    }
+  }
+
+  private void scheduleEvict() {
+    if (!mClosed.get() && mEvicting.compareAndSet(false, true)) {
+      mEvictor.execute(this::evict);
+    }
+  }
+
+  /**
+   * Evicts the least recently read blocks that are not pinned. The candidates are picked
+   * without the lock, reads and stores go on meanwhile.
+   */
+  private void evict() {
+    boolean stuck = false;
+    try {
+      long target = (long) (mCapacity * EVICT_TARGET);
+      long excess;
+      while ((excess = mUsed.get() - target) > 0) {
+        // the least recently read blocks that free the excess, newest on top
+        PriorityQueue<Map.Entry<CachedFile, Block>> oldest = new PriorityQueue<>(
+            (a, b) -> Long.compare(b.getValue().mLastAccessMs, a.getValue().mLastAccessMs));
+        long bytes = 0;
+        for (CachedFile file : mFiles.values()) {
+          if (file.mPinned) {
+            continue;
+          }
+          for (Block block : file.mBlocks.values()) {
+            oldest.add(new SimpleImmutableEntry<>(file, block));
+            bytes += block.mSize;
+            while (bytes - oldest.peek().getValue().mSize >= excess) {
+              bytes -= oldest.poll().getValue().mSize;
+            }
+          }
+        }
+        if (oldest.isEmpty()) {
+          // everything left is pinned
+          stuck = true;
+          return;
+        }
+        for (Map.Entry<CachedFile, Block> candidate : oldest) {
+          if (!candidate.getKey().mPinned) {
+            remove(candidate.getKey(), candidate.getValue());
+            mEvictions.inc();
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      stuck = true;
+      LOG.warn("Failed to evict cached blocks: {}", e.toString());
+    } finally {
+      mEvicting.set(false);
+      // blocks stored after the last pass skipped scheduling while it ran
+      if (!stuck && mUsed.get() > mCapacity) {
+        scheduleEvict();
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private boolean isPinned(String key) {
+    for (Pin pin : mPins.values()) {
+      if (pin.matches(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Recomputes which files are pinned after the pins changed.
+   */
+  @GuardedBy("this")
+  private void updatePinned() {
+    long pinnedBytes = 0;
+    for (CachedFile file : mFiles.values()) {
+      file.mPinned = isPinned(file.getPath());
+      if (file.mPinned) {
+        for (Block block : file.mBlocks.values()) {
+          pinnedBytes += block.mSize;
+        }
+      }
+    }
+    mPinnedBytes = pinnedBytes;
+  }
+
+  /**
+   * Lists the files of a pin and queues their missing blocks.
+   */
+  private void list(Pin pin) {
+    Preload preload = pin.mPreload;
+    try {
+      FileSystem fs = mFileSystems.get();
+      FileStatus[] matches = pin.mGlob == null
+          ? new FileStatus[] {fs.getFileStatus(pin.mPath)} : fs.globStatus(pin.mPath);
+      Deque<FileStatus> pending = new ArrayDeque<>();
+      if (matches != null) {
+        pending.addAll(Arrays.asList(matches));
+      }
+      while (!pending.isEmpty() && !preload.isCancelled()) {
+        FileStatus status = pending.poll();
+        if (status.isDirectory()) {
+          pending.addAll(Arrays.asList(fs.listStatus(status.getPath())));
+        } else if (status.isFile()) {
+          load(preload, fs, status);
+        }
+      }
+    } catch (IOException e) {
+      LOG.error("Failed to list pinned path {}: ", preload.getPattern(), e);
+      preload.addFailedFile();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      preload.removePending();
+    }
+  }
+
+  private void load(Preload preload, FileSystem fs, FileStatus status)
+      throws InterruptedException {
+    CachedFile file = getFile(key(status.getPath()), status);
+    preload.addFile(status.getLen());
+    List<Integer> missing = new ArrayList<>();
+    int blocks = (int) ((status.getLen() + mBlockSize - 1) / mBlockSize);
+    for (int i = 0; i < blocks; i++) {
+      if (file.mBlocks.containsKey(i)) {
+        preload.addLoaded(getBlockSize(file, i));
+      } else {
+        missing.add(i);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    FileLoad load = new FileLoad(fs, status.getPath(), preload, missing.size());
+    for (int index : missing) {
+      mQueued.acquire();
+      preload.addPending();
+      mLoaders.execute(() -> loadBlock(load, file, index));
+    }
+  }
+
+  private void loadBlock(FileLoad load, CachedFile file, int index) {
+    Preload preload = load.mPreload;
+    try {
+      if (!preload.isCancelled() && !load.mFailed) {
+        if (!file.mBlocks.containsKey(index)) {
+          store(file, index, fetch(file, load.getIn(), index));
+        }
+        preload.addLoaded(getBlockSize(file, index));
+      }
+    } catch (IOException | RuntimeException e) {
+      if (!load.mFailed) {
+        load.mFailed = true;
+        preload.addFailedFile();
+        LOG.warn("Failed to preload {}: {}", load.mPath, e.toString());
+      }
+    } finally {
+      load.release();
+      mQueued.release();
+      preload.removePending();
+    }
+  }
+
+  /**
+   * Stops the background tasks, then writes the last snapshot of the index and releases the
+   * cache directory. Called on shutdown, later calls do nothing.
+   */
+  @Override
+  public void close() {
+    if (!mClosed.compareAndSet(false, true)) {
+      return;
+    }
+    mLister.shutdownNow();
+    mLoaders.shutdownNow();
+    mEvictor.shutdownNow();
+    mSnapshots.shutdownNow();
+    try {
+      // a scheduled snapshot may be running, the last one must not overlap it
+      long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+      for (ExecutorService executor : Arrays.asList(mSnapshots, mEvictor, mLoaders, mLister)) {
+        if (!executor.awaitTermination(
+            Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+          LOG.warn("Cache tasks still running after {} ms, writing the snapshot anyway",
+              CLOSE_TIMEOUT_MS);
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    snapshot();
+    try {
+      mIndex.close();
+      mLock.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close the cache index: {}", e.toString());
+    }
+  }
+
+  /**
+   * Compacts the journal of the index into a snapshot if anything changed.
+   */
+  private void snapshot() {
+    synchronized (mSnapshotLock) {
+      try {
+        synchronized (this) {
+          // blocks are journaled under this lock, so each record is in exactly one journal
+          if (!mIndex.startJournal()) {
+            return;
+          }
+        }
+        long start = System.currentTimeMillis();
+        mIndex.writeSnapshot(mFiles.values());
+        LOG.debug("Wrote cache index snapshot of {} files in {} ms", mFiles.size(),
+            System.currentTimeMillis() - start);
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Failed to write cache index snapshot: {}", e.toString());
+      }
+    }
+  }
+
+  /**
+   * Deletes the block files a previous process stored without recording them in the index.
+   *
+   * @param recovered the recovered files by id
+   * @param startMs when this process started, newer block files are left alone
+   */
+  private void sweep(Map<String, CachedFile> recovered, long startMs) {
+    File[] dirs = mBlockDir.listFiles();
+    if (dirs == null) {
+      return;
+    }
+    int swept = 0;
+    for (File dir : dirs) {
+      File[] blocks = dir.listFiles();
+      if (blocks == null) {
+        continue;
+      }
+      for (File block : blocks) {
+        if (block.lastModified() >= startMs) {
+          continue;
+        }
+        String name = block.getName();
+        int dash = name.lastIndexOf('-');
+        CachedFile file = dash < 0 ? null : recovered.get(name.substring(0, dash));
+        if (file == null || !isIndex(name.substring(dash + 1), file)) {
+          swept += block.delete() ? 1 : 0;
+        }
+      }
+    }
+    if (swept > 0) {
+      LOG.info("Deleted {} cached blocks missing from the cache index", swept);
+    }
+  }
+
+  private static boolean isIndex(String index, CachedFile file) {
+    try {
+      return file.mBlocks.containsKey(Integer.parseInt(index));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the backend path without scheme and authority, which keys the cached files
+   */
+  private static String key(Path uri) {
+    return uri.toUri().getPath();
+  }
+
+  /**
+   * Locks the cache directory, another process using it would delete, sweep and journal over
+   * the blocks of this one.
+   *
+   * @return the open channel of the lock file, which holds the lock until it is closed
+   */
+  private static FileChannel lock(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create cache directory " + dir);
+    }
+    FileChannel channel = FileChannel.open(new File(dir, "lock").toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // held by another mount of this process
+      lock = null;
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    if (lock == null) {
+      channel.close();
+      throw new IOException("Cache directory " + dir + " is used by another mount, set "
+          + CACHE_DIR + " to a directory of its own");
+    }
+    return channel;
+  }
+
+  private static void deleteRecursively(File file) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    Files.deleteIfExists(file.toPath());
+  }
+
+  /**
+   * A pinned path or glob.
+   */
+  private static final class Pin {
+    private final Path mPath;
+    /** Matches the pinned paths, null if the pin is a plain path. */
+    @Nullable
+    private final GlobPattern mGlob;
+    private final Preload mPreload;
+
+    Pin(Path path, @Nullable GlobPattern glob, Preload preload) {
+      mPath = path;
+      mGlob = glob;
+      mPreload = preload;
+    }
+
+    /**
+     * @return whether a file is pinned, because it or one of its directories matches
+     */
+    boolean matches(String key) {
+      if (mGlob == null) {
+        String path = key(mPath);
+        return key.equals(path) || key.startsWith(path.endsWith(Path.SEPARATOR)
+            ? path : path + Path.SEPARATOR);
+      }
+      for (String p = key; !p.isEmpty(); p = p.substring(0, Math.max(0, p.lastIndexOf('/')))) {
+        if (mGlob.matches(p)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * The blocks of one file being preloaded, which share a stream opened on first use.
+   */
+  private static final class FileLoad {
+    private final FileSystem mFs;
+    private final Path mPath;
+    private final Preload mPreload;
+    private final AtomicInteger mRemaining;
+    private volatile boolean mFailed;
+    @GuardedBy("this")
+    private FSDataInputStream mIn;
+
+    FileLoad(FileSystem fs, Path path, Preload preload, int blocks) {
+      mFs = fs;
+      mPath = path;
+      mPreload = preload;
+      mRemaining = new AtomicInteger(blocks);
+    }
+
+    synchronized FSDataInputStream getIn() throws IOException {
+      if (mIn == null) {
+        mIn = mFs.open(mPath);
+      }
+      return mIn;
+    }
+
+    /**
+     * Records a block that is done and closes the stream after the last one.
+     */
+    void release() {
+      if (mRemaining.decrementAndGet() > 0) {
+        return;
+      }
+      synchronized (this) {
+        if (mIn != null) {
+          try {
+            mIn.close();
+          } catch (IOException e) {
+            LOG.debug("Failed to close {}: {}", mPath, e.toString());
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package hcfsfuse.fuse.cache;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of loading a pinned path into the {@link LocalBlockCache}.
+ * <p>
+ * The files matching the pin are listed and their missing blocks fetched in parallel. The
+ * preload is done once the listing is complete and no block is pending, whether or not
+ * some of them failed.
+ */
+@ThreadSafe
+public final class Preload {
+  private final String mPattern;
+  private final AtomicInteger mFiles = new AtomicInteger();
+  private final AtomicInteger mFailedFiles = new AtomicInteger();
+  private final AtomicLong mBytes = new AtomicLong();
+  private final AtomicLong mLoadedBytes = new AtomicLong();
+  /** Blocks queued or being fetched, plus one while the files are being listed. */
+  private final AtomicInteger mPending = new AtomicInteger(1);
+  private final CompletableFuture<Preload> mDone = new CompletableFuture<>();
+  private volatile boolean mCancelled;
+
+  /**
+   * @param pattern the pinned backend path or glob
+   */
+  Preload(String pattern) {
+    mPattern = pattern;
+  }
+
+  /**
+   * @return the pinned backend path or glob
+   */
+  public String getPattern() {
+    return mPattern;
+  }
+
+  /**
+   * @return the number of files matched so far
+   */
+  public int getFiles() {
+    return mFiles.get();
+  }
+
+  /**
+   * @return the number of files that could not be loaded completely
+   */
+  public int getFailedFiles() {
+    return mFailedFiles.get();
+  }
+
+  /**
+   * @return the total size of the files matched so far
+   */
+  public long getBytes() {
+    return mBytes.get();
+  }
+
+  /**
+   * @return the number of bytes in the cache, including those that were already cached
+   */
+  public long getLoadedBytes() {
+    return mLoadedBytes.get();
+  }
+
+  /**
+   * @return completes with this preload when it is done or cancelled
+   */
+  public CompletableFuture<Preload> getDone() {
+    return mDone;
+  }
+
+  /**
+   * @return whether the preload was cancelled by unpinning its path
+   */
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  /**
+   * @return a one line summary of the progress
+   */
+  @Override
+  public String toString() {
+    String state = mCancelled ? "cancelled" : mDone.isDone() ? "done" : "loading";
+    return String.format("%s %s files=%d failed=%d bytes=%d/%d", mPattern, state, getFiles(),
+        getFailedFiles(), getLoadedBytes(), getBytes());
+  }
+
+  void addFile(long length) {
+    mFiles.incrementAndGet();
+    mBytes.addAndGet(length);
+  }
+
+  void addFailedFile() {
+    mFailedFiles.incrementAndGet();
+  }
+
+  void addLoaded(long bytes) {
+    mLoadedBytes.addAndGet(bytes);
+  }
+
+  void addPending() {
+    mPending.incrementAndGet();
+  }
+
+  /**
+   * Records a block that was fetched or given up on, or the end of the listing.
+   */
+  void removePending() {
+    if (mPending.decrementAndGet() == 0) {
+      mDone.complete(this);
+    }
+  }
+
+  void cancel() {
+    mCancelled = true;
+    mDone.complete(this);
+  }
+}
@@ -0,0 +1,311 @@
+package hcfsfuse.fuse.control;
+
+import alluxio.jnifuse.ErrorCodes;
+import alluxio.jnifuse.FuseFillDir;
+import alluxio.jnifuse.struct.FileStat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * A virtual directory at the mount root, served from memory, to inspect and control a
+ * running mount with plain file operations.
+ * <p>
+ * Files are either readable, their content is produced when they are looked up and served
+ * unchanged by the handles opened after that, or commands, the text written to them is run
+ * when the handle is flushed so that the result of the command is returned by
+ * {@code close()}. The directory is not listed in the mount root so that tools walking the
+ * mount do not descend into it, it is disabled by default as it hides a real directory of
+ * the same name.
+ */
+@ThreadSafe
+public final class ControlNamespace {
+  private static final Logger LOG = LoggerFactory.getLogger(ControlNamespace.class);
+  /** Fuse path of the control directory. */
+  public static final String ROOT = "/.hcfsfuse";
+
+  private final Map<String, Supplier<String>> mFiles = new ConcurrentSkipListMap<>();
+  private final Map<String, ToIntFunction<String>> mCommands = new ConcurrentSkipListMap<>();
+  private final Map<Long, Handle> mHandles = new ConcurrentHashMap<>();
+  /** Content of the readable files as last reported by getattr. */
+  private final Map<String, Snapshot> mSnapshots = new ConcurrentHashMap<>();
+  private final LongSupplier mUid;
+  private final LongSupplier mGid;
+  private final long mCreationTimeSec = System.currentTimeMillis() / 1000;
+
+  /**
+   * @param uid the owner of the control files
+   * @param gid the group of the control files
+   */
+  public ControlNamespace(LongSupplier uid, LongSupplier gid) {
+    mUid = uid;
+    mGid = gid;
+  }
+
+  /**
+   * Adds a readable file.
+   *
+   * @param name the file name
+   * @param content produces the content of the file
+   */
+  public void addFile(String name, Supplier<String> content) {
+    mFiles.put(name, content);
+  }
+
+  /**
+   * Adds a command file.
+   *
+   * @param name the file name
+   * @param command runs the command with the trimmed text written to the file, returns 0 or
+   *        a negative errno
+   */
+  public void addCommand(String name, ToIntFunction<String> command) {
+    mCommands.put(name, command);
+  }
+
+  /**
+   * @param path a fuse path
+   * @return whether the path is in the control namespace
+   */
+  public boolean contains(String path) {
+    return path.startsWith(ROOT)
+        && (path.length() == ROOT.length() || path.charAt(ROOT.length()) == '/');
+  }
+
+  /**
+   * @param fd a file handle
+   * @return whether the handle was opened in the control namespace
+   */
+  public boolean isHandle(long fd) {
+    return !mHandles.isEmpty() && mHandles.containsKey(fd);
+  }
+
+  /**
+   * @param path a path in the control namespace
+   * @param stat the stat to fill
+   * @return 0 on success, a negative errno on failure
+   */
+  public int getattr(String path, FileStat stat) {
+    String name = name(path);
+    long size = 0;
+    int mode;
+    if (name.isEmpty()) {
+      mode = FileStat.S_IFDIR | 0555;
+    } else if (mFiles.containsKey(name)) {
+      mode = FileStat.S_IFREG | 0444;
+      // the kernel reads no further than this size, open handles keep their snapshot
+      size = mSnapshots.compute(name,
+          (k, s) -> s != null && s.mOpen > 0 ? s : new Snapshot(content(k))).mContent.length;
+    } else if (mCommands.containsKey(name)) {
+      mode = FileStat.S_IFREG | 0200;
+    } else {
+      return -ErrorCodes.ENOENT();
+    }
+    stat.st_mode.set(mode);
+    stat.st_size.set(size);
+    stat.st_blocks.set((size + 511) / 512);
+    stat.st_nlink.set(1);
+    stat.st_uid.set(mUid.getAsLong());
+    stat.st_gid.set(mGid.getAsLong());
+    stat.st_ctim.tv_sec.set(mCreationTimeSec);
+    stat.st_mtim.tv_sec.set(mCreationTimeSec);
+    return 0;
+  }
+
+  /**
+   * @param path a path in the control namespace
+   * @param buff the fuse buffer
+   * @param filter the fuse filler
+   * @return 0 on success, a negative errno on failure
+   */
+  public int readdir(String path, long buff, long filter) {
+    if (!name(path).isEmpty()) {
+      return -ErrorCodes.ENOTDIR();
+    }
+    FuseFillDir.apply(filter, buff, ".", null, 0);
+    FuseFillDir.apply(filter, buff, "..", null, 0);
+    for (String name : mFiles.keySet()) {
+      FuseFillDir.apply(filter, buff, name, null, 0);
+    }
+    for (String name : mCommands.keySet()) {
+      FuseFillDir.apply(filter, buff, name, null, 0);
+    }
+    return 0;
+  }
+
+  /**
+   * Opens a file, readable files are served with the content whose size getattr reported.
+   *
+   * @param path a path in the control namespace
+   * @param fd the handle to open the file as
+   * @param flags the open flags
+   * @return 0 on success, a negative errno on failure
+   */
+  public int open(String path, long fd, int flags) {
+    String name = name(path);
+    boolean write = (flags & 0b11) != 0;
+    if (name.isEmpty()) {
+      return -ErrorCodes.EISDIR();
+    } else if (mFiles.containsKey(name)) {
+      if (write) {
+        return -ErrorCodes.EACCES();
+      }
+      Snapshot snapshot = mSnapshots.compute(name, (k, s) -> {
+        Snapshot opened = s != null ? s : new Snapshot(content(k));
+        opened.mOpen++;
+        return opened;
+      });
+      mHandles.put(fd, new Handle(name, snapshot.mContent));
+    } else if (mCommands.containsKey(name)) {
+      if (!write) {
+        return -ErrorCodes.EACCES();
+      }
+      mHandles.put(fd, new Handle(name, null));
+    } else {
+      return -ErrorCodes.ENOENT();
+    }
+    return 0;
+  }
+
+  /**
+   * @param fd a control handle
+   * @param buf the buffer to read into
+   * @param size the number of bytes to read
+   * @param offset the offset to read from
+   * @return the number of bytes read, or a negative errno
+   */
+  public int read(long fd, ByteBuffer buf, long size, long offset) {
+    Handle handle = mHandles.get(fd);
+    if (handle == null || handle.mContent == null) {
+      return -ErrorCodes.EBADFD();
+    }
+    byte[] content = handle.mContent;
+    if (offset >= content.length) {
+      return 0;
+    }
+    int length = (int) Math.min(size, content.length - offset);
+    buf.put(content, (int) offset, length);
+    return length;
+  }
+
+  /**
+   * @param fd a control handle
+   * @param buf the buffer to write from
+   * @param size the number of bytes to write
+   * @return the number of bytes written, or a negative errno
+   */
+  public int write(long fd, ByteBuffer buf, long size) {
+    Handle handle = mHandles.get(fd);
+    if (handle == null || handle.mInput == null) {
+      return -ErrorCodes.EBADFD();
+    }
+    byte[] data = new byte[(int) size];
+    buf.get(data);
+    synchronized (handle) {
+      handle.mInput.write(data, 0, data.length);
+    }
+    return (int) size;
+  }
+
+  /**
+   * Runs the command written to the handle so far.
+   *
+   * @param fd a control handle
+   * @return the result of the command
+   */
+  public int flush(long fd) {
+    Handle handle = mHandles.get(fd);
+    if (handle == null) {
+      return -ErrorCodes.EBADFD();
+    }
+    if (handle.mInput == null) {
+      return 0;
+    }
+    String input;
+    synchronized (handle) {
+      if (handle.mInput.size() == 0) {
+        return 0;
+      }
+      input = new String(handle.mInput.toByteArray(), StandardCharsets.UTF_8).trim();
+      handle.mInput.reset();
+    }
+    LOG.info("Running control command {} with '{}'", handle.mName, input);
+    try {
+      return mCommands.get(handle.mName).applyAsInt(input);
+    } catch (RuntimeException e) {
+      LOG.error("Control command {} failed", handle.mName, e);
+      return -ErrorCodes.EIO();
+    }
+  }
+
+  /**
+   * @param fd a control handle
+   * @return 0 on success, a negative errno on failure
+   */
+  public int release(long fd) {
+    // commands written without a flush still run
+    int ret = flush(fd);
+    Handle handle = mHandles.remove(fd);
+    if (handle != null && handle.mContent != null) {
+      mSnapshots.computeIfPresent(handle.mName, (k, s) -> {
+        s.mOpen--;
+        return s;
+      });
+    }
+    return ret;
+  }
+
+  private byte[] content(String name) {
+    try {
+      return mFiles.get(name).get().getBytes(StandardCharsets.UTF_8);
+    } catch (RuntimeException e) {
+      LOG.error("Failed to produce control file {}", name, e);
+      return ("error: " + e + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  private static String name(String path) {
+    return path.length() <= ROOT.length() + 1 ? "" : path.substring(ROOT.length() + 1);
+  }
+
+  /**
+   * The content of a readable file and the number of handles serving it.
+   */
+  private static final class Snapshot {
+    private final byte[] mContent;
+    /** Guarded by the bin of the file in {@link #mSnapshots}. */
+    private int mOpen;
+
+    Snapshot(byte[] content) {
+      mContent = content;
+    }
+  }
+
+  /**
+   * An open control file.
+   */
+  private static final class Handle {
+    private final String mName;
+    /** Snapshot of a readable file, null for commands. */
+    private final byte[] mContent;
+    /** Text written to a command, null for readable files. */
+    private final ByteArrayOutputStream mInput;
+
+    Handle(String name, byte[] content) {
+      mName = name;
+      mContent = content;
+      mInput = content == null ? new ByteArrayOutputStream() : null;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package hcfsfuse.fuse.inject;
+
+import hcfsfuse.fuse.inject.FaultInjector.Op;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.StorageStatistics;
+import org.apache.hadoop.fs.Syncable;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * A {@link FilterFileSystem} that runs every operation of the wrapped backend through a
+ * {@link FaultInjector}, so that caching, read-ahead and timeouts can be tested against the
+ * latencies of a remote store on a local one.
+ * <p>
+ * A root such as {@code slow+file:///tmp} mounts {@code file:///tmp} with the faults
+ * configured by the {@code hcfs.fuse.inject.*} keys.
+ */
+public class FaultInjectingFileSystem extends FilterFileSystem {
+  /** Prefix of the schemes of the roots to inject faults into. */
+  public static final String SCHEME_PREFIX = "slow+";
+
+  private final FaultInjector mInjector;
+
+  /**
+   * @param fs the backend
+   * @param injector the injector, shared by the clients of a mount
+   */
+  public FaultInjectingFileSystem(FileSystem fs, FaultInjector injector) {
+    super(fs);
+    mInjector = injector;
+  }
+
+  /**
+   * @param root a fuse root
+   * @return whether faults are injected into the root
+   */
+  public static boolean isFaultInjecting(Path root) {
+    String scheme = root.toUri().getScheme();
+    return scheme != null && scheme.startsWith(SCHEME_PREFIX);
+  }
+
+  /**
+   * @param root a fuse root with a {@link #SCHEME_PREFIX} scheme
+   * @return the root of the backend
+   */
+  public static Path unwrap(Path root) {
+    URI uri = root.toUri();
+    return new Path(uri.getScheme().substring(SCHEME_PREFIX.length()), uri.getAuthority(),
+        uri.getPath());
+  }
+
+  @Override
+  public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+    mInjector.before(Op.OPEN, f);
+    return new FSDataInputStream(new InjectingInputStream(fs.open(f, bufferSize), f));
+  }
+
+  @Override
+  public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite,
+      int bufferSize, short replication, long blockSize, Progressable progress)
+      throws IOException {
+    mInjector.before(Op.CREATE, f);
+    return wrap(fs.create(f, permission, overwrite, bufferSize, replication, blockSize,
+        progress), f);
+  }
+
+  @Override
+  public FSDataOutputStream append(Path f, int bufferSize, Progressable progress)
+      throws IOException {
+    mInjector.before(Op.APPEND, f);
+    return wrap(fs.append(f, bufferSize, progress), f);
+  }
+
+  @Override
+  public FileStatus getFileStatus(Path f) throws IOException {
+    mInjector.before(Op.GETATTR, f);
+    return fs.getFileStatus(f);
+  }
+
+  @Override
+  public FileStatus[] listStatus(Path f) throws IOException {
+    mInjector.before(Op.LIST, f);
+    return fs.listStatus(f);
+  }
+
+  @Override
+  public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+    mInjector.before(Op.MKDIRS, f);
+    return fs.mkdirs(f, permission);
+  }
+
+  @Override
+  public boolean delete(Path f, boolean recursive) throws IOException {
+    mInjector.before(Op.DELETE, f);
+    return fs.delete(f, recursive);
+  }
+
+  @Override
+  public boolean rename(Path src, Path dst) throws IOException {
+    mInjector.before(Op.RENAME, src);
+    return fs.rename(src, dst);
+  }
+
+  @Override
+  public void setPermission(Path p, FsPermission permission) throws IOException {
+    mInjector.before(Op.SETATTR, p);
+    fs.setPermission(p, permission);
+  }
+
+  @Override
+  public void setOwner(Path p, String username, String groupname) throws IOException {
+    mInjector.before(Op.SETATTR, p);
+    fs.setOwner(p, username, groupname);
+  }
+
+  @Override
+  public void setTimes(Path p, long mtime, long atime) throws IOException {
+    mInjector.before(Op.SETATTR, p);
+    fs.setTimes(p, mtime, atime);
+  }
+
+  @Override
+  public boolean truncate(Path f, long newLength) throws IOException {
+    mInjector.before(Op.SETATTR, f);
+    return fs.truncate(f, newLength);
+  }
+
+  @Override
+  public StorageStatistics getStorageStatistics() {
+    return fs.getStorageStatistics();
+  }
+
+  private FSDataOutputStream wrap(FSDataOutputStream out, Path f) {
+    return new FSDataOutputStream(new InjectingOutputStream(out, f), statistics, out.getPos());
+  }
+
+  /**
+   * Injects faults into the reads of a backend stream.
+   */
+  private final class InjectingInputStream extends FSInputStream implements IOStatisticsSource {
+    private final FSDataInputStream mIn;
+    private final Path mPath;
+
+    InjectingInputStream(FSDataInputStream in, Path path) {
+      mIn = in;
+      mPath = path;
+    }
+
+    @Override
+    public int read() throws IOException {
+      mInjector.before(Op.READ, mPath);
+      int b = mIn.read();
+      mInjector.transfer(Op.READ, b < 0 ? -1 : 1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      mInjector.before(Op.READ, mPath);
+      int n = mIn.read(b, off, len);
+      mInjector.transfer(Op.READ, n);
+      return n;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+      mInjector.before(Op.READ, mPath);
+      int n = mIn.read(position, buffer, offset, length);
+      mInjector.transfer(Op.READ, n);
+      return n;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length)
+        throws IOException {
+      mInjector.before(Op.READ, mPath);
+      mIn.readFully(position, buffer, offset, length);
+      mInjector.transfer(Op.READ, length);
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) throws IOException {
+      readFully(position, buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+      mIn.seek(pos);
+    }
+
+    @Override
+    public long getPos() throws IOException {
+      return mIn.getPos();
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+      return mIn.seekToNewSource(targetPos);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return mIn.available();
+    }
+
+    @Override
+    public IOStatistics getIOStatistics() {
+      return mIn.getIOStatistics();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        mInjector.before(Op.CLOSE, mPath);
+      } finally {
+        mIn.close();
+      }
+    }
+  }
+
+  /**
+   * Injects faults into the writes of a backend stream.
+   */
+  private final class InjectingOutputStream extends OutputStream
+      implements Syncable, IOStatisticsSource {
+    private final FSDataOutputStream mOut;
+    private final Path mPath;
+
+    InjectingOutputStream(FSDataOutputStream out, Path path) {
+      mOut = out;
+      mPath = path;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      mInjector.before(Op.WRITE, mPath);
+      mInjector.transfer(Op.WRITE, 1);
+      mOut.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      mInjector.before(Op.WRITE, mPath);
+      mInjector.transfer(Op.WRITE, len);
+      mOut.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      mOut.flush();
+    }
+
+    @Override
+    public void hflush() throws IOException {
+      mInjector.before(Op.FLUSH, mPath);
+      mOut.hflush();
+    }
+
+    @Override
+    public void hsync() throws IOException {
+      mInjector.before(Op.FLUSH, mPath);
+      mOut.hsync();
+    }
+
+    @Override
+    public IOStatistics getIOStatistics() {
+      return mOut.getIOStatistics();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        mInjector.before(Op.CLOSE, mPath);
+      } finally {
+        mOut.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package hcfsfuse.fuse.inject;
+
+import static hcfsfuse.fuse.Constants.INJECT_ERROR_RATE;
+import static hcfsfuse.fuse.Constants.INJECT_LATENCY;
+import static hcfsfuse.fuse.Constants.INJECT_READ_BANDWIDTH;
+import static hcfsfuse.fuse.Constants.INJECT_STALL_MS;
+import static hcfsfuse.fuse.Constants.INJECT_STALL_MS_DEFAULT;
+import static hcfsfuse.fuse.Constants.INJECT_STALL_RATE;
+import static hcfsfuse.fuse.Constants.INJECT_WRITE_BANDWIDTH;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Injects latencies, stalls, throttling errors and bandwidth caps into backend operations.
+ * One injector is shared by all the clients of a mount, so that the bandwidth caps apply to
+ * the mount as a whole like the network link of a remote store.
+ */
+@ThreadSafe
+public final class FaultInjector {
+  private static final Logger LOG = LoggerFactory.getLogger(FaultInjector.class);
+
+  /**
+   * Backend operations, the lower case name is the suffix of the per operation keys.
+   */
+  public enum Op {
+    OPEN,
+    CREATE,
+    APPEND,
+    GETATTR,
+    LIST,
+    MKDIRS,
+    DELETE,
+    RENAME,
+    SETATTR,
+    READ,
+    WRITE,
+    FLUSH,
+    CLOSE;
+
+    private final String mKey = name().toLowerCase(Locale.US);
+  }
+
+  private final Map<Op, LatencyDistribution> mLatencies = new EnumMap<>(Op.class);
+  private final Map<Op, Double> mErrorRates = new EnumMap<>(Op.class);
+  private final double mStallRate;
+  private final long mStallMs;
+  private final RateLimiter mReadBandwidth;
+  private final RateLimiter mWriteBandwidth;
+  private final AtomicLong mErrors = new AtomicLong();
+  private final AtomicLong mStalls = new AtomicLong();
+
+  /**
+   * @param conf configuration
+   */
+  public FaultInjector(Configuration conf) {
+    String defaultLatency = conf.getTrimmed(INJECT_LATENCY);
+    float defaultErrorRate = conf.getFloat(INJECT_ERROR_RATE, 0);
+    for (Op op : Op.values()) {
+      String latency = conf.getTrimmed(INJECT_LATENCY + "." + op.mKey, defaultLatency);
+      if (latency != null && !latency.isEmpty()) {
+        mLatencies.put(op, LatencyDistribution.parse(latency));
+      }
+      mErrorRates.put(op, (double) conf.getFloat(INJECT_ERROR_RATE + "." + op.mKey,
+          defaultErrorRate));
+    }
+    mStallRate = conf.getFloat(INJECT_STALL_RATE, 0);
+    mStallMs = conf.getLong(INJECT_STALL_MS, INJECT_STALL_MS_DEFAULT);
+    long readBandwidth = conf.getLongBytes(INJECT_READ_BANDWIDTH, 0);
+    long writeBandwidth = conf.getLongBytes(INJECT_WRITE_BANDWIDTH, 0);
+    mReadBandwidth = readBandwidth > 0 ? RateLimiter.create(readBandwidth) : null;
+    mWriteBandwidth = writeBandwidth > 0 ? RateLimiter.create(writeBandwidth) : null;
+    LOG.warn("Injecting faults into backend operations: latencies={}, error rates={}, "
+        + "stall rate={}, stall={}ms, read bandwidth={}, write bandwidth={}",
+        mLatencies.keySet(), mErrorRates, mStallRate, mStallMs, readBandwidth, writeBandwidth);
+  }
+
+  /**
+   * Delays, stalls or fails an operation before it is sent to the backend.
+   *
+   * @param op the operation
+   * @param path the path of the operation
+   */
+  public void before(Op op, Path path) throws IOException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (mStallRate > 0 && random.nextDouble() < mStallRate) {
+      mStalls.incrementAndGet();
+      LOG.debug("Stalling {} {} for {}ms", op.mKey, path, mStallMs);
+      sleep(TimeUnit.MILLISECONDS.toNanos(mStallMs));
+    }
+    LatencyDistribution latency = mLatencies.get(op);
+    if (latency != null) {
+      sleep(latency.sampleNanos());
+    }
+    double errorRate = mErrorRates.get(op);
+    if (errorRate > 0 && random.nextDouble() < errorRate) {
+      mErrors.incrementAndGet();
+      throw new IOException(String.format("Injected throttling error: 503 Slow Down, %s %s",
+          op.mKey, path));
+    }
+  }
+
+  /**
+   * Blocks until the bandwidth caps allow transferring the given number of bytes.
+   *
+   * @param op {@link Op#READ} or {@link Op#WRITE}
+   * @param bytes the number of bytes
+   */
+  public void transfer(Op op, int bytes) {
+    RateLimiter limiter = op == Op.READ ? mReadBandwidth : mWriteBandwidth;
+    if (limiter != null && bytes > 0) {
+      limiter.acquire(bytes);
+    }
+  }
+
+  /**
+   * @return the number of injected errors
+   */
+  public long getErrors() {
+    return mErrors.get();
+  }
+
+  /**
+   * @return the number of injected stalls
+   */
+  public long getStalls() {
+    return mStalls.get();
+  }
+
+  private static void sleep(long nanos) throws InterruptedIOException {
+    if (nanos <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while injecting latency");
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package hcfsfuse.fuse.inject;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of injected latencies, parsed from specs in milliseconds:
+ * <ul>
+ *   <li>{@code 5} or {@code constant(5)}: always 5ms</li>
+ *   <li>{@code uniform(2,10)}: uniformly between 2ms and 10ms</li>
+ *   <li>{@code exponential(5)}: exponentially with a mean of 5ms</li>
+ *   <li>{@code lognormal(5,0.5)}: log-normally with a median of 5ms and a sigma of 0.5, the
+ *   long tail of most remote stores</li>
+ * </ul>
+ */
+public abstract class LatencyDistribution {
+  /**
+   * @return a latency in nanoseconds
+   */
+  public abstract long sampleNanos();
+
+  /**
+   * @param spec the spec
+   * @return the distribution
+   */
+  public static LatencyDistribution parse(String spec) {
+    String s = spec.trim().toLowerCase(Locale.US);
+    int open = s.indexOf('(');
+    if (open < 0) {
+      return constant(Double.parseDouble(s));
+    }
+    Preconditions.checkArgument(s.endsWith(")"), "Malformed latency distribution %s", spec);
+    String name = s.substring(0, open).trim();
+    String[] args = s.substring(open + 1, s.length() - 1).split(",");
+    double[] values = new double[args.length];
+    for (int i = 0; i < args.length; i++) {
+      values[i] = Double.parseDouble(args[i].trim());
+    }
+    switch (name) {
+      case "constant":
+        Preconditions.checkArgument(values.length == 1, "constant takes one argument");
+        return constant(values[0]);
+      case "uniform": {
+        Preconditions.checkArgument(values.length == 2, "uniform takes two arguments");
+        long min = nanos(values[0]);
+        long max = nanos(values[1]);
+        Preconditions.checkArgument(min <= max, "Empty range in %s", spec);
+        return new LatencyDistribution() {
+          @Override
+          public long sampleNanos() {
+            return min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1);
+          }
+        };
+      }
+      case "exponential": {
+        Preconditions.checkArgument(values.length == 1, "exponential takes one argument");
+        long mean = nanos(values[0]);
+        return new LatencyDistribution() {
+          @Override
+          public long sampleNanos() {
+            return (long) (-mean * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+          }
+        };
+      }
+      case "lognormal": {
+        Preconditions.checkArgument(values.length == 2, "lognormal takes two arguments");
+        double mu = Math.log(nanos(values[0]));
+        double sigma = values[1];
+        return new LatencyDistribution() {
+          @Override
+          public long sampleNanos() {
+            return (long) Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+          }
+        };
+      }
+      default:
+        throw new IllegalArgumentException("Unknown latency distribution " + spec);
+    }
+  }
+
+  private static LatencyDistribution constant(double millis) {
+    long value = nanos(millis);
+    return new LatencyDistribution() {
+      @Override
+      public long sampleNanos() {
+        return value;
+      }
+    };
+  }
+
+  private static long nanos(double millis) {
+    Preconditions.checkArgument(millis >= 0, "Negative latency %s", millis);
+    return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+  }
+}
@@ -0,0 +1,215 @@
+package hcfsfuse.fuse.io;
+
+import static hcfsfuse.fuse.Constants.EXECUTOR_BULK_MAX_DEFER_MS;
+import static hcfsfuse.fuse.Constants.EXECUTOR_BULK_MAX_DEFER_MS_DEFAULT;
+import static hcfsfuse.fuse.Constants.EXECUTOR_BULK_THREADS;
+import static hcfsfuse.fuse.Constants.EXECUTOR_BULK_THREADS_DEFAULT;
+import static hcfsfuse.fuse.Constants.EXECUTOR_CALL_TIMEOUT_MS;
+import static hcfsfuse.fuse.Constants.EXECUTOR_CALL_TIMEOUT_MS_DEFAULT;
+import static hcfsfuse.fuse.Constants.EXECUTOR_METADATA_THREADS;
+import static hcfsfuse.fuse.Constants.EXECUTOR_METADATA_THREADS_DEFAULT;
+import static hcfsfuse.fuse.Constants.EXECUTOR_QUEUE_SIZE;
+import static hcfsfuse.fuse.Constants.EXECUTOR_QUEUE_SIZE_DEFAULT;
+import static hcfsfuse.fuse.Constants.EXECUTOR_SMALL_READ_THREADS;
+import static hcfsfuse.fuse.Constants.EXECUTOR_SMALL_READ_THREADS_DEFAULT;
+
+import alluxio.jnifuse.ErrorCodes;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * Bounded executors that run backend work of fuse callbacks, one per kind of work.
+ * <p>
+ * Metadata operations get strict priority over bulk streaming: a bulk task that is about to
+ * start is held back while metadata operations are pending, up to a configurable limit so
+ * that bulk transfers are never starved completely.
+ * <p>
+ * The fuse thread still waits for the result of its task, the executors bound and order the
+ * backend work rather than free the fuse threads. The wait is bounded: past a timeout the
+ * callback fails with EIO and the task is left to finish, as interrupting a backend client
+ * may break connections it shares. A callback whose executor has a full queue fails with
+ * EAGAIN instead of running its work on the fuse thread.
+ */
+@ThreadSafe
+public final class BackendExecutors {
+  private static final Logger LOG = LoggerFactory.getLogger(BackendExecutors.class);
+  private static final long DEFER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  /**
+   * Kind of backend work.
+   */
+  public enum Kind {
+    METADATA("metadata"),
+    SMALL_READ("small.read"),
+    BULK("bulk");
+
+    private final String mName;
+
+    Kind(String name) {
+      mName = name;
+    }
+
+    /**
+     * @return the name used in thread and metric names
+     */
+    public String getName() {
+      return mName;
+    }
+  }
+
+  private final Map<Kind, ThreadPoolExecutor> mExecutors = new EnumMap<>(Kind.class);
+  private final Map<Kind, Timer> mLatency = new EnumMap<>(Kind.class);
+  private final Map<Kind, Timer> mQueueWait = new EnumMap<>(Kind.class);
+  private final Map<Kind, Counter> mRejected = new EnumMap<>(Kind.class);
+  private final Map<Kind, Counter> mTimeouts = new EnumMap<>(Kind.class);
+  /** Number of metadata tasks that are queued or running. */
+  private final AtomicInteger mPendingMetadata = new AtomicInteger(0);
+  private final long mMaxDeferNanos;
+  private final long mTimeoutMs;
+
+  /**
+   * @param conf configuration
+   * @param metrics registry to publish executor metrics to
+   */
+  public BackendExecutors(Configuration conf, MetricRegistry metrics) {
+    int queueSize = conf.getInt(EXECUTOR_QUEUE_SIZE, EXECUTOR_QUEUE_SIZE_DEFAULT);
+    mMaxDeferNanos = TimeUnit.MILLISECONDS.toNanos(
+        conf.getLong(EXECUTOR_BULK_MAX_DEFER_MS, EXECUTOR_BULK_MAX_DEFER_MS_DEFAULT));
+    mTimeoutMs = conf.getLong(EXECUTOR_CALL_TIMEOUT_MS, EXECUTOR_CALL_TIMEOUT_MS_DEFAULT);
+    add(Kind.METADATA,
+        conf.getInt(EXECUTOR_METADATA_THREADS, EXECUTOR_METADATA_THREADS_DEFAULT),
+        queueSize, metrics);
+    add(Kind.SMALL_READ,
+        conf.getInt(EXECUTOR_SMALL_READ_THREADS, EXECUTOR_SMALL_READ_THREADS_DEFAULT),
+        queueSize, metrics);
+    add(Kind.BULK,
+        conf.getInt(EXECUTOR_BULK_THREADS, EXECUTOR_BULK_THREADS_DEFAULT),
+        queueSize, metrics);
+  }
+
+  private void add(Kind kind, int threads, int queueSize, MetricRegistry metrics) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(queueSize),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("backend-" + kind.getName() + "-%d").build());
+    executor.allowCoreThreadTimeOut(true);
+    mExecutors.put(kind, executor);
+    String prefix = "executor." + kind.getName();
+    metrics.register(prefix + ".queue.depth",
+        (Gauge<Integer>) () -> executor.getQueue().size());
+    metrics.register(prefix + ".active", (Gauge<Integer>) executor::getActiveCount);
+    mLatency.put(kind, metrics.timer(prefix + ".latency"));
+    mQueueWait.put(kind, metrics.timer(prefix + ".queue.wait"));
+    mRejected.put(kind, metrics.counter(prefix + ".rejected"));
+    mTimeouts.put(kind, metrics.counter(prefix + ".timeouts"));
+  }
+
+  /**
+   * Runs the task on the executor of the given kind and waits for its result.
+   *
+   * @param kind the kind of work
+   * @param task the task, returns 0 or a positive value on success and a negative errno
+   *        on failure like the fuse callbacks do
+   * @return the result of the task, EAGAIN if the queue is full or EIO if it timed out
+   */
+  public int call(Kind kind, IntSupplier task) {
+    final long submitted = System.nanoTime();
+    if (kind == Kind.METADATA) {
+      mPendingMetadata.incrementAndGet();
+    }
+    // taken by the task when it starts or by the caller when it gives up waiting for it
+    AtomicBoolean claimed = new AtomicBoolean();
+    Future<Integer> future;
+    try {
+      future = mExecutors.get(kind).submit(() -> {
+        if (!claimed.compareAndSet(false, true)) {
+          return -ErrorCodes.EIO();
+        }
+        return run(kind, task, submitted);
+      });
+    } catch (RejectedExecutionException e) {
+      unclaimed(kind, claimed);
+      mRejected.get(kind).inc();
+      return -ErrorCodes.EAGAIN();
+    }
+    try {
+      return future.get(mTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // a task that did not start yet never will
+      future.cancel(false);
+      unclaimed(kind, claimed);
+      mTimeouts.get(kind).inc();
+      LOG.warn("Backend {} task timed out after {} ms", kind.getName(), mTimeoutMs);
+      return -ErrorCodes.EIO();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return -ErrorCodes.EINTR();
+    } catch (ExecutionException e) {
+      LOG.error("Backend {} task failed", kind.getName(), e.getCause());
+      return -ErrorCodes.EIO();
+    } finally {
+      mLatency.get(kind).update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private int run(Kind kind, IntSupplier task, long submitted) {
+    long started = System.nanoTime();
+    mQueueWait.get(kind).update(started - submitted, TimeUnit.NANOSECONDS);
+    try {
+      if (kind == Kind.BULK) {
+        deferToMetadata(started);
+      }
+      return task.getAsInt();
+    } finally {
+      if (kind == Kind.METADATA) {
+        mPendingMetadata.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Stops counting a metadata task that will not run.
+   */
+  private void unclaimed(Kind kind, AtomicBoolean claimed) {
+    if (claimed.compareAndSet(false, true) && kind == Kind.METADATA) {
+      mPendingMetadata.decrementAndGet();
+    }
+  }
+
+  private void deferToMetadata(long started) {
+    while (mPendingMetadata.get() > 0 && System.nanoTime() - started < mMaxDeferNanos) {
+      LockSupport.parkNanos(DEFER_PARK_NANOS);
+    }
+  }
+
+  /**
+   * Shuts the executors down on unmount, queued and running tasks are allowed to complete.
+   */
+  public void shutdown() {
+    for (ThreadPoolExecutor executor : mExecutors.values()) {
+      executor.shutdown();
+    }
+  }
+}
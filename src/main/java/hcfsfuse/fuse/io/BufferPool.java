@@ -0,0 +1,71 @@
+package hcfsfuse.fuse.io;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of byte buffers of one size. Released buffers are reused instead of being
+ * left to the garbage collector, and no more buffers are handed out than fit in the memory
+ * limit.
+ */
+@ThreadSafe
+public final class BufferPool {
+  private final int mBufferSize;
+  private final int mMaxBuffers;
+  private final Queue<byte[]> mFree = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger mAllocated = new AtomicInteger();
+  private final AtomicInteger mUsed = new AtomicInteger();
+
+  /**
+   * @param bufferSize the size of each buffer
+   * @param maxBytes the max memory of all buffers
+   */
+  public BufferPool(int bufferSize, long maxBytes) {
+    mBufferSize = bufferSize;
+    mMaxBuffers = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / bufferSize));
+  }
+
+  /**
+   * @return a buffer, null if all buffers the memory limit allows are in use
+   */
+  @Nullable
+  public byte[] acquire() {
+    byte[] buf = mFree.poll();
+    if (buf == null) {
+      if (mAllocated.incrementAndGet() > mMaxBuffers) {
+        mAllocated.decrementAndGet();
+        return null;
+      }
+      buf = new byte[mBufferSize];
+    }
+    mUsed.incrementAndGet();
+    return buf;
+  }
+
+  /**
+   * Returns a buffer to the pool.
+   *
+   * @param buf a buffer acquired from this pool
+   */
+  public void release(byte[] buf) {
+    mUsed.decrementAndGet();
+    mFree.offer(buf);
+  }
+
+  /**
+   * @return the size of each buffer
+   */
+  public int getBufferSize() {
+    return mBufferSize;
+  }
+
+  /**
+   * @return the number of buffers in use
+   */
+  public int getUsed() {
+    return mUsed.get();
+  }
+}
@@ -0,0 +1,247 @@
+package hcfsfuse.fuse.io;
+
+import static hcfsfuse.fuse.Constants.READ_HEDGE_BUDGET_PERCENT;
+import static hcfsfuse.fuse.Constants.READ_HEDGE_BUDGET_PERCENT_DEFAULT;
+import static hcfsfuse.fuse.Constants.READ_HEDGE_MIN_DELAY_MS;
+import static hcfsfuse.fuse.Constants.READ_HEDGE_MIN_DELAY_MS_DEFAULT;
+import static hcfsfuse.fuse.Constants.READ_HEDGE_PERCENTILE;
+import static hcfsfuse.fuse.Constants.READ_HEDGE_PERCENTILE_DEFAULT;
+import static hcfsfuse.fuse.Constants.READ_HEDGE_THREADS;
+import static hcfsfuse.fuse.Constants.READ_HEDGE_THREADS_DEFAULT;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Issues positional reads and, when a read takes longer than a percentile of the recent
+ * read latency, sends a duplicate read of the same range on a second stream. Whichever read
+ * completes first is used, the other one is left to finish in the background. Each read
+ * fills its own buffer, so the one left behind never writes into the data returned.
+ * <p>
+ * The number of hedged reads is capped to a percentage of the recent reads with a token
+ * bucket, so a backend that is slow across the board does not get twice the load. Hedge reads
+ * only run on an idle hedge thread, a hedge that finds none is dropped and the read waits for
+ * the first attempt.
+ */
+@ThreadSafe
+public final class HedgedReader implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(HedgedReader.class);
+  /** Most hedges that can be issued back to back after a quiet period. */
+  private static final double MAX_HEDGE_TOKENS = 10;
+
+  /** Runs the first attempt of every read, bounded by the number of fuse threads. */
+  private final ThreadPoolExecutor mExecutor;
+  /** Runs hedge reads, rejects them when all of its threads are busy. */
+  private final ThreadPoolExecutor mHedgeExecutor;
+  private final LatencyTracker mLatency;
+  private final long mMinDelayNanos;
+  private final double mBudgetPercent;
+  @GuardedBy("this")
+  private double mHedgeTokens = 1;
+  private final Meter mReads;
+  private final Meter mHedges;
+  private final Meter mHedgeWins;
+
+  /**
+   * @param conf configuration
+   * @param metrics registry to publish hedge metrics to
+   */
+  public HedgedReader(Configuration conf, MetricRegistry metrics) {
+    int threads = conf.getInt(READ_HEDGE_THREADS, READ_HEDGE_THREADS_DEFAULT);
+    // each fuse thread waits on one read at a time, so the queue of first attempts is bounded
+    mExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hedged-read-%d").build());
+    mExecutor.allowCoreThreadTimeOut(true);
+    mHedgeExecutor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hedge-read-%d").build(),
+        new ThreadPoolExecutor.AbortPolicy());
+    mLatency = new LatencyTracker(
+        conf.getDouble(READ_HEDGE_PERCENTILE, READ_HEDGE_PERCENTILE_DEFAULT));
+    mMinDelayNanos = TimeUnit.MILLISECONDS.toNanos(
+        conf.getLong(READ_HEDGE_MIN_DELAY_MS, READ_HEDGE_MIN_DELAY_MS_DEFAULT));
+    mBudgetPercent = conf.getDouble(READ_HEDGE_BUDGET_PERCENT,
+        READ_HEDGE_BUDGET_PERCENT_DEFAULT);
+    mReads = metrics.meter("read.hedge.candidates");
+    mHedges = metrics.meter("read.hedge.issued");
+    mHedgeWins = metrics.meter("read.hedge.won");
+    metrics.register("read.hedge.rate", new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(mHedges.getCount(), mReads.getCount());
+      }
+    });
+    metrics.register("read.hedge.win.rate", new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(mHedgeWins.getCount(), mHedges.getCount());
+      }
+    });
+  }
+
+  /**
+   * Reads up to {@code length} bytes at {@code position}, hedging the read if it is slow.
+   *
+   * @param primary the stream of the open handle
+   * @param secondary supplies the stream used for the hedge read, opened on first use
+   * @param position the position in the file
+   * @param dest the destination buffer, filled from index 0
+   * @param length number of bytes to read
+   * @param unfinished receives the reads still running when this one returns, they use the
+   *        streams and must complete before the streams are closed
+   * @return the number of bytes read, 0 on EOF
+   */
+  public int read(FSDataInputStream primary, Callable<FSDataInputStream> secondary,
+      long position, byte[] dest, int length, Consumer<Future<?>> unfinished)
+      throws IOException {
+    mReads.mark();
+    depositHedgeToken();
+    final long start = System.nanoTime();
+    // both attempts report to the same queue so the first one done can be taken
+    BlockingQueue<Future<Integer>> done = new LinkedBlockingQueue<>();
+    final byte[] firstDest = new byte[length];
+    Future<Integer> first = new ExecutorCompletionService<Integer>(mExecutor, done)
+        .submit(() -> readFully(primary, position, firstDest, length));
+    Future<Integer> hedge = null;
+    try {
+      if (done.poll(hedgeDelayNanos(), TimeUnit.NANOSECONDS) != null || !tryAcquireHedge()) {
+        return complete(first, firstDest, dest, start);
+      }
+      FSDataInputStream second;
+      try {
+        second = secondary.call();
+      } catch (Exception e) {
+        LOG.debug("Failed to open hedge stream, waiting for the first read", e);
+        refundHedgeToken();
+        return complete(first, firstDest, dest, start);
+      }
+      final byte[] hedgeDest = new byte[length];
+      try {
+        hedge = new ExecutorCompletionService<Integer>(mHedgeExecutor, done)
+            .submit(() -> readFully(second, position, hedgeDest, length));
+      } catch (RejectedExecutionException e) {
+        // no idle hedge thread, never run the hedge on the caller
+        refundHedgeToken();
+        return complete(first, firstDest, dest, start);
+      }
+      mHedges.mark();
+      Future<Integer> winner = done.take();
+      Future<Integer> loser = winner == hedge ? first : hedge;
+      try {
+        int n = complete(winner, winner == hedge ? hedgeDest : firstDest, dest, start);
+        if (winner == hedge) {
+          mHedgeWins.mark();
+        }
+        unfinished.accept(loser);
+        return n;
+      } catch (IOException e) {
+        // the faster read failed, fall back to whatever the other one returns
+        LOG.debug("{} read failed at {}, waiting for the other one",
+            winner == hedge ? "Hedge" : "First", position, e);
+        done.take();
+        int n = complete(loser, loser == hedge ? hedgeDest : firstDest, dest, start);
+        if (loser == hedge) {
+          mHedgeWins.mark();
+        }
+        return n;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      unfinished.accept(first);
+      if (hedge != null) {
+        unfinished.accept(hedge);
+      }
+      throw new InterruptedIOException("Interrupted while reading at " + position);
+    }
+  }
+
+  /**
+   * Takes the result of a completed read and records its latency.
+   */
+  private int complete(Future<Integer> future, byte[] src, byte[] dest, long start)
+      throws IOException, InterruptedException {
+    int n = unwrap(future);
+    mLatency.record(System.nanoTime() - start);
+    System.arraycopy(src, 0, dest, 0, Math.max(n, 0));
+    return n;
+  }
+
+  private long hedgeDelayNanos() {
+    return Math.max(mMinDelayNanos, mLatency.getPercentileNanos());
+  }
+
+  /**
+   * Every read earns a fraction of a hedge, so hedges stay within the budget of the recent
+   * reads rather than of all reads since the mount.
+   */
+  private synchronized void depositHedgeToken() {
+    mHedgeTokens = Math.min(MAX_HEDGE_TOKENS, mHedgeTokens + mBudgetPercent / 100);
+  }
+
+  private synchronized boolean tryAcquireHedge() {
+    if (mHedgeTokens < 1) {
+      return false;
+    }
+    mHedgeTokens--;
+    return true;
+  }
+
+  private synchronized void refundHedgeToken() {
+    mHedgeTokens = Math.min(MAX_HEDGE_TOKENS, mHedgeTokens + 1);
+  }
+
+  @Override
+  public void close() {
+    mExecutor.shutdownNow();
+    mHedgeExecutor.shutdownNow();
+  }
+
+  private static int unwrap(Future<Integer> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static int readFully(PositionedReadable in, long position, byte[] dest, int length)
+      throws IOException {
+    int nread = 0;
+    while (nread < length) {
+      int rd = in.read(position + nread, dest, nread, length - nread);
+      if (rd < 0) {
+        break;
+      }
+      nread += rd;
+    }
+    return nread;
+  }
+}
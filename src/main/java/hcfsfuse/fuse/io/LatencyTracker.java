@@ -0,0 +1,60 @@
+package hcfsfuse.fuse.io;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a window of recent latency samples and answers percentile queries.
+ * <p>
+ * The percentile is recomputed every {@link #RECOMPUTE_INTERVAL} samples, so a query is
+ * a single volatile read on the hot path.
+ */
+@ThreadSafe
+public final class LatencyTracker {
+  private static final int WINDOW_SIZE = 1024;
+  private static final int RECOMPUTE_INTERVAL = 64;
+
+  private final long[] mSamples = new long[WINDOW_SIZE];
+  private final AtomicLong mCount = new AtomicLong(0);
+  private final double mPercentile;
+  private volatile long mPercentileNanos = -1;
+
+  /**
+   * @param percentile the percentile to track, in (0, 100]
+   */
+  public LatencyTracker(double percentile) {
+    if (percentile <= 0 || percentile > 100) {
+      throw new IllegalArgumentException("Invalid percentile " + percentile);
+    }
+    mPercentile = percentile;
+  }
+
+  /**
+   * Records a latency sample.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long n = mCount.getAndIncrement();
+    // racy writes to the window are fine, a lost sample does not matter here
+    mSamples[(int) (n % WINDOW_SIZE)] = nanos;
+    if ((n + 1) % RECOMPUTE_INTERVAL == 0) {
+      recompute(Math.min(n + 1, WINDOW_SIZE));
+    }
+  }
+
+  /**
+   * @return the tracked percentile in nanoseconds, or -1 if there are not enough samples yet
+   */
+  public long getPercentileNanos() {
+    return mPercentileNanos;
+  }
+
+  private void recompute(long size) {
+    long[] copy = Arrays.copyOf(mSamples, (int) size);
+    Arrays.sort(copy);
+    int index = (int) Math.ceil(mPercentile / 100 * size) - 1;
+    mPercentileNanos = copy[Math.max(0, Math.min(index, copy.length - 1))];
+  }
+}
@@ -0,0 +1,369 @@
+package hcfsfuse.fuse.io;
+
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_MEMORY;
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_MEMORY_DEFAULT;
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_RANGE_SIZE;
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_RANGE_SIZE_DEFAULT;
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_STREAMS;
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_STREAMS_DEFAULT;
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_THREADS;
+import static hcfsfuse.fuse.Constants.READ_PARALLEL_THREADS_DEFAULT;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches large sequential reads as ranges over several backend streams in parallel, since
+ * one stream is one connection and tops out far below the link speed of high latency
+ * stores.
+ * <p>
+ * Each handle read sequentially gets a {@link Window} of ranges fetched ahead of its reads,
+ * one range per stream, which are consumed in order and replaced by the next ones. The last
+ * range consumed is kept until a read starts past it, since fuse sends readahead reads
+ * concurrently and adjacent reads can arrive out of order. A read that jumps out of the
+ * window drops it and is served by the handle stream. The ranges of all handles share a
+ * memory budget, a handle that gets no buffer is read through its own stream.
+ */
+@ThreadSafe
+public final class ParallelReader implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ParallelReader.class);
+  /** Returned by {@link Window#read} when the read is to be served by the handle stream. */
+  public static final int NOT_SERVED = Integer.MIN_VALUE;
+
+  private final ExecutorService mExecutor;
+  private final BufferPool mBuffers;
+  private final int mStreams;
+  private final int mRangeSize;
+  private final Meter mRanges;
+  private final Counter mFallbacks;
+
+  /**
+   * @param conf configuration
+   * @param metrics registry to publish the parallel read metrics to
+   */
+  public ParallelReader(Configuration conf, MetricRegistry metrics) {
+    long rangeSize = conf.getLongBytes(READ_PARALLEL_RANGE_SIZE, READ_PARALLEL_RANGE_SIZE_DEFAULT);
+    Preconditions.checkArgument(rangeSize > 0 && rangeSize <= Integer.MAX_VALUE,
+        "%s must be between 1 and %s: %s", READ_PARALLEL_RANGE_SIZE, Integer.MAX_VALUE,
+        rangeSize);
+    mRangeSize = (int) rangeSize;
+    mStreams = Math.max(1, conf.getInt(READ_PARALLEL_STREAMS, READ_PARALLEL_STREAMS_DEFAULT));
+    mBuffers = new BufferPool(mRangeSize,
+        conf.getLongBytes(READ_PARALLEL_MEMORY, READ_PARALLEL_MEMORY_DEFAULT));
+    int threads = Math.max(1, conf.getInt(READ_PARALLEL_THREADS, READ_PARALLEL_THREADS_DEFAULT));
+    mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("parallel-read-%d").build());
+    mRanges = metrics.meter("read.parallel.ranges");
+    mFallbacks = metrics.counter("read.parallel.fallbacks");
+    metrics.register("read.parallel.buffers.used", (Gauge<Integer>) mBuffers::getUsed);
+  }
+
+  /**
+   * Creates the window of a handle.
+   *
+   * @param opener opens another backend stream of the file of the handle
+   * @return the window, to close with the handle
+   */
+  public Window open(Callable<FSDataInputStream> opener) {
+    return new Window(opener);
+  }
+
+  /**
+   * Stops the range fetches, on unmount.
+   */
+  @Override
+  public void close() {
+    mExecutor.shutdownNow();
+  }
+
+  /**
+   * The ranges fetched ahead for one handle and the streams fetching them.
+   */
+  @ThreadSafe
+  public final class Window implements Closeable {
+    private final Callable<FSDataInputStream> mOpener;
+    @GuardedBy("this")
+    private final Deque<Range> mWindow = new ArrayDeque<>();
+    /** The last range consumed, for reads arriving after the one that went past it. */
+    @GuardedBy("this")
+    private Range mPrevious;
+    /**
+     * Streams not fetching a range. The streams are shared with the fetch tasks without the
+     * window lock, which is held by reads waiting for the tasks.
+     */
+    private final Queue<FSDataInputStream> mIdle = new ConcurrentLinkedQueue<>();
+    private final List<FSDataInputStream> mOpened = new CopyOnWriteArrayList<>();
+    /** Offset of the next range to fetch. */
+    @GuardedBy("this")
+    private long mNext;
+    /** The end of the file once a range came back short. */
+    @GuardedBy("this")
+    private long mEnd = Long.MAX_VALUE;
+    private volatile boolean mClosed;
+
+    private Window(Callable<FSDataInputStream> opener) {
+      mOpener = opener;
+    }
+
+    /**
+     * Reads from the ranges fetched ahead, fetching the next ones.
+     *
+     * @param offset the offset to read from
+     * @param dest the buffer to read into, filled from index 0
+     * @param length the number of bytes to read
+     * @return the number of bytes read, 0 at the end of the file, or {@link #NOT_SERVED} if
+     *         the read is to be served by the handle stream
+     */
+    public synchronized int read(long offset, byte[] dest, int length) {
+      if (mClosed) {
+        return NOT_SERVED;
+      }
+      Range first = mPrevious != null ? mPrevious : mWindow.peekFirst();
+      if (first == null) {
+        reset(offset);
+      } else if (offset < first.mStart || offset >= mNext) {
+        // a jump is served by the handle stream, the window restarts if reads go on from there
+        reset(offset);
+        return NOT_SERVED;
+      }
+      if (mPrevious != null && offset >= mPrevious.mStart + mRangeSize) {
+        mPrevious.abandon();
+        mPrevious = null;
+      }
+      fill();
+      int nread = 0;
+      try {
+        while (nread < length) {
+          long pos = offset + nread;
+          boolean previous = mPrevious != null && pos < mPrevious.mStart + mRangeSize;
+          Range range = previous ? mPrevious : mWindow.peekFirst();
+          if (range == null) {
+            break;
+          }
+          int n = range.await();
+          int from = (int) (pos - range.mStart);
+          if (from < n) {
+            int copied = Math.min(length - nread, n - from);
+            System.arraycopy(range.mData, from, dest, nread, copied);
+            nread += copied;
+            from += copied;
+          }
+          if (n < mRangeSize) {
+            // the end of the file
+            mEnd = Math.min(mEnd, range.mStart + n);
+            break;
+          }
+          if (from < n) {
+            break;
+          }
+          if (!previous) {
+            if (mPrevious != null) {
+              mPrevious.abandon();
+            }
+            mPrevious = mWindow.pollFirst();
+            fill();
+          }
+        }
+      } catch (IOException e) {
+        LOG.debug("Failed to fetch range, reading through the handle stream: {}", e.toString());
+        reset(offset);
+        mFallbacks.inc();
+        return NOT_SERVED;
+      }
+      if (nread == 0 && offset < mEnd) {
+        // no buffer was free for the range
+        mFallbacks.inc();
+        return NOT_SERVED;
+      }
+      return nread;
+    }
+
+    /**
+     * Drops the ranges fetched ahead, after the handle stopped reading sequentially.
+     */
+    public synchronized void reset() {
+      reset(mNext);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      mClosed = true;
+      reset(mNext);
+      IOException failure = null;
+      for (FSDataInputStream in = mIdle.poll(); in != null; in = mIdle.poll()) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    /**
+     * @return every stream opened by the window, to aggregate their statistics once closed
+     */
+    public List<FSDataInputStream> getOpened() {
+      return new ArrayList<>(mOpened);
+    }
+
+    @GuardedBy("this")
+    private void reset(long offset) {
+      for (Range range : mWindow) {
+        range.abandon();
+      }
+      mWindow.clear();
+      if (mPrevious != null) {
+        mPrevious.abandon();
+        mPrevious = null;
+      }
+      mNext = offset;
+      mEnd = Long.MAX_VALUE;
+    }
+
+    /**
+     * Fetches ranges ahead until each stream has one or the memory budget is used up.
+     */
+    @GuardedBy("this")
+    private void fill() {
+      while (mWindow.size() < mStreams && mNext < mEnd) {
+        byte[] buf = mBuffers.acquire();
+        if (buf == null) {
+          return;
+        }
+        Range range = new Range(mNext, buf);
+        range.mFuture = mExecutor.submit(() -> fetch(range));
+        mWindow.addLast(range);
+        mNext += mRangeSize;
+        mRanges.mark();
+      }
+    }
+
+    private int fetch(Range range) throws Exception {
+      FSDataInputStream in = takeStream();
+      boolean failed = true;
+      try {
+        int nread = 0;
+        while (nread < mRangeSize && !range.isAbandoned()) {
+          int rd = in.read(range.mStart + nread, range.mData, nread, mRangeSize - nread);
+          if (rd < 0) {
+            break;
+          }
+          nread += rd;
+        }
+        failed = false;
+        return nread;
+      } finally {
+        returnStream(in, failed);
+        range.done();
+      }
+    }
+
+    private FSDataInputStream takeStream() throws Exception {
+      FSDataInputStream in = mIdle.poll();
+      if (in != null) {
+        return in;
+      }
+      // one range per stream is fetched ahead, so streams are only opened to replace those
+      // still finishing an abandoned range
+      in = mOpener.call();
+      mOpened.add(in);
+      return in;
+    }
+
+    private void returnStream(FSDataInputStream in, boolean failed) throws IOException {
+      if (!mClosed && !failed) {
+        mIdle.offer(in);
+        // close may have drained the idle streams meanwhile
+        if (!mClosed || !mIdle.remove(in)) {
+          return;
+        }
+      }
+      in.close();
+    }
+  }
+
+  /**
+   * A range being fetched, its buffer goes back to the pool once it is both done and
+   * abandoned by its window.
+   */
+  private final class Range {
+    private final long mStart;
+    private final byte[] mData;
+    private Future<Integer> mFuture;
+    @GuardedBy("this")
+    private boolean mDone;
+    @GuardedBy("this")
+    private boolean mAbandoned;
+
+    Range(long start, byte[] data) {
+      mStart = start;
+      mData = data;
+    }
+
+    /**
+     * @return the number of bytes fetched
+     */
+    int await() throws IOException {
+      try {
+        return mFuture.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while fetching range at " + mStart, e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    synchronized boolean isAbandoned() {
+      return mAbandoned;
+    }
+
+    synchronized void done() {
+      mDone = true;
+      if (mAbandoned) {
+        mBuffers.release(mData);
+      }
+    }
+
+    synchronized void abandon() {
+      if (mAbandoned) {
+        return;
+      }
+      mAbandoned = true;
+      if (mDone) {
+        mBuffers.release(mData);
+      }
+    }
+  }
+}
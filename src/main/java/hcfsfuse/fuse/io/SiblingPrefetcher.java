@@ -0,0 +1,327 @@
+package hcfsfuse.fuse.io;
+
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_DEPTH;
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_DEPTH_DEFAULT;
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_MEMORY;
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_MEMORY_DEFAULT;
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_THREADS;
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_THREADS_DEFAULT;
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_TTL_MS;
+import static hcfsfuse.fuse.Constants.SIBLING_PREFETCH_TTL_MS_DEFAULT;
+import static hcfsfuse.fuse.Constants.SMALL_FILE_STATUS_TTL_MS;
+import static hcfsfuse.fuse.Constants.SMALL_FILE_STATUS_TTL_MS_DEFAULT;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Reads ahead the next small files of a directory that is read file by file, as data loaders
+ * do for every epoch, so that their opens are served from memory instead of starting cold.
+ * <p>
+ * The listings seen by readdir are kept sorted by name. Once a few files close to each other
+ * in that order are opened in a row, the next files after each opened one are read whole in
+ * parallel into buffers of the {@link SmallFilePrefetcher} pool, within a memory budget that
+ * counts whole buffers. A file read ahead is handed over to the first open of its path, or
+ * dropped after a while, and a read ahead still running when its path changes is discarded.
+ */
+@ThreadSafe
+public final class SiblingPrefetcher implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(SiblingPrefetcher.class);
+  /** Number of nearby opens in a row after which a directory is read ahead. */
+  private static final int MIN_STREAK = 2;
+  private static final int MAX_LISTINGS = 64;
+
+  private final SmallFilePrefetcher mSmallFiles;
+  private final Supplier<FileSystem> mFileSystems;
+  private final int mDepth;
+  private final long mMaxBytes;
+  /** Bytes of the buffers holding files read ahead or being read ahead. */
+  private final AtomicLong mBytes = new AtomicLong();
+  private final Cache<Path, Listing> mListings;
+  private final Cache<Path, ByteBuffer> mData;
+  private final Map<Path, Fetch> mInFlight = new ConcurrentHashMap<>();
+  private final ThreadPoolExecutor mExecutor;
+  private final Counter mPrefetched;
+  private final Counter mHits;
+  private final Counter mWasted;
+
+  /**
+   * @param smallFiles decides which files are small and provides the buffers
+   * @param fileSystems supplies the backend clients to read with
+   * @param conf configuration
+   * @param metrics registry to publish the prefetch metrics to
+   */
+  public SiblingPrefetcher(SmallFilePrefetcher smallFiles, Supplier<FileSystem> fileSystems,
+      Configuration conf, MetricRegistry metrics) {
+    mSmallFiles = smallFiles;
+    mFileSystems = fileSystems;
+    mDepth = Math.max(1, conf.getInt(SIBLING_PREFETCH_DEPTH, SIBLING_PREFETCH_DEPTH_DEFAULT));
+    mMaxBytes = conf.getLongBytes(SIBLING_PREFETCH_MEMORY, SIBLING_PREFETCH_MEMORY_DEFAULT);
+    mPrefetched = metrics.counter("sibling.prefetched");
+    mHits = metrics.counter("sibling.hits");
+    mWasted = metrics.counter("sibling.wasted");
+    mListings = CacheBuilder.newBuilder()
+        .maximumSize(MAX_LISTINGS)
+        .expireAfterWrite(conf.getLong(SMALL_FILE_STATUS_TTL_MS,
+            SMALL_FILE_STATUS_TTL_MS_DEFAULT), TimeUnit.MILLISECONDS)
+        .build();
+    mData = CacheBuilder.newBuilder()
+        .expireAfterWrite(conf.getLong(SIBLING_PREFETCH_TTL_MS,
+            SIBLING_PREFETCH_TTL_MS_DEFAULT), TimeUnit.MILLISECONDS)
+        .<Path, ByteBuffer>removalListener(n -> {
+          // explicit removals hand the buffer over or release it themselves
+          if (n.getCause() != RemovalCause.EXPLICIT) {
+            mWasted.inc();
+            drop(n.getValue());
+          }
+        })
+        .build();
+    int threads = Math.max(1,
+        conf.getInt(SIBLING_PREFETCH_THREADS, SIBLING_PREFETCH_THREADS_DEFAULT));
+    mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads * mDepth), new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("sibling-prefetch-%d").build());
+    metrics.register("sibling.bytes", (Gauge<Long>) mBytes::get);
+  }
+
+  /**
+   * Remembers the files of a directory.
+   *
+   * @param dir the resolved path of the directory
+   * @param names the names of the files in the directory
+   */
+  public void recordListing(Path dir, Collection<String> names) {
+    if (names.isEmpty()) {
+      mListings.invalidate(dir);
+      return;
+    }
+    String[] sorted = names.toArray(new String[0]);
+    Arrays.sort(sorted);
+    mListings.put(dir, new Listing(sorted));
+  }
+
+  /**
+   * Takes the content of a file that was read ahead.
+   *
+   * @param uri the resolved path of the file
+   * @return the content in a pooled buffer to release through the {@link SmallFilePrefetcher},
+   *         null if the file was not read ahead
+   */
+  @Nullable
+  public ByteBuffer take(Path uri) {
+    ByteBuffer data = mData.asMap().remove(uri);
+    if (data != null) {
+      mBytes.addAndGet(-data.array().length);
+      mHits.inc();
+    }
+    return data;
+  }
+
+  /**
+   * Records an open and reads ahead the next files if the directory is read file by file.
+   *
+   * @param uri the resolved path of the opened file
+   */
+  public void onOpen(Path uri) {
+    Path dir = uri.getParent();
+    Listing listing = dir == null ? null : mListings.getIfPresent(dir);
+    if (listing == null) {
+      return;
+    }
+    int index = Arrays.binarySearch(listing.mNames, uri.getName());
+    if (index < 0 || !listing.recordOpen(index, mDepth)) {
+      return;
+    }
+    // expired entries are only dropped during cache operations
+    mData.cleanUp();
+    int end = Math.min(listing.mNames.length, index + 1 + mDepth);
+    for (int i = index + 1; i < end; i++) {
+      if (!schedule(new Path(dir, listing.mNames[i]))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drops a file read ahead, after it was written, removed or renamed.
+   *
+   * @param uri the resolved path of the file
+   */
+  public void invalidate(Path uri) {
+    mListings.invalidate(uri);
+    Fetch fetch = mInFlight.get(uri);
+    if (fetch != null) {
+      fetch.invalidate();
+    }
+    ByteBuffer data = mData.asMap().remove(uri);
+    if (data != null) {
+      drop(data);
+    }
+  }
+
+  /**
+   * Drops the files read ahead at or under a path, after a directory was removed or renamed.
+   *
+   * @param uri the resolved path
+   */
+  public void invalidateUnder(Path uri) {
+    String prefix = uri.toString().endsWith(Path.SEPARATOR)
+        ? uri.toString() : uri + Path.SEPARATOR;
+    mListings.asMap().keySet().removeIf(p -> p.equals(uri) || p.toString().startsWith(prefix));
+    // the files read ahead are few, bounded by the memory budget
+    for (Map.Entry<Path, Fetch> e : mInFlight.entrySet()) {
+      if (e.getKey().equals(uri) || e.getKey().toString().startsWith(prefix)) {
+        e.getValue().invalidate();
+      }
+    }
+    for (Path path : mData.asMap().keySet()) {
+      if (path.equals(uri) || path.toString().startsWith(prefix)) {
+        ByteBuffer data = mData.asMap().remove(path);
+        if (data != null) {
+          drop(data);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return false if no more files can be read ahead for now
+   */
+  private boolean schedule(Path uri) {
+    if (mSmallFiles.getSize(uri) < 0 || mData.getIfPresent(uri) != null) {
+      return true;
+    }
+    Fetch fetch = new Fetch();
+    if (mInFlight.putIfAbsent(uri, fetch) != null) {
+      return true;
+    }
+    // a file of any size takes a whole buffer of the pool
+    long size = mSmallFiles.getBufferSize();
+    if (mBytes.addAndGet(size) > mMaxBytes) {
+      mBytes.addAndGet(-size);
+      mInFlight.remove(uri, fetch);
+      return false;
+    }
+    try {
+      mExecutor.execute(() -> fetch(uri, fetch, size));
+      return true;
+    } catch (RejectedExecutionException e) {
+      mBytes.addAndGet(-size);
+      mInFlight.remove(uri, fetch);
+      return false;
+    }
+  }
+
+  private void fetch(Path uri, Fetch fetch, long size) {
+    ByteBuffer data = null;
+    try (FSDataInputStream in = mFileSystems.get().open(uri)) {
+      data = mSmallFiles.read(in);
+    } catch (IOException e) {
+      LOG.debug("Failed to read ahead {}: {}", uri, e.toString());
+    } finally {
+      if (data == null) {
+        mBytes.addAndGet(-size);
+      } else if (!fetch.complete(uri, data)) {
+        // the file changed while it was read
+        drop(data);
+      } else {
+        mPrefetched.inc();
+      }
+      mInFlight.remove(uri, fetch);
+    }
+  }
+
+  private void drop(ByteBuffer data) {
+    mBytes.addAndGet(-data.array().length);
+    mSmallFiles.release(data);
+  }
+
+  /**
+   * Stops the read aheads, on unmount.
+   */
+  @Override
+  public void close() {
+    mExecutor.shutdownNow();
+  }
+
+  /**
+   * A file being read ahead, its content is only kept if its path did not change meanwhile.
+   */
+  private final class Fetch {
+    @GuardedBy("this")
+    private boolean mInvalidated;
+
+    synchronized void invalidate() {
+      mInvalidated = true;
+    }
+
+    /**
+     * Keeps the content unless the path changed, an invalidation that comes later finds it
+     * in the cache.
+     *
+     * @return whether the content was kept
+     */
+    synchronized boolean complete(Path uri, ByteBuffer data) {
+      if (mInvalidated) {
+        return false;
+      }
+      mData.put(uri, data);
+      return true;
+    }
+  }
+
+  /**
+   * The sorted files of a directory and the recent opens in it.
+   */
+  private static final class Listing {
+    private final String[] mNames;
+    @GuardedBy("this")
+    private int mLastOpened = -1;
+    @GuardedBy("this")
+    private int mStreak;
+
+    Listing(String[] names) {
+      mNames = names;
+    }
+
+    /**
+     * @return whether the recent opens read the directory file by file
+     */
+    synchronized boolean recordOpen(int index, int depth) {
+      // several loader workers open files close to each other, not strictly in turn
+      boolean near = mLastOpened >= 0 && index != mLastOpened
+          && Math.abs(index - mLastOpened) <= depth;
+      mStreak = near ? mStreak + 1 : 0;
+      mLastOpened = index;
+      return mStreak >= MIN_STREAK;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package hcfsfuse.fuse.io;
+
+import static hcfsfuse.fuse.Constants.SMALL_FILE_MAX_SIZE;
+import static hcfsfuse.fuse.Constants.SMALL_FILE_MAX_SIZE_DEFAULT;
+import static hcfsfuse.fuse.Constants.SMALL_FILE_MEMORY;
+import static hcfsfuse.fuse.Constants.SMALL_FILE_MEMORY_DEFAULT;
+import static hcfsfuse.fuse.Constants.SMALL_FILE_STATUS_TTL_MS;
+import static hcfsfuse.fuse.Constants.SMALL_FILE_STATUS_TTL_MS_DEFAULT;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads small files whole when they are opened, so that a file is fetched with one backend
+ * request instead of one per fuse read.
+ * <p>
+ * Whether a file is small is decided from the sizes seen by getattr and readdir, which the
+ * kernel issues before every open. The size is only a hint: a file is read until its end or
+ * until the buffer is full, and a file that has grown beyond the max size since is read
+ * through its stream as usual.
+ */
+@ThreadSafe
+public final class SmallFilePrefetcher {
+  private static final int MAX_STATUSES = 100000;
+
+  private final int mMaxSize;
+  private final BufferPool mBuffers;
+  private final Cache<Path, Long> mSizes;
+  private final Counter mPrefetched;
+  private final Counter mFallbacks;
+
+  /**
+   * @param conf configuration
+   * @param metrics registry to publish the prefetch metrics to
+   */
+  public SmallFilePrefetcher(Configuration conf, MetricRegistry metrics) {
+    long maxSize = conf.getLongBytes(SMALL_FILE_MAX_SIZE, SMALL_FILE_MAX_SIZE_DEFAULT);
+    Preconditions.checkArgument(maxSize > 0 && maxSize <= Integer.MAX_VALUE,
+        "%s must be between 1 and %s: %s", SMALL_FILE_MAX_SIZE, Integer.MAX_VALUE, maxSize);
+    mMaxSize = (int) maxSize;
+    mBuffers = new BufferPool(mMaxSize,
+        conf.getLongBytes(SMALL_FILE_MEMORY, SMALL_FILE_MEMORY_DEFAULT));
+    mSizes = CacheBuilder.newBuilder()
+        .maximumSize(MAX_STATUSES)
+        .expireAfterWrite(conf.getLong(SMALL_FILE_STATUS_TTL_MS,
+            SMALL_FILE_STATUS_TTL_MS_DEFAULT), TimeUnit.MILLISECONDS)
+        .build();
+    mPrefetched = metrics.counter("smallfile.prefetched");
+    mFallbacks = metrics.counter("smallfile.fallbacks");
+    metrics.register("smallfile.buffers.used", (Gauge<Integer>) mBuffers::getUsed);
+  }
+
+  /**
+   * Remembers the size of a file that may be opened next.
+   *
+   * @param uri the resolved path of the file
+   * @param status the status of the file
+   */
+  public void recordStatus(Path uri, FileStatus status) {
+    if (status.isFile() && status.getLen() < mMaxSize) {
+      mSizes.put(uri, status.getLen());
+    } else {
+      mSizes.invalidate(uri);
+    }
+  }
+
+  /**
+   * Forgets the sizes of the files at or under a path, after it was removed or renamed.
+   *
+   * @param uri the resolved path
+   */
+  public void invalidateUnder(Path uri) {
+    String prefix = uri.toString().endsWith(Path.SEPARATOR)
+        ? uri.toString() : uri + Path.SEPARATOR;
+    mSizes.asMap().keySet().removeIf(p -> p.equals(uri) || p.toString().startsWith(prefix));
+  }
+
+  /**
+   * Reads a file whole if it is known to be small.
+   *
+   * @param uri the resolved path of the file
+   * @param in the stream of the file, its position is not changed
+   * @return the content of the file in a pooled buffer to {@link #release} when done, null if
+   *         the file is not small or no buffer is free
+   */
+  @Nullable
+  public ByteBuffer prefetch(Path uri, PositionedReadable in) throws IOException {
+    if (getSize(uri) < 0) {
+      return null;
+    }
+    return read(in);
+  }
+
+  /**
+   * @param uri the resolved path of a file
+   * @return the size of the file if it is known to be small, -1 otherwise
+   */
+  long getSize(Path uri) {
+    Long size = mSizes.getIfPresent(uri);
+    return size == null ? -1 : size;
+  }
+
+  /**
+   * @return the size of each pooled buffer, whatever the size of the file it holds
+   */
+  int getBufferSize() {
+    return mBuffers.getBufferSize();
+  }
+
+  /**
+   * Reads a file whole into a pooled buffer.
+   *
+   * @param in the stream of the file, its position is not changed
+   * @return the content of the file, null if it does not fit or no buffer is free
+   */
+  @Nullable
+  ByteBuffer read(PositionedReadable in) throws IOException {
+    byte[] buf = mBuffers.acquire();
+    if (buf == null) {
+      mFallbacks.inc();
+      return null;
+    }
+    boolean done = false;
+    try {
+      int length = 0;
+      int n = 0;
+      while (length < buf.length && n >= 0) {
+        n = in.read(length, buf, length, buf.length - length);
+        length += Math.max(n, 0);
+      }
+      if (n >= 0) {
+        // the buffer is full, the file has grown since its size was seen
+        mFallbacks.inc();
+        return null;
+      }
+      mPrefetched.inc();
+      done = true;
+      return ByteBuffer.wrap(buf, 0, length).slice();
+    } finally {
+      if (!done) {
+        mBuffers.release(buf);
+      }
+    }
+  }
+
+  /**
+   * Returns the buffer of a prefetched file to the pool.
+   *
+   * @param data the content returned by {@link #prefetch}
+   */
+  public void release(ByteBuffer data) {
+    mBuffers.release(data.array());
+  }
+}
@@ -0,0 +1,491 @@
+package hcfsfuse.fuse.io;
+
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_MEMORY;
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_MEMORY_DEFAULT;
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_PART_SIZE;
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_PART_SIZE_DEFAULT;
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_STREAMS;
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_STREAMS_DEFAULT;
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_THREADS;
+import static hcfsfuse.fuse.Constants.WRITE_STRIPED_THREADS_DEFAULT;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonPathCapabilities;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSnapshot;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+import org.apache.hadoop.fs.statistics.IOStatisticsSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes large files as parts uploaded in parallel over separate backend streams and joined
+ * with {@link FileSystem#concat} at close, since one stream is one connection and caps the
+ * ingest of a large file far below the link speed.
+ * <p>
+ * The first part is written through the stream of the file as before, so files no larger
+ * than a part are written as without striping. Each following part is buffered and uploaded
+ * to a hidden part file next to the file while the next one is being written, and closing
+ * the file waits for the parts and concatenates them onto it. The parts of all files share a
+ * memory budget, a part that gets no buffer is written through its own stream as it comes.
+ * Files on backends that cannot concat files are written through their stream only.
+ */
+@ThreadSafe
+public final class StripedWriter implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(StripedWriter.class);
+
+  private final ExecutorService mExecutor;
+  private final BufferPool mBuffers;
+  private final int mStreams;
+  private final int mPartSize;
+  private final Meter mParts;
+  private final Counter mFiles;
+  private final Counter mFailures;
+  private final Counter mFallbacks;
+
+  /**
+   * @param conf configuration
+   * @param metrics registry to publish the striped write metrics to
+   */
+  public StripedWriter(Configuration conf, MetricRegistry metrics) {
+    long partSize = conf.getLongBytes(WRITE_STRIPED_PART_SIZE, WRITE_STRIPED_PART_SIZE_DEFAULT);
+    Preconditions.checkArgument(partSize > 0 && partSize <= Integer.MAX_VALUE,
+        "%s must be between 1 and %s: %s", WRITE_STRIPED_PART_SIZE, Integer.MAX_VALUE,
+        partSize);
+    mPartSize = (int) partSize;
+    mStreams = Math.max(1, conf.getInt(WRITE_STRIPED_STREAMS, WRITE_STRIPED_STREAMS_DEFAULT));
+    mBuffers = new BufferPool(mPartSize,
+        conf.getLongBytes(WRITE_STRIPED_MEMORY, WRITE_STRIPED_MEMORY_DEFAULT));
+    int threads = Math.max(1, conf.getInt(WRITE_STRIPED_THREADS, WRITE_STRIPED_THREADS_DEFAULT));
+    mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("striped-write-%d").build());
+    mParts = metrics.meter("write.striped.parts");
+    mFiles = metrics.counter("write.striped.files");
+    mFailures = metrics.counter("write.striped.failures");
+    mFallbacks = metrics.counter("write.striped.fallbacks");
+    metrics.register("write.striped.buffers.used", (Gauge<Integer>) mBuffers::getUsed);
+  }
+
+  /**
+   * Stripes the writes of a file if its backend can concat files.
+   *
+   * @param fs the file system of the file
+   * @param uri the file
+   * @param out the stream creating the file
+   * @return the stream to write the file through, closing it joins the parts
+   */
+  public FSDataOutputStream wrap(FileSystem fs, Path uri, FSDataOutputStream out) {
+    if (uri.getParent() == null || !canConcat(fs, uri)) {
+      return out;
+    }
+    return new FSDataOutputStream(new StripedOutputStream(fs, uri, out), null);
+  }
+
+  /**
+   * Follows a backend rename of a file being written or of one of its parent directories,
+   * the parts are concatenated onto the file where it is at close.
+   *
+   * @param out a stream returned by {@link #wrap}
+   * @param from the renamed path
+   * @param to the path it was renamed to
+   */
+  public static void renamed(FSDataOutputStream out, Path from, Path to) {
+    if (out != null && out.getWrappedStream() instanceof StripedOutputStream) {
+      ((StripedOutputStream) out.getWrappedStream()).renamed(from, to);
+    }
+  }
+
+  /**
+   * @return the path at which a path is after a rename of from to to
+   */
+  private static Path move(Path path, Path from, Path to) {
+    String p = path.toUri().getPath();
+    String f = from.toUri().getPath();
+    if (p.equals(f)) {
+      return to;
+    }
+    if (p.startsWith(f.endsWith("/") ? f : f + "/")) {
+      return new Path(to, p.substring(f.length()).replaceFirst("^/", ""));
+    }
+    return path;
+  }
+
+  private boolean canConcat(FileSystem fs, Path uri) {
+    try {
+      if (!fs.hasPathCapability(uri, CommonPathCapabilities.FS_CONCAT)) {
+        return false;
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to probe concat support for {}: {}", uri, e.toString());
+      return false;
+    }
+    // every part but the last must end on a block boundary to be concatenated
+    long blockSize = fs.getDefaultBlockSize(uri);
+    if (blockSize <= 0 || mPartSize % blockSize != 0) {
+      LOG.debug("Not striping {}: part size {} is not a multiple of block size {}", uri,
+          mPartSize, blockSize);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stops the part uploads, on unmount.
+   */
+  @Override
+  public void close() {
+    mExecutor.shutdownNow();
+  }
+
+  /**
+   * The parts of one file being written.
+   */
+  private final class StripedOutputStream extends OutputStream implements IOStatisticsSource {
+    private final FileSystem mFs;
+    /** The stream of the file, it holds the first part. */
+    private final FSDataOutputStream mFirst;
+    /** Distinguishes the part files of concurrent writers of the same file. */
+    private final String mId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final IOStatisticsSnapshot mStatistics = new IOStatisticsSnapshot();
+    /**
+     * The file and its part files as of now, renames may move them while parts are being
+     * uploaded and the writer waits for the uploads.
+     */
+    private volatile Path mPath;
+    private final List<Path> mPartFiles = new CopyOnWriteArrayList<>();
+    @GuardedBy("this")
+    private final Deque<Future<?>> mUploads = new ArrayDeque<>();
+    @GuardedBy("this")
+    private long mFirstLength;
+    @GuardedBy("this")
+    private byte[] mBuf;
+    @GuardedBy("this")
+    private int mBufLength;
+    /** The stream of a part written as it comes, when no buffer was free for it. */
+    @GuardedBy("this")
+    private FSDataOutputStream mDirect;
+    @GuardedBy("this")
+    private int mDirectLength;
+    /** The first failure, every later write and the close fail with it. */
+    @GuardedBy("this")
+    private IOException mFailure;
+    @GuardedBy("this")
+    private boolean mClosed;
+
+    StripedOutputStream(FileSystem fs, Path path, FSDataOutputStream first) {
+      mFs = fs;
+      mPath = path;
+      mFirst = first;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      check();
+      try {
+        while (len > 0) {
+          int n;
+          if (mFirstLength < mPartSize) {
+            n = (int) Math.min(len, mPartSize - mFirstLength);
+            mFirst.write(b, off, n);
+            mFirstLength += n;
+            if (mFirstLength == mPartSize) {
+              mFirst.close();
+              mStatistics.aggregate(mFirst.getIOStatistics());
+            }
+          } else {
+            if (mBuf == null && mDirect == null) {
+              startPart();
+            }
+            if (mDirect != null) {
+              n = Math.min(len, mPartSize - mDirectLength);
+              mDirect.write(b, off, n);
+              mDirectLength += n;
+              if (mDirectLength == mPartSize) {
+                closeDirect();
+              }
+            } else {
+              n = Math.min(len, mPartSize - mBufLength);
+              System.arraycopy(b, off, mBuf, mBufLength, n);
+              mBufLength += n;
+              if (mBufLength == mPartSize) {
+                upload();
+              }
+            }
+          }
+          off += n;
+          len -= n;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw fail(new InterruptedIOException("Interrupted while writing " + mPath));
+      } catch (IOException e) {
+        throw fail(e);
+      }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      check();
+      if (mFirstLength < mPartSize) {
+        mFirst.flush();
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      try {
+        check();
+        if (mFirstLength < mPartSize) {
+          mFirst.close();
+          mStatistics.aggregate(mFirst.getIOStatistics());
+        }
+        if (mDirect != null) {
+          closeDirect();
+        }
+        if (mBufLength > 0) {
+          upload();
+        }
+        while (!mUploads.isEmpty()) {
+          await(mUploads.pollFirst());
+        }
+        if (!mPartFiles.isEmpty()) {
+          concat();
+          mFiles.inc();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abort(new InterruptedIOException("Interrupted while closing " + mPath));
+      } catch (IOException e) {
+        abort(e);
+      } finally {
+        if (mBuf != null) {
+          mBuffers.release(mBuf);
+          mBuf = null;
+        }
+      }
+    }
+
+    @Override
+    public IOStatistics getIOStatistics() {
+      return mStatistics;
+    }
+
+    void renamed(Path from, Path to) {
+      mPath = move(mPath, from, to);
+      mPartFiles.replaceAll(part -> move(part, from, to));
+    }
+
+    /**
+     * Starts the next part in a buffer, or through its own stream if no buffer is free.
+     */
+    @GuardedBy("this")
+    private void startPart() throws IOException {
+      mBuf = mBuffers.acquire();
+      if (mBuf != null) {
+        return;
+      }
+      mFallbacks.inc();
+      Path part = newPart();
+      mDirect = mFs.create(part, false);
+      mParts.mark();
+    }
+
+    @GuardedBy("this")
+    private void closeDirect() throws IOException {
+      FSDataOutputStream direct = mDirect;
+      mDirect = null;
+      mDirectLength = 0;
+      direct.close();
+      mStatistics.aggregate(direct.getIOStatistics());
+    }
+
+    /**
+     * @return the path of a new part file next to the file
+     */
+    @GuardedBy("this")
+    private Path newPart() {
+      Path path = mPath;
+      Path part = new Path(path.getParent(),
+          "." + path.getName() + ".part-" + mId + "-" + mPartFiles.size());
+      mPartFiles.add(part);
+      return part;
+    }
+
+    /**
+     * Uploads the buffered part, after waiting for the oldest upload if as many as there
+     * are streams are in flight.
+     */
+    @GuardedBy("this")
+    private void upload() throws IOException, InterruptedException {
+      while (mUploads.size() >= mStreams) {
+        await(mUploads.pollFirst());
+      }
+      byte[] buf = mBuf;
+      int len = mBufLength;
+      mBuf = null;
+      mBufLength = 0;
+      int index = mPartFiles.size();
+      newPart();
+      mUploads.addLast(mExecutor.submit(() -> {
+        uploadPart(index, buf, len);
+        return null;
+      }));
+      mParts.mark();
+    }
+
+    private void uploadPart(int index, byte[] buf, int len) throws IOException {
+      FSDataOutputStream out = null;
+      try {
+        // where the part is now, its directory may have been renamed since it was queued
+        out = mFs.create(mPartFiles.get(index), false);
+        out.write(buf, 0, len);
+        out.close();
+      } finally {
+        mBuffers.release(buf);
+        mStatistics.aggregate(IOStatisticsSupport.retrieveIOStatistics(out));
+      }
+    }
+
+    /**
+     * Concatenates the parts onto the file where it is now, after moving those left behind
+     * by a rename of the file into its directory.
+     */
+    @GuardedBy("this")
+    private void concat() throws IOException {
+      Path path = mPath;
+      Path parent = path.getParent();
+      for (int i = 0; i < mPartFiles.size(); i++) {
+        Path part = mPartFiles.get(i);
+        if (!part.getParent().equals(parent)) {
+          Path moved = new Path(parent, part.getName());
+          if (!mFs.rename(part, moved)) {
+            throw new IOException("Failed to move part " + part + " to " + moved);
+          }
+          mPartFiles.set(i, moved);
+        }
+      }
+      mFs.concat(path, mPartFiles.toArray(new Path[0]));
+    }
+
+    @GuardedBy("this")
+    private void await(Future<?> upload) throws IOException, InterruptedException {
+      try {
+        upload.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    @GuardedBy("this")
+    private void check() throws IOException {
+      if (mFailure != null) {
+        throw new IOException("Earlier write to " + mPath + " failed", mFailure);
+      }
+    }
+
+    @GuardedBy("this")
+    private IOException fail(IOException e) {
+      if (mFailure == null) {
+        mFailure = e;
+      }
+      return e;
+    }
+
+    /**
+     * Deletes the parts once no upload is in flight, and the file if it is still the one
+     * holding the first part, a file missing some of its parts must not be mistaken for a
+     * complete one.
+     */
+    @GuardedBy("this")
+    private void abort(IOException e) throws IOException {
+      mFailures.inc();
+      for (Future<?> upload : mUploads) {
+        try {
+          upload.get();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        } catch (ExecutionException ee) {
+          // already failed
+        }
+      }
+      mUploads.clear();
+      closeQuietly(mFirst);
+      closeQuietly(mDirect);
+      for (Path part : mPartFiles) {
+        deleteQuietly(part);
+      }
+      Path path = mPath;
+      boolean owned = false;
+      try {
+        FileStatus status = mFs.getFileStatus(path);
+        owned = status.isFile() && status.getLen() == mFirstLength;
+      } catch (IOException se) {
+        // gone or unreachable, left alone
+      }
+      LOG.error("Failed to write {} in {} parts{}: {}", path, mPartFiles.size() + 1,
+          owned ? ", deleting it" : "", e.toString());
+      if (owned) {
+        deleteQuietly(path);
+      }
+      throw e;
+    }
+
+    private void closeQuietly(FSDataOutputStream out) {
+      if (out == null) {
+        return;
+      }
+      try {
+        out.close();
+      } catch (IOException e) {
+        // already failed
+      }
+    }
+
+    private void deleteQuietly(Path path) {
+      try {
+        mFs.delete(path, false);
+      } catch (IOException e) {
+        LOG.warn("Failed to delete {}: {}", path, e.toString());
+      }
+    }
+  }
+}
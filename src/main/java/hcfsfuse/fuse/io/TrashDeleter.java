@@ -0,0 +1,188 @@
+package hcfsfuse.fuse.io;
+
+import static hcfsfuse.fuse.Constants.TRASH_DELETE_THREADS;
+import static hcfsfuse.fuse.Constants.TRASH_DELETE_THREADS_DEFAULT;
+import static hcfsfuse.fuse.Constants.TRASH_DIR;
+import static hcfsfuse.fuse.Constants.TRASH_DIR_DEFAULT;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deletes directory trees in the background. A tree is first renamed into a hidden trash
+ * directory under the mount root, a single metadata operation on stores where renaming a
+ * directory is cheap, and then deleted by a bounded pool of threads.
+ * <p>
+ * The children of a trashed directory are deleted in parallel and the directory itself once
+ * the last of them is gone. Entries left over by a previous process are deleted by
+ * {@link #recover()}.
+ */
+@ThreadSafe
+public final class TrashDeleter implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(TrashDeleter.class);
+
+  private final Supplier<FileSystem> mFileSystems;
+  private final Path mTrash;
+  private final ExecutorService mExecutor;
+  private final AtomicLong mNextId = new AtomicLong();
+  private final AtomicInteger mPending = new AtomicInteger();
+  private final Counter mDeleted;
+  private final Counter mFailures;
+  private volatile boolean mTrashCreated;
+
+  /**
+   * @param fileSystems supplies the backend clients to delete with
+   * @param root the mount root
+   * @param conf configuration
+   * @param metrics registry to publish the trash metrics to
+   */
+  public TrashDeleter(Supplier<FileSystem> fileSystems, Path root, Configuration conf,
+      MetricRegistry metrics) {
+    String name = conf.getTrimmed(TRASH_DIR, TRASH_DIR_DEFAULT);
+    Preconditions.checkArgument(!name.isEmpty() && !name.contains("/"),
+        "%s must be a single path component: %s", TRASH_DIR, name);
+    mFileSystems = fileSystems;
+    mTrash = new Path(root, name);
+    int threads = Math.max(1, conf.getInt(TRASH_DELETE_THREADS, TRASH_DELETE_THREADS_DEFAULT));
+    mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("trash-delete-%d").build());
+    mDeleted = metrics.counter("trash.deleted");
+    mFailures = metrics.counter("trash.failures");
+    metrics.register("trash.pending", (Gauge<Integer>) mPending::get);
+  }
+
+  /**
+   * @return the name of the trash directory in the mount root
+   */
+  public String getTrashName() {
+    return mTrash.getName();
+  }
+
+  /**
+   * Renames a directory into the trash and schedules its deletion.
+   *
+   * @param path the backend path of the directory
+   * @throws IOException if the directory could not be renamed
+   */
+  public void moveToTrash(Path path) throws IOException {
+    FileSystem fs = mFileSystems.get();
+    if (!mTrashCreated) {
+      fs.mkdirs(mTrash);
+      mTrashCreated = true;
+    }
+    Path entry = new Path(mTrash,
+        System.currentTimeMillis() + "-" + mNextId.getAndIncrement() + "-" + path.getName());
+    if (!fs.rename(path, entry)) {
+      if (!fs.exists(path)) {
+        throw new FileNotFoundException(path.toString());
+      }
+      throw new IOException(String.format("Failed to rename %s to %s", path, entry));
+    }
+    LOG.debug("Moved {} to {}", path, entry);
+    delete(entry, true, null);
+  }
+
+  /**
+   * Schedules the deletion of the entries left in the trash by a previous process.
+   */
+  public void recover() {
+    mExecutor.execute(() -> {
+      try {
+        FileStatus[] entries = mFileSystems.get().listStatus(mTrash);
+        mTrashCreated = true;
+        if (entries.length > 0) {
+          LOG.info("Deleting {} entries left in {}", entries.length, mTrash);
+        }
+        for (FileStatus entry : entries) {
+          delete(entry.getPath(), true, null);
+        }
+      } catch (FileNotFoundException e) {
+        LOG.debug("No trash at {}", mTrash);
+      } catch (Throwable t) {
+        LOG.error("Failed to list trash {}", mTrash, t);
+      }
+    });
+  }
+
+  /**
+   * Deletes a path in the background.
+   *
+   * @param path the path
+   * @param expand whether to delete the children of a directory in parallel
+   * @param parent counts down the children of the parent, null for trash entries
+   */
+  private void delete(Path path, boolean expand, Parent parent) {
+    mPending.incrementAndGet();
+    mExecutor.execute(() -> {
+      try {
+        FileSystem fs = mFileSystems.get();
+        FileStatus[] children = expand && fs.getFileStatus(path).isDirectory()
+            ? fs.listStatus(path) : new FileStatus[0];
+        if (children.length > 1) {
+          // delete the children in parallel, the last one to finish deletes the entry
+          Parent entry = new Parent(path, children.length);
+          for (FileStatus child : children) {
+            delete(child.getPath(), false, entry);
+          }
+          return;
+        }
+        fs.delete(path, true);
+        mDeleted.inc();
+      } catch (FileNotFoundException e) {
+        LOG.debug("{} is already deleted", path);
+      } catch (Throwable t) {
+        mFailures.inc();
+        LOG.error("Failed to delete {}, it is retried on restart", path, t);
+      } finally {
+        mPending.decrementAndGet();
+        if (parent != null && parent.mRemaining.decrementAndGet() == 0) {
+          delete(parent.mPath, false, null);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the number of paths queued or being deleted
+   */
+  public int getPending() {
+    return mPending.get();
+  }
+
+  @Override
+  public void close() {
+    mExecutor.shutdownNow();
+  }
+
+  /**
+   * A trash entry whose children are being deleted.
+   */
+  private static final class Parent {
+    private final Path mPath;
+    private final AtomicInteger mRemaining;
+
+    Parent(Path path, int children) {
+      mPath = path;
+      mRemaining = new AtomicInteger(children);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package hcfsfuse.fuse.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Access pattern of one open handle: operation counts, bytes transferred, a histogram of
+ * request sizes, and how often and how far the handle seeks.
+ * <p>
+ * Histograms have {@link #BUCKETS} power of two buckets, bucket {@code i} counts values up to
+ * {@code 4KiB << i} and the last bucket counts everything larger.
+ */
+@ThreadSafe
+public final class AccessProfile {
+  /** Number of histogram buckets. */
+  public static final int BUCKETS = 12;
+  private static final int MIN_BUCKET_SHIFT = 12;
+
+  private final String mPath;
+  private final String mMode;
+  private final long mOpenTimeMs = System.currentTimeMillis();
+  private long mNextOffset;
+  private long mReads;
+  private long mWrites;
+  private long mBytesRead;
+  private long mBytesWritten;
+  private long mSequential;
+  private long mRandom;
+  private long mBackwardSeeks;
+  private long mSeekBytes;
+  private final long[] mSizeHistogram = new long[BUCKETS];
+  private final long[] mSeekHistogram = new long[BUCKETS];
+
+  /**
+   * @param path the fuse path
+   * @param mode "r" for a handle opened for reading, "w" for writing
+   */
+  public AccessProfile(String path, String mode) {
+    mPath = path;
+    mMode = mode;
+  }
+
+  /**
+   * @param offset the offset of the read
+   * @param length the number of bytes read
+   */
+  public synchronized void recordRead(long offset, int length) {
+    mReads++;
+    mBytesRead += Math.max(length, 0);
+    record(offset, length);
+  }
+
+  /**
+   * @param offset the offset of the write
+   * @param length the number of bytes written
+   */
+  public synchronized void recordWrite(long offset, int length) {
+    mWrites++;
+    mBytesWritten += Math.max(length, 0);
+    record(offset, length);
+  }
+
+  private void record(long offset, int length) {
+    mSizeHistogram[bucket(length)]++;
+    long distance = offset - mNextOffset;
+    if (distance == 0) {
+      mSequential++;
+    } else {
+      mRandom++;
+      if (distance < 0) {
+        mBackwardSeeks++;
+      }
+      mSeekBytes += Math.abs(distance);
+      mSeekHistogram[bucket(Math.abs(distance))]++;
+    }
+    mNextOffset = offset + Math.max(length, 0);
+  }
+
+  /**
+   * @param value a size or distance in bytes
+   * @return the histogram bucket of the value
+   */
+  public static int bucket(long value) {
+    if (value <= 1L << MIN_BUCKET_SHIFT) {
+      return 0;
+    }
+    int bucket = 64 - Long.numberOfLeadingZeros(value - 1) - MIN_BUCKET_SHIFT;
+    return Math.min(bucket, BUCKETS - 1);
+  }
+
+  /**
+   * @param bucket a histogram bucket
+   * @return the largest value counted by the bucket, {@link Long#MAX_VALUE} for the last one
+   */
+  public static long bucketLimit(int bucket) {
+    return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << (MIN_BUCKET_SHIFT + bucket);
+  }
+
+  /**
+   * @return the number of read and write operations
+   */
+  public synchronized long getOps() {
+    return mReads + mWrites;
+  }
+
+  /**
+   * @return the profile as one line of space separated key=value pairs, the path is quoted
+   */
+  @Override
+  public synchronized String toString() {
+    return "path=\"" + mPath.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+        + " mode=" + mMode
+        + " duration_ms=" + (System.currentTimeMillis() - mOpenTimeMs)
+        + " reads=" + mReads
+        + " writes=" + mWrites
+        + " bytes_read=" + mBytesRead
+        + " bytes_written=" + mBytesWritten
+        + " sequential=" + mSequential
+        + " random=" + mRandom
+        + " backward_seeks=" + mBackwardSeeks
+        + " seek_bytes=" + mSeekBytes
+        + " size_hist=" + join(mSizeHistogram)
+        + " seek_hist=" + join(mSeekHistogram);
+  }
+
+  private static String join(long[] values) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(values[i]);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,236 @@
+package hcfsfuse.fuse.metrics;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Offline report of the access patterns logged by {@link AccessProfiler}, aggregated per
+ * directory.
+ * <p>
+ * Usage: {@code AccessProfileReport [-d depth] <log file>...}. Each directory gets one line
+ * with its number of handles, operations and bytes, the share of sequential operations, the
+ * median and 90th percentile request size and the share of backward seeks. With a depth, the
+ * paths are aggregated on their first {@code depth} components instead of their parent.
+ */
+public final class AccessProfileReport {
+  private static final String PATH_KEY = "path=\"";
+
+  private AccessProfileReport() {} // prevent instantiation
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) throws IOException {
+    Options opts = new Options();
+    opts.addOption(Option.builder("d")
+        .longOpt("depth")
+        .hasArg()
+        .desc("Number of path components to aggregate on, defaults to the parent directory")
+        .build());
+    opts.addOption(Option.builder("h")
+        .desc("Print this help")
+        .build());
+    CommandLine cli;
+    try {
+      cli = new DefaultParser().parse(opts, args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      new HelpFormatter().printHelp(AccessProfileReport.class.getName() + " <log file>...", opts);
+      System.exit(1);
+      return;
+    }
+    if (cli.hasOption("h") || cli.getArgs().length == 0) {
+      new HelpFormatter().printHelp(AccessProfileReport.class.getName() + " <log file>...", opts);
+      return;
+    }
+    int depth = Integer.parseInt(cli.getOptionValue("d", "0"));
+    Map<String, Summary> summaries = new HashMap<>();
+    for (String file : cli.getArgs()) {
+      try (BufferedReader reader = Files.newBufferedReader(Paths.get(file),
+          StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int start = line.indexOf(PATH_KEY);
+          if (start < 0) {
+            continue;
+          }
+          Map<String, String> fields = parse(line.substring(start));
+          if (fields == null) {
+            continue;
+          }
+          String dir = directory(fields.get("path"), depth);
+          try {
+            summaries.computeIfAbsent(dir, Summary::new).add(fields);
+          } catch (RuntimeException e) {
+            System.err.println("Skipping malformed profile: " + line);
+          }
+        }
+      }
+    }
+    List<Summary> sorted = new ArrayList<>(summaries.values());
+    sorted.sort((a, b) -> Long.compare(b.mBytesRead + b.mBytesWritten,
+        a.mBytesRead + a.mBytesWritten));
+    System.out.printf(Locale.US, "%-48s %8s %10s %12s %10s %12s %6s %8s %8s %6s%n",
+        "directory", "handles", "reads", "bytes_read", "writes", "bytes_write", "seq%",
+        "p50_req", "p90_req", "back%");
+    for (Summary summary : sorted) {
+      System.out.println(summary);
+    }
+  }
+
+  /**
+   * Parses a line of space separated key=value pairs.
+   *
+   * @param line the line
+   * @return the pairs, or null if the line is malformed
+   */
+  static Map<String, String> parse(String line) {
+    Map<String, String> fields = new HashMap<>();
+    int i = 0;
+    int n = line.length();
+    while (i < n) {
+      if (line.charAt(i) == ' ') {
+        i++;
+        continue;
+      }
+      int eq = line.indexOf('=', i);
+      if (eq < 0) {
+        return null;
+      }
+      String key = line.substring(i, eq);
+      StringBuilder value = new StringBuilder();
+      i = eq + 1;
+      if (i < n && line.charAt(i) == '"') {
+        i++;
+        while (i < n && line.charAt(i) != '"') {
+          if (line.charAt(i) == '\\' && i + 1 < n) {
+            i++;
+          }
+          value.append(line.charAt(i++));
+        }
+        if (i >= n) {
+          return null;
+        }
+        i++;
+      } else {
+        while (i < n && line.charAt(i) != ' ') {
+          value.append(line.charAt(i++));
+        }
+      }
+      fields.put(key, value.toString());
+    }
+    return fields.containsKey("path") ? fields : null;
+  }
+
+  private static String directory(String path, int depth) {
+    if (depth <= 0) {
+      int slash = path.lastIndexOf('/');
+      return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+    int end = 0;
+    for (int i = 0; i < depth; i++) {
+      int next = path.indexOf('/', end + 1);
+      if (next < 0) {
+        // the path itself is shallower than the depth, use its parent
+        return directory(path, 0);
+      }
+      end = next;
+    }
+    return end == 0 ? "/" : path.substring(0, end);
+  }
+
+  private static String size(long bytes) {
+    if (bytes == Long.MAX_VALUE) {
+      return ">" + size(AccessProfile.bucketLimit(AccessProfile.BUCKETS - 2));
+    }
+    if (bytes >= 1 << 20) {
+      return (bytes >> 20) + "M";
+    }
+    return (bytes >> 10) + "K";
+  }
+
+  /**
+   * Access patterns of the handles of one directory.
+   */
+  private static final class Summary {
+    private final String mDirectory;
+    private long mHandles;
+    private long mReads;
+    private long mWrites;
+    private long mBytesRead;
+    private long mBytesWritten;
+    private long mSequential;
+    private long mRandom;
+    private long mBackwardSeeks;
+    private final long[] mSizeHistogram = new long[AccessProfile.BUCKETS];
+
+    Summary(String directory) {
+      mDirectory = directory;
+    }
+
+    void add(Map<String, String> fields) {
+      long reads = Long.parseLong(fields.get("reads"));
+      long writes = Long.parseLong(fields.get("writes"));
+      long bytesRead = Long.parseLong(fields.get("bytes_read"));
+      long bytesWritten = Long.parseLong(fields.get("bytes_written"));
+      long sequential = Long.parseLong(fields.get("sequential"));
+      long random = Long.parseLong(fields.get("random"));
+      long backwardSeeks = Long.parseLong(fields.get("backward_seeks"));
+      String[] sizes = fields.get("size_hist").split(",");
+      long[] histogram = new long[AccessProfile.BUCKETS];
+      for (int i = 0; i < sizes.length && i < histogram.length; i++) {
+        histogram[i] = Long.parseLong(sizes[i]);
+      }
+      mHandles++;
+      mReads += reads;
+      mWrites += writes;
+      mBytesRead += bytesRead;
+      mBytesWritten += bytesWritten;
+      mSequential += sequential;
+      mRandom += random;
+      mBackwardSeeks += backwardSeeks;
+      for (int i = 0; i < histogram.length; i++) {
+        mSizeHistogram[i] += histogram[i];
+      }
+    }
+
+    private String percentile(double p) {
+      long total = 0;
+      for (long count : mSizeHistogram) {
+        total += count;
+      }
+      long seen = 0;
+      for (int i = 0; i < mSizeHistogram.length; i++) {
+        seen += mSizeHistogram[i];
+        if (total > 0 && seen >= p * total) {
+          return size(AccessProfile.bucketLimit(i));
+        }
+      }
+      return "-";
+    }
+
+    @Override
+    public String toString() {
+      long ops = mSequential + mRandom;
+      return String.format(Locale.US, "%-48s %8d %10d %12d %10d %12d %6.1f %8s %8s %6.1f",
+          mDirectory, mHandles, mReads, mBytesRead, mWrites, mBytesWritten,
+          ops == 0 ? 0 : 100.0 * mSequential / ops, percentile(0.5), percentile(0.9),
+          mRandom == 0 ? 0 : 100.0 * mBackwardSeeks / mRandom);
+    }
+  }
+}
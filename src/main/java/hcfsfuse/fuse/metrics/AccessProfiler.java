@@ -0,0 +1,53 @@
+package hcfsfuse.fuse.metrics;
+
+import static hcfsfuse.fuse.Constants.PROFILE_SAMPLE_RATE;
+import static hcfsfuse.fuse.Constants.PROFILE_SAMPLE_RATE_DEFAULT;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Profiles the access pattern of a sample of the open handles and logs the profile of each
+ * sampled handle to the {@code AccessProfile} logger when it is released. The log is the
+ * input of {@link AccessProfileReport}.
+ */
+@ThreadSafe
+public final class AccessProfiler {
+  private static final Logger PROFILE_LOG = LoggerFactory.getLogger("AccessProfile");
+
+  private final double mSampleRate;
+
+  /**
+   * @param conf configuration
+   */
+  public AccessProfiler(Configuration conf) {
+    mSampleRate = conf.getDouble(PROFILE_SAMPLE_RATE, PROFILE_SAMPLE_RATE_DEFAULT);
+  }
+
+  /**
+   * @param path the fuse path of a handle being opened
+   * @param write whether the handle is opened for writing
+   * @return the profile of the handle, or null if the handle is not sampled
+   */
+  public AccessProfile start(String path, boolean write) {
+    if (mSampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= mSampleRate) {
+      return null;
+    }
+    return new AccessProfile(path, write ? "w" : "r");
+  }
+
+  /**
+   * Logs the profile of a released handle.
+   *
+   * @param profile the profile, may be null
+   */
+  public void finish(AccessProfile profile) {
+    if (profile != null && profile.getOps() > 0) {
+      PROFILE_LOG.info(profile.toString());
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package hcfsfuse.fuse.metrics;
+
+import static hcfsfuse.fuse.Constants.IOSTATS_POLL_INTERVAL_SEC;
+import static hcfsfuse.fuse.Constants.IOSTATS_POLL_INTERVAL_SEC_DEFAULT;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.StorageStatistics;
+import org.apache.hadoop.fs.StorageStatistics.LongStatistic;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSnapshot;
+import org.apache.hadoop.fs.statistics.IOStatisticsSupport;
+import org.apache.hadoop.fs.statistics.MeanStatistic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Statistics reported by the backend clients themselves, such as GET requests, retries or
+ * bytes discarded by seeks.
+ * <p>
+ * The {@link IOStatistics} of every released stream are merged into one snapshot and
+ * published as {@code backend.iostats.<key>} gauges. The storage statistics of the backend
+ * clients are polled periodically, summed over the clients and published as
+ * {@code backend.storage.<key>} gauges. Gauges are registered as new keys show up since the
+ * keys depend on the backend.
+ */
+@ThreadSafe
+public final class BackendIOStatistics implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(BackendIOStatistics.class);
+
+  private final MetricRegistry mRegistry;
+  private final Supplier<List<FileSystem>> mFileSystems;
+  private final IOStatisticsSnapshot mStreamStatistics = new IOStatisticsSnapshot();
+  private volatile Map<String, Long> mStorageStatistics = Collections.emptyMap();
+  private final Set<String> mRegistered = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService mPoller;
+
+  /**
+   * @param fileSystems the backend clients to poll storage statistics of, empty while they
+   *        are starting up
+   * @param conf configuration
+   * @param registry registry to publish the statistics to
+   */
+  public BackendIOStatistics(Supplier<List<FileSystem>> fileSystems, Configuration conf,
+      MetricRegistry registry) {
+    mRegistry = registry;
+    mFileSystems = fileSystems;
+    long interval = conf.getLong(IOSTATS_POLL_INTERVAL_SEC, IOSTATS_POLL_INTERVAL_SEC_DEFAULT);
+    mPoller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("backend-iostats-poller").build());
+    mPoller.scheduleWithFixedDelay(this::pollStorageStatistics, 0,
+        Math.max(1, interval), TimeUnit.SECONDS);
+  }
+
+  /**
+   * Merges the statistics of a stream, streams that do not expose statistics are ignored.
+   *
+   * @param stream a backend input or output stream, may be null
+   */
+  public void aggregate(Object stream) {
+    if (stream == null) {
+      return;
+    }
+    IOStatistics stats = IOStatisticsSupport.retrieveIOStatistics(stream);
+    if (stats == null) {
+      return;
+    }
+    mStreamStatistics.aggregate(stats);
+    for (String key : stats.counters().keySet()) {
+      register("backend.iostats." + key,
+          () -> mStreamStatistics.counters().getOrDefault(key, 0L));
+    }
+    for (String key : stats.maximums().keySet()) {
+      register("backend.iostats." + key + ".max",
+          () -> mStreamStatistics.maximums().getOrDefault(key, 0L));
+    }
+    for (String key : stats.meanStatistics().keySet()) {
+      register("backend.iostats." + key + ".mean", () -> {
+        MeanStatistic mean = mStreamStatistics.meanStatistics().get(key);
+        return mean == null ? 0L : (long) mean.mean();
+      });
+    }
+  }
+
+  /**
+   * @return the merged statistics of all released streams
+   */
+  public IOStatistics getStreamStatistics() {
+    return mStreamStatistics;
+  }
+
+  /**
+   * @return the storage statistics of the backend clients as of the last poll
+   */
+  public Map<String, Long> getStorageStatistics() {
+    return mStorageStatistics;
+  }
+
+  private void pollStorageStatistics() {
+    try {
+      Map<String, Long> merged = new HashMap<>();
+      for (FileSystem fs : mFileSystems.get()) {
+        StorageStatistics stats = fs.getStorageStatistics();
+        if (stats == null) {
+          continue;
+        }
+        Iterator<LongStatistic> it = stats.getLongStatistics();
+        while (it.hasNext()) {
+          LongStatistic stat = it.next();
+          merged.merge(stat.getName(), stat.getValue(), Long::sum);
+        }
+      }
+      mStorageStatistics = Collections.unmodifiableMap(merged);
+      for (String key : merged.keySet()) {
+        register("backend.storage." + key,
+            () -> mStorageStatistics.getOrDefault(key, 0L));
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to poll backend storage statistics", e);
+    }
+  }
+
+  private void register(String name, Gauge<Long> gauge) {
+    if (mRegistered.add(name)) {
+      mRegistry.register(name, gauge);
+    }
+  }
+
+  @Override
+  public void close() {
+    mPoller.shutdownNow();
+  }
+}
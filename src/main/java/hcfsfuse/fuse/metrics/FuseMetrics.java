@@ -0,0 +1,232 @@
+package hcfsfuse.fuse.metrics;
+
+import static hcfsfuse.fuse.Constants.METRICS_CSV_DIR;
+import static hcfsfuse.fuse.Constants.METRICS_GRAPHITE_HOST;
+import static hcfsfuse.fuse.Constants.METRICS_GRAPHITE_PORT;
+import static hcfsfuse.fuse.Constants.METRICS_GRAPHITE_PORT_DEFAULT;
+import static hcfsfuse.fuse.Constants.METRICS_GRAPHITE_PREFIX;
+import static hcfsfuse.fuse.Constants.METRICS_JMX_DOMAIN;
+import static hcfsfuse.fuse.Constants.METRICS_JMX_ENABLED;
+import static hcfsfuse.fuse.Constants.METRICS_REPORT_INTERVAL_SEC;
+import static hcfsfuse.fuse.Constants.METRICS_REPORT_INTERVAL_SEC_DEFAULT;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.graphite.Graphite;
+import com.codahale.metrics.graphite.GraphiteReporter;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Metrics of a fuse file system: per callback latency and errors, bytes transferred, and
+ * the reporters that publish them.
+ * <p>
+ * Each callback has a {@code op.<name>.latency} timer covering the whole callback and a
+ * {@code op.<name>.backend} timer covering only the work done against the backend, so the
+ * difference is the time spent in throttling, queueing and the fuse layer. The jnr file
+ * system runs the backend work on the fuse thread without throttling or queueing, so its two
+ * timers only differ by the bookkeeping around the callback.
+ */
+@ThreadSafe
+public final class FuseMetrics implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(FuseMetrics.class);
+
+  private final MetricRegistry mRegistry = new MetricRegistry();
+  private final Map<String, Op> mOps = new ConcurrentHashMap<>();
+  private final Meter mBytesRead = mRegistry.meter("bytes.read");
+  private final Meter mBytesWritten = mRegistry.meter("bytes.written");
+  private final List<Closeable> mReporters = new ArrayList<>();
+
+  /**
+   * Metrics of one fuse callback.
+   */
+  public final class Op {
+    private final Timer mLatency;
+    private final Timer mBackend;
+    private final Counter mErrors;
+
+    private Op(String name) {
+      mLatency = mRegistry.timer("op." + name + ".latency");
+      mBackend = mRegistry.timer("op." + name + ".backend");
+      mErrors = mRegistry.counter("op." + name + ".errors");
+    }
+
+    /**
+     * Runs a callback and records its latency, a negative result or an exception counts as
+     * an error.
+     *
+     * @param callback the callback
+     * @return the result of the callback
+     */
+    public int time(IntSupplier callback) {
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+        int ret = callback.getAsInt();
+        failed = ret < 0;
+        return ret;
+      } finally {
+        mLatency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (failed) {
+          mErrors.inc();
+        }
+      }
+    }
+
+    /**
+     * Runs the backend part of a callback and records its latency.
+     *
+     * @param task the backend work
+     * @return the result of the task
+     */
+    public int timeBackend(IntSupplier task) {
+      long start = System.nanoTime();
+      try {
+        return task.getAsInt();
+      } finally {
+        mBackend.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  /**
+   * @param name the callback name
+   * @return the metrics of the callback
+   */
+  public Op op(String name) {
+    Op op = mOps.get(name);
+    if (op == null) {
+      op = mOps.computeIfAbsent(name, Op::new);
+    }
+    return op;
+  }
+
+  /**
+   * @param bytes number of bytes read by a callback
+   */
+  public void markBytesRead(long bytes) {
+    if (bytes > 0) {
+      mBytesRead.mark(bytes);
+    }
+  }
+
+  /**
+   * @param bytes number of bytes written by a callback
+   */
+  public void markBytesWritten(long bytes) {
+    if (bytes > 0) {
+      mBytesWritten.mark(bytes);
+    }
+  }
+
+  /**
+   * @return the underlying registry
+   */
+  public MetricRegistry getRegistry() {
+    return mRegistry;
+  }
+
+  /**
+   * @return a plain text snapshot of all metrics, one metric per line, durations in
+   *         milliseconds
+   */
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Gauge> e : mRegistry.getGauges().entrySet()) {
+      sb.append(e.getKey()).append(' ').append(e.getValue().getValue()).append('\n');
+    }
+    for (Map.Entry<String, Counter> e : mRegistry.getCounters().entrySet()) {
+      sb.append(e.getKey()).append(' ').append(e.getValue().getCount()).append('\n');
+    }
+    for (Map.Entry<String, Meter> e : mRegistry.getMeters().entrySet()) {
+      Meter meter = e.getValue();
+      sb.append(String.format(Locale.US, "%s count=%d m1_rate=%.2f m5_rate=%.2f%n",
+          e.getKey(), meter.getCount(), meter.getOneMinuteRate(), meter.getFiveMinuteRate()));
+    }
+    for (Map.Entry<String, Timer> e : mRegistry.getTimers().entrySet()) {
+      Snapshot snapshot = e.getValue().getSnapshot();
+      sb.append(String.format(Locale.US,
+          "%s count=%d mean=%.3f p50=%.3f p99=%.3f max=%.3f%n", e.getKey(),
+          e.getValue().getCount(), ms(snapshot.getMean()), ms(snapshot.getMedian()),
+          ms(snapshot.get99thPercentile()), ms(snapshot.getMax())));
+    }
+    return sb.toString();
+  }
+
+  private static double ms(double nanos) {
+    return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * Starts the reporters enabled in the configuration.
+   *
+   * @param conf configuration
+   */
+  public synchronized void startReporters(Configuration conf) {
+    long interval = conf.getLong(METRICS_REPORT_INTERVAL_SEC,
+        METRICS_REPORT_INTERVAL_SEC_DEFAULT);
+    if (conf.getBoolean(METRICS_JMX_ENABLED, false)) {
+      JmxReporter jmx = JmxReporter.forRegistry(mRegistry)
+          .inDomain(conf.get(METRICS_JMX_DOMAIN, "hcfsfuse"))
+          .convertDurationsTo(TimeUnit.MILLISECONDS)
+          .build();
+      jmx.start();
+      mReporters.add(jmx);
+      LOG.info("Started JMX metrics reporter");
+    }
+    String csvDir = conf.get(METRICS_CSV_DIR);
+    if (csvDir != null && !csvDir.isEmpty()) {
+      File dir = new File(csvDir);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        LOG.error("Cannot create metrics csv directory {}, csv reporter disabled", csvDir);
+      } else {
+        CsvReporter csv = CsvReporter.forRegistry(mRegistry)
+            .formatFor(Locale.US)
+            .convertDurationsTo(TimeUnit.MILLISECONDS)
+            .build(dir);
+        csv.start(interval, TimeUnit.SECONDS);
+        mReporters.add(csv);
+        LOG.info("Started csv metrics reporter to {} every {}s", csvDir, interval);
+      }
+    }
+    String graphiteHost = conf.get(METRICS_GRAPHITE_HOST);
+    if (graphiteHost != null && !graphiteHost.isEmpty()) {
+      int port = conf.getInt(METRICS_GRAPHITE_PORT, METRICS_GRAPHITE_PORT_DEFAULT);
+      GraphiteReporter graphite = GraphiteReporter.forRegistry(mRegistry)
+          .prefixedWith(conf.get(METRICS_GRAPHITE_PREFIX, "hcfsfuse"))
+          .convertDurationsTo(TimeUnit.MILLISECONDS)
+          .build(new Graphite(graphiteHost, port));
+      graphite.start(interval, TimeUnit.SECONDS);
+      mReporters.add(graphite);
+      LOG.info("Started graphite metrics reporter to {}:{} every {}s",
+          graphiteHost, port, interval);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Closeable reporter : mReporters) {
+      reporter.close();
+    }
+    mReporters.clear();
+  }
+}
@@ -0,0 +1,296 @@
+package hcfsfuse.fuse.metrics;
+
+import static hcfsfuse.fuse.Constants.SLOW_OP_BUFFER_SIZE;
+import static hcfsfuse.fuse.Constants.SLOW_OP_BUFFER_SIZE_DEFAULT;
+import static hcfsfuse.fuse.Constants.SLOW_OP_SAMPLE_RATE;
+import static hcfsfuse.fuse.Constants.SLOW_OP_SAMPLE_RATE_DEFAULT;
+import static hcfsfuse.fuse.Constants.SLOW_OP_THRESHOLD_MS;
+import static hcfsfuse.fuse.Constants.SLOW_OP_THRESHOLD_MS_DEFAULT;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntSupplier;
+
+/**
+ * Traces callbacks slower than a threshold, with their time split into phases.
+ * <p>
+ * A sampled callback runs with a trace bound to its thread, and to the executor thread its
+ * backend work is handed to. Code on the callback path marks phases with {@link #begin()}
+ * and {@link #end(Phase, long)}, which only cost a thread local lookup when the callback is
+ * not traced. Slow callbacks are kept in a ring buffer and logged to the {@code SlowOps}
+ * logger, the time not covered by any phase is reported as {@code other}.
+ */
+@ThreadSafe
+public final class SlowOpTracer {
+  private static final Logger SLOW_LOG = LoggerFactory.getLogger("SlowOps");
+  private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+  private static final long NOT_TRACED = Long.MIN_VALUE;
+
+  /**
+   * Phase of a callback.
+   */
+  public enum Phase {
+    THROTTLE("throttle"),
+    QUEUE("queue"),
+    LOCK("lock"),
+    BACKEND("backend"),
+    COPY("copy"),
+    AUTH("auth");
+
+    private final String mName;
+
+    Phase(String name) {
+      mName = name;
+    }
+
+    /**
+     * @return the name used in the log
+     */
+    public String getName() {
+      return mName;
+    }
+  }
+
+  private final long mThresholdNanos;
+  private final double mSampleRate;
+  private final AtomicReferenceArray<Record> mRecords;
+  private final AtomicLong mNextRecord = new AtomicLong(0);
+  private final Counter mSlowOps;
+
+  /**
+   * @param conf configuration
+   * @param metrics registry to publish the number of slow callbacks to
+   */
+  public SlowOpTracer(Configuration conf, MetricRegistry metrics) {
+    mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(
+        conf.getLong(SLOW_OP_THRESHOLD_MS, SLOW_OP_THRESHOLD_MS_DEFAULT));
+    mSampleRate = conf.getDouble(SLOW_OP_SAMPLE_RATE, SLOW_OP_SAMPLE_RATE_DEFAULT);
+    mRecords = new AtomicReferenceArray<>(
+        Math.max(1, conf.getInt(SLOW_OP_BUFFER_SIZE, SLOW_OP_BUFFER_SIZE_DEFAULT)));
+    mSlowOps = metrics.counter("slow.ops");
+  }
+
+  /**
+   * Runs a callback, traced if it is sampled.
+   *
+   * @param op the callback name
+   * @param path the fuse path
+   * @param uid the uid of the calling process
+   * @param size the number of bytes requested, 0 for metadata operations
+   * @param callback the callback
+   * @return the result of the callback
+   */
+  public int trace(String op, String path, long uid, long size, IntSupplier callback) {
+    if (mSampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= mSampleRate) {
+      return callback.getAsInt();
+    }
+    Trace trace = new Trace(op, path, uid, size);
+    long start = System.nanoTime();
+    int ret = trace.run(callback);
+    long total = System.nanoTime() - start;
+    if (total >= mThresholdNanos) {
+      Record record = new Record(trace, ret, total);
+      mRecords.set((int) (mNextRecord.getAndIncrement() % mRecords.length()), record);
+      mSlowOps.inc();
+      SLOW_LOG.warn(record.toString());
+    }
+    return ret;
+  }
+
+  /**
+   * @return the most recent slow callbacks, oldest first
+   */
+  public List<Record> getRecent() {
+    long next = mNextRecord.get();
+    int length = mRecords.length();
+    List<Record> records = new ArrayList<>(length);
+    for (long i = Math.max(0, next - length); i < next; i++) {
+      Record record = mRecords.get((int) (i % length));
+      if (record != null) {
+        records.add(record);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Binds the trace of the calling thread, if any, to the thread that will run the task.
+   * The time until the task starts is recorded as {@link Phase#QUEUE}.
+   *
+   * @param task the task to hand over to another thread
+   * @return the task to hand over
+   */
+  public static IntSupplier propagate(IntSupplier task) {
+    Trace trace = CURRENT.get();
+    if (trace == null) {
+      return task;
+    }
+    long submitted = System.nanoTime();
+    return () -> {
+      trace.add(Phase.QUEUE, System.nanoTime() - submitted);
+      return trace.run(task);
+    };
+  }
+
+  /**
+   * @return the start of a phase, to be passed to {@link #end(Phase, long)}
+   */
+  public static long begin() {
+    return CURRENT.get() == null ? NOT_TRACED : System.nanoTime();
+  }
+
+  /**
+   * Ends a phase of the traced callback of the calling thread.
+   *
+   * @param phase the phase
+   * @param begin the value returned by {@link #begin()}
+   */
+  public static void end(Phase phase, long begin) {
+    if (begin == NOT_TRACED) {
+      return;
+    }
+    Trace trace = CURRENT.get();
+    if (trace != null) {
+      trace.add(phase, System.nanoTime() - begin);
+    }
+  }
+
+  /**
+   * Sets the handle and offset of the traced callback of the calling thread.
+   *
+   * @param fd the file handle
+   * @param offset the offset of a read or write
+   */
+  public static void handle(long fd, long offset) {
+    Trace trace = CURRENT.get();
+    if (trace != null) {
+      trace.mFd = fd;
+      trace.mOffset = offset;
+    }
+  }
+
+  /**
+   * State of one traced callback, handed from the fuse thread to at most one backend
+   * thread at a time.
+   */
+  private static final class Trace {
+    private final String mOp;
+    private final String mPath;
+    private final long mUid;
+    private final long mSize;
+    private final long[] mPhases = new long[Phase.values().length];
+    private volatile long mFd = -1;
+    private volatile long mOffset = -1;
+
+    Trace(String op, String path, long uid, long size) {
+      mOp = op;
+      mPath = path;
+      mUid = uid;
+      mSize = size;
+    }
+
+    int run(IntSupplier task) {
+      Trace previous = CURRENT.get();
+      CURRENT.set(this);
+      try {
+        return task.getAsInt();
+      } finally {
+        if (previous == null) {
+          CURRENT.remove();
+        } else {
+          CURRENT.set(previous);
+        }
+      }
+    }
+
+    synchronized void add(Phase phase, long nanos) {
+      mPhases[phase.ordinal()] += nanos;
+    }
+
+    synchronized long[] getPhases() {
+      return mPhases.clone();
+    }
+  }
+
+  /**
+   * A slow callback.
+   */
+  public static final class Record {
+    private final long mTimeMs = System.currentTimeMillis();
+    private final String mOp;
+    private final String mPath;
+    private final long mFd;
+    private final long mUid;
+    private final long mOffset;
+    private final long mSize;
+    private final int mResult;
+    private final long mTotalNanos;
+    private final long[] mPhases;
+
+    private Record(Trace trace, int result, long totalNanos) {
+      mOp = trace.mOp;
+      mPath = trace.mPath;
+      mFd = trace.mFd;
+      mUid = trace.mUid;
+      mOffset = trace.mOffset;
+      mSize = trace.mSize;
+      mResult = result;
+      mTotalNanos = totalNanos;
+      mPhases = trace.getPhases();
+    }
+
+    /**
+     * @return the wall clock time the callback completed at in milliseconds
+     */
+    public long getTimeMs() {
+      return mTimeMs;
+    }
+
+    /**
+     * @return the total duration of the callback in nanoseconds
+     */
+    public long getTotalNanos() {
+      return mTotalNanos;
+    }
+
+    /**
+     * @param phase a phase
+     * @return the time spent in the phase in nanoseconds
+     */
+    public long getPhaseNanos(Phase phase) {
+      return mPhases[phase.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("slow ").append(mOp).append(" path=").append(mPath)
+          .append(" fd=").append(mFd).append(" uid=").append(mUid)
+          .append(" offset=").append(mOffset).append(" size=").append(mSize)
+          .append(" result=").append(mResult).append(" total=").append(ms(mTotalNanos));
+      long other = mTotalNanos;
+      for (Phase phase : Phase.values()) {
+        long nanos = mPhases[phase.ordinal()];
+        other -= nanos;
+        sb.append(' ').append(phase.getName()).append('=').append(ms(nanos));
+      }
+      return sb.append(" other=").append(ms(Math.max(0, other))).toString();
+    }
+
+    private static String ms(long nanos) {
+      return String.format(Locale.US, "%.3fms", nanos / 1e6);
+    }
+  }
+}
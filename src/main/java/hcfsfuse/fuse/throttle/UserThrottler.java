@@ -0,0 +1,112 @@
+package hcfsfuse.fuse.throttle;
+
+import static hcfsfuse.fuse.Constants.THROTTLE_BANDWIDTH;
+import static hcfsfuse.fuse.Constants.THROTTLE_IOPS;
+import static hcfsfuse.fuse.Constants.THROTTLE_PATH_PREFIXES;
+import static hcfsfuse.fuse.Constants.THROTTLE_USER_PREFIX;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket throttling of bandwidth and operations per user, and optionally per path
+ * prefix. The time callers spend waiting for tokens is exported per user.
+ */
+@ThreadSafe
+public final class UserThrottler {
+  private static final Logger LOG = LoggerFactory.getLogger(UserThrottler.class);
+  private static final String BANDWIDTH_SUFFIX = ".bandwidth.bytes.per.sec";
+  private static final String IOPS_SUFFIX = ".iops";
+
+  private final Configuration mConf;
+  private final MetricRegistry mMetrics;
+  private final long mDefaultBandwidth;
+  private final long mDefaultIops;
+  private final String[] mPathPrefixes;
+  private final Map<String, Buckets> mBuckets = new ConcurrentHashMap<>();
+
+  /**
+   * @param conf configuration
+   * @param metrics registry to publish throttled time to
+   */
+  public UserThrottler(Configuration conf, MetricRegistry metrics) {
+    mConf = conf;
+    mMetrics = metrics;
+    mDefaultBandwidth = conf.getLongBytes(THROTTLE_BANDWIDTH, 0);
+    mDefaultIops = conf.getLong(THROTTLE_IOPS, 0);
+    String[] prefixes = conf.getTrimmedStrings(THROTTLE_PATH_PREFIXES);
+    mPathPrefixes = prefixes == null ? new String[0] : prefixes;
+  }
+
+  /**
+   * Blocks until the user may issue one operation transferring the given number of bytes.
+   *
+   * @param uid the uid of the calling process
+   * @param path the fuse path of the operation
+   * @param bytes the number of bytes transferred, 0 for metadata operations
+   * @return the time spent throttled in nanoseconds
+   */
+  public long acquire(long uid, String path, long bytes) {
+    String prefix = matchPrefix(path);
+    String key = prefix == null ? Long.toString(uid) : uid + ":" + prefix;
+    Buckets buckets = mBuckets.computeIfAbsent(key, k -> new Buckets(uid, prefix));
+    double waitedSec = 0;
+    if (buckets.mIops != null) {
+      waitedSec += buckets.mIops.acquire();
+    }
+    if (buckets.mBandwidth != null && bytes > 0) {
+      waitedSec += buckets.mBandwidth.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+    }
+    if (waitedSec <= 0) {
+      return 0;
+    }
+    long waitedNanos = (long) (waitedSec * TimeUnit.SECONDS.toNanos(1));
+    buckets.mThrottledOps.inc();
+    buckets.mThrottledMs.inc(TimeUnit.NANOSECONDS.toMillis(waitedNanos));
+    return waitedNanos;
+  }
+
+  private String matchPrefix(String path) {
+    String match = null;
+    for (String prefix : mPathPrefixes) {
+      if (path.startsWith(prefix)
+          && (path.length() == prefix.length() || prefix.endsWith("/")
+              || path.charAt(prefix.length()) == '/')
+          && (match == null || prefix.length() > match.length())) {
+        match = prefix;
+      }
+    }
+    return match;
+  }
+
+  /**
+   * Token buckets of a user, or of a user within a path prefix.
+   */
+  private final class Buckets {
+    private final RateLimiter mBandwidth;
+    private final RateLimiter mIops;
+    private final Counter mThrottledMs;
+    private final Counter mThrottledOps;
+
+    Buckets(long uid, String prefix) {
+      String userPrefix = THROTTLE_USER_PREFIX + uid;
+      long bandwidth = mConf.getLongBytes(userPrefix + BANDWIDTH_SUFFIX, mDefaultBandwidth);
+      long iops = mConf.getLong(userPrefix + IOPS_SUFFIX, mDefaultIops);
+      mBandwidth = bandwidth > 0 ? RateLimiter.create(bandwidth) : null;
+      mIops = iops > 0 ? RateLimiter.create(iops) : null;
+      mThrottledMs = mMetrics.counter("throttle.uid." + uid + ".wait.ms");
+      mThrottledOps = mMetrics.counter("throttle.uid." + uid + ".throttled.ops");
+      LOG.info("Throttling uid {}{} to {} bytes/s and {} ops/s (0 is unlimited)", uid,
+          prefix == null ? "" : " under " + prefix, bandwidth, iops);
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package hcfsfuse.fuse.trace;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary format of fuse callback traces.
+ * <p>
+ * A trace starts with {@link #MAGIC}, {@link #VERSION} and the wall clock time the recording
+ * started at in milliseconds. It is followed by records, each starting with a type byte:
+ * <ul>
+ *   <li>{@link #RECORD_PATH}: the id of a path and the path, written before the first
+ *   event that refers to the path</li>
+ *   <li>{@link #RECORD_EVENT}: one callback, see {@link Event}</li>
+ * </ul>
+ * Numbers are written as variable length integers, signed ones zigzag encoded, so that most
+ * events take a dozen bytes.
+ */
+public final class OpTrace {
+  /** Magic number at the start of a trace. */
+  public static final int MAGIC = 0x48435452;
+  /** Version of the format, version 1 did not record the owner of chown. */
+  public static final int VERSION = 2;
+  /** Type of a path record. */
+  public static final byte RECORD_PATH = 0;
+  /** Type of an event record. */
+  public static final byte RECORD_EVENT = 1;
+
+  private OpTrace() {} // prevent instantiation
+
+  /**
+   * Fuse callbacks, the ordinal is the code written to the trace.
+   */
+  public enum Op {
+    GETATTR,
+    READDIR,
+    OPEN,
+    CREATE,
+    READ,
+    WRITE,
+    FLUSH,
+    RELEASE,
+    MKDIR,
+    UNLINK,
+    RMDIR,
+    RENAME,
+    CHMOD,
+    CHOWN;
+
+    private static final Op[] VALUES = values();
+
+    /**
+     * @param name the callback name
+     * @return the op of the callback, or null if it is not traced
+     */
+    public static Op of(String name) {
+      for (Op op : VALUES) {
+        if (op.name().equalsIgnoreCase(name)) {
+          return op;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * One traced callback.
+   */
+  public static final class Event {
+    private final Op mOp;
+    private final long mThread;
+    private final long mStartMicros;
+    private final long mDurationMicros;
+    private final String mPath;
+    private final String mTarget;
+    private final long mFd;
+    private final long mOffset;
+    private final long mSize;
+    private final int mResult;
+
+    /**
+     * @param op the callback
+     * @param thread the id of the fuse thread that received the callback
+     * @param startMicros the start of the callback since the start of the recording
+     * @param durationMicros the duration of the callback
+     * @param path the fuse path
+     * @param target the new path of a rename, null for other callbacks
+     * @param fd the file handle, -1 if the callback has none
+     * @param offset the offset of reads and writes, the flags of open, the mode of
+     *        create, mkdir and chmod and the uid of chown
+     * @param size the number of bytes requested, the gid of chown
+     * @param result the result of the callback
+     */
+    public Event(Op op, long thread, long startMicros, long durationMicros, String path,
+        String target, long fd, long offset, long size, int result) {
+      mOp = op;
+      mThread = thread;
+      mStartMicros = startMicros;
+      mDurationMicros = durationMicros;
+      mPath = path;
+      mTarget = target;
+      mFd = fd;
+      mOffset = offset;
+      mSize = size;
+      mResult = result;
+    }
+
+    /**
+     * @return the callback
+     */
+    public Op getOp() {
+      return mOp;
+    }
+
+    /**
+     * @return the id of the fuse thread that received the callback
+     */
+    public long getThread() {
+      return mThread;
+    }
+
+    /**
+     * @return the start of the callback since the start of the recording in microseconds
+     */
+    public long getStartMicros() {
+      return mStartMicros;
+    }
+
+    /**
+     * @return the duration of the callback in microseconds
+     */
+    public long getDurationMicros() {
+      return mDurationMicros;
+    }
+
+    /**
+     * @return the fuse path
+     */
+    public String getPath() {
+      return mPath;
+    }
+
+    /**
+     * @return the new path of a rename, null for other callbacks
+     */
+    public String getTarget() {
+      return mTarget;
+    }
+
+    /**
+     * @return the file handle, -1 if the callback has none
+     */
+    public long getFd() {
+      return mFd;
+    }
+
+    /**
+     * @return the offset of reads and writes, the flags of open, the mode of create, mkdir
+     *         and chmod and the uid of chown, -1 if it is not changed
+     */
+    public long getOffset() {
+      return mOffset;
+    }
+
+    /**
+     * @return the number of bytes requested, the gid of chown, -1 if it is not changed
+     */
+    public long getSize() {
+      return mSize;
+    }
+
+    /**
+     * @return the result of the callback
+     */
+    public int getResult() {
+      return mResult;
+    }
+  }
+
+  /**
+   * Reads all events of a trace.
+   *
+   * @param in the trace
+   * @return the events in the order they were recorded
+   */
+  public static List<Event> read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a fuse op trace");
+    }
+    int version = in.readInt();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported trace version " + version);
+    }
+    in.readLong();
+    List<String> paths = new ArrayList<>();
+    List<Event> events = new ArrayList<>();
+    long start = 0;
+    while (true) {
+      int type = in.read();
+      if (type < 0) {
+        return events;
+      }
+      try {
+        if (type == RECORD_PATH) {
+          int id = (int) readVarLong(in);
+          String path = in.readUTF();
+          while (paths.size() <= id) {
+            paths.add(null);
+          }
+          paths.set(id, path);
+        } else if (type == RECORD_EVENT) {
+          Op op = Op.values()[in.readUnsignedByte()];
+          long thread = readVarLong(in);
+          start += readZigZag(in);
+          long duration = readVarLong(in);
+          String path = paths.get((int) readVarLong(in));
+          int target = (int) readVarLong(in);
+          long fd = readZigZag(in);
+          long offset = readZigZag(in);
+          long size = readVarLong(in);
+          int result = (int) readZigZag(in);
+          if (op == Op.CHOWN && version == 1) {
+            offset = -1;
+            size = -1;
+          }
+          events.add(new Event(op, thread, start, duration, path,
+              target == 0 ? null : paths.get(target - 1), fd, offset, size, result));
+        } else {
+          throw new IOException("Unknown record type " + type);
+        }
+      } catch (EOFException e) {
+        // the recorder was killed in the middle of a record
+        return events;
+      }
+    }
+  }
+
+  static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  static void writeZigZag(DataOutputStream out, long value) throws IOException {
+    writeVarLong(out, (value << 1) ^ (value >> 63));
+  }
+
+  static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length integer");
+  }
+
+  static long readZigZag(DataInputStream in) throws IOException {
+    long value = readVarLong(in);
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
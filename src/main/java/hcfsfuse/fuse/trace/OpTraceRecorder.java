@@ -0,0 +1,234 @@
+package hcfsfuse.fuse.trace;
+
+import static hcfsfuse.fuse.Constants.TRACE_FILE;
+import static hcfsfuse.fuse.Constants.TRACE_QUEUE_SIZE;
+import static hcfsfuse.fuse.Constants.TRACE_QUEUE_SIZE_DEFAULT;
+
+import hcfsfuse.fuse.trace.OpTrace.Event;
+import hcfsfuse.fuse.trace.OpTrace.Op;
+
+import alluxio.jnifuse.struct.FuseFileInfo;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records every fuse callback to a binary trace, see {@link OpTrace} for the format.
+ * <p>
+ * Callbacks only enqueue their event, a background thread encodes and writes them. When the
+ * writer falls behind and the queue is full, events are dropped and counted in
+ * {@code trace.dropped} rather than slowing the callbacks down.
+ */
+@ThreadSafe
+public final class OpTraceRecorder implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(OpTraceRecorder.class);
+  private static final int BATCH_SIZE = 1024;
+
+  private final String mFile;
+  private final DataOutputStream mOut;
+  private final long mStartNanos;
+  private final BlockingQueue<Event> mQueue;
+  private final Thread mWriter;
+  private final ThreadLocal<Annotation> mAnnotation = ThreadLocal.withInitial(Annotation::new);
+  /** Ids of the paths written so far, only accessed by the writer thread. */
+  private final Map<String, Long> mPathIds = new HashMap<>();
+  private final Counter mRecorded;
+  private final Counter mDropped;
+  private final AtomicBoolean mClosed = new AtomicBoolean(false);
+  private volatile boolean mFailed;
+
+  /**
+   * @param conf configuration, {@link hcfsfuse.fuse.Constants#TRACE_FILE} must be set
+   * @param metrics registry to publish the number of recorded and dropped events to
+   */
+  public OpTraceRecorder(Configuration conf, MetricRegistry metrics) throws IOException {
+    mFile = conf.get(TRACE_FILE);
+    mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile), 1 << 16));
+    mOut.writeInt(OpTrace.MAGIC);
+    mOut.writeInt(OpTrace.VERSION);
+    mOut.writeLong(System.currentTimeMillis());
+    mStartNanos = System.nanoTime();
+    mQueue = new ArrayBlockingQueue<>(conf.getInt(TRACE_QUEUE_SIZE, TRACE_QUEUE_SIZE_DEFAULT));
+    mRecorded = metrics.counter("trace.recorded");
+    mDropped = metrics.counter("trace.dropped");
+    mWriter = new Thread(this::writeLoop, "op-trace-writer");
+    mWriter.setDaemon(true);
+    mWriter.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        close();
+      } catch (IOException e) {
+        LOG.error("Failed to close op trace {}", mFile, e);
+      }
+    }));
+    LOG.info("Recording fuse callbacks to {}", mFile);
+  }
+
+  /**
+   * Sets the details of the callback running on the calling thread, they are attached to
+   * the next event recorded by the thread.
+   *
+   * @param fi the file info of the callback, null if it has none
+   * @param offset the offset of reads and writes, the flags of open and the mode of create,
+   *        mkdir and chmod
+   * @param target the new path of a rename, null for other callbacks
+   */
+  public void annotate(FuseFileInfo fi, long offset, String target) {
+    Annotation annotation = mAnnotation.get();
+    annotation.mFi = fi;
+    annotation.mOffset = offset;
+    annotation.mTarget = target;
+  }
+
+  /**
+   * Sets the new owner of a chown running on the calling thread, the uid is recorded as the
+   * offset and the gid as the size of its event.
+   *
+   * @param uid the new uid, -1 if it is not changed
+   * @param gid the new gid, -1 if it is not changed
+   */
+  public void annotateOwner(long uid, long gid) {
+    Annotation annotation = mAnnotation.get();
+    annotation.mFi = null;
+    annotation.mOffset = uid;
+    annotation.mTarget = null;
+    annotation.mOwner = true;
+    annotation.mGid = gid;
+  }
+
+  /**
+   * Records a completed callback, must be called on the thread that received it.
+   *
+   * @param name the callback name
+   * @param path the fuse path
+   * @param size the number of bytes requested
+   * @param startNanos the start of the callback
+   * @param durationNanos the duration of the callback
+   * @param result the result of the callback
+   */
+  public void record(String name, String path, long size, long startNanos, long durationNanos,
+      int result) {
+    Annotation annotation = mAnnotation.get();
+    long fd = annotation.mFi == null ? -1 : annotation.mFi.fh.get();
+    long offset = annotation.mOffset;
+    String target = annotation.mTarget;
+    long eventSize = annotation.mOwner ? annotation.mGid : size;
+    annotation.mFi = null;
+    annotation.mOffset = 0;
+    annotation.mTarget = null;
+    annotation.mOwner = false;
+    Op op = Op.of(name);
+    if (op == null || mFailed || mClosed.get()) {
+      return;
+    }
+    Event event = new Event(op, Thread.currentThread().getId(),
+        TimeUnit.NANOSECONDS.toMicros(startNanos - mStartNanos),
+        TimeUnit.NANOSECONDS.toMicros(durationNanos), path, target, fd, offset, eventSize,
+        result);
+    if (!mQueue.offer(event)) {
+      mDropped.inc();
+    }
+  }
+
+  private void writeLoop() {
+    List<Event> batch = new ArrayList<>(BATCH_SIZE);
+    long previousStart = 0;
+    try {
+      while (!mClosed.get() || !mQueue.isEmpty()) {
+        Event first = mQueue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          mOut.flush();
+          continue;
+        }
+        batch.add(first);
+        mQueue.drainTo(batch, BATCH_SIZE - 1);
+        for (Event event : batch) {
+          write(event, previousStart);
+          previousStart = event.getStartMicros();
+        }
+        mRecorded.inc(batch.size());
+        batch.clear();
+      }
+      mOut.flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      mFailed = true;
+      LOG.error("Failed to write op trace {}, recording stopped", mFile, e);
+    }
+  }
+
+  private void write(Event event, long previousStart) throws IOException {
+    long path = pathId(event.getPath());
+    long target = event.getTarget() == null ? 0 : pathId(event.getTarget()) + 1;
+    mOut.writeByte(OpTrace.RECORD_EVENT);
+    mOut.writeByte(event.getOp().ordinal());
+    OpTrace.writeVarLong(mOut, event.getThread());
+    // events are queued when they complete, so starts are not monotonic
+    OpTrace.writeZigZag(mOut, event.getStartMicros() - previousStart);
+    OpTrace.writeVarLong(mOut, event.getDurationMicros());
+    OpTrace.writeVarLong(mOut, path);
+    OpTrace.writeVarLong(mOut, target);
+    OpTrace.writeZigZag(mOut, event.getFd());
+    OpTrace.writeZigZag(mOut, event.getOffset());
+    OpTrace.writeVarLong(mOut, event.getSize());
+    OpTrace.writeZigZag(mOut, event.getResult());
+  }
+
+  private long pathId(String path) throws IOException {
+    Long id = mPathIds.get(path);
+    if (id == null) {
+      id = (long) mPathIds.size();
+      mPathIds.put(path, id);
+      mOut.writeByte(OpTrace.RECORD_PATH);
+      OpTrace.writeVarLong(mOut, id);
+      mOut.writeUTF(path);
+    }
+    return id;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!mClosed.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      mWriter.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    mOut.close();
+    LOG.info("Closed op trace {}: {} events recorded, {} dropped", mFile,
+        mRecorded.getCount(), mDropped.getCount());
+  }
+
+  /**
+   * Details of the callback running on a thread.
+   */
+  private static final class Annotation {
+    private FuseFileInfo mFi;
+    private long mOffset;
+    private String mTarget;
+    /** Whether the callback is a chown, whose gid is recorded as the size. */
+    private boolean mOwner;
+    private long mGid;
+  }
+}
@@ -0,0 +1,462 @@
+package hcfsfuse.fuse.trace;
+
+import hcfsfuse.fuse.FuseOptions;
+import hcfsfuse.fuse.HCFSFuseFileSystem;
+import hcfsfuse.fuse.HCFSJniFuseFileSystem;
+import hcfsfuse.fuse.trace.OpTrace.Event;
+import hcfsfuse.fuse.trace.OpTrace.Op;
+
+import alluxio.fuse.AlluxioFuseUtils;
+import alluxio.jnifuse.struct.FileStat;
+import alluxio.jnifuse.struct.FuseFileInfo;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Strings;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace recorded by {@link OpTraceRecorder} and reports the latency of each
+ * callback next to the latency recorded in the trace.
+ * <p>
+ * The events of each recorded fuse thread are replayed in order by one replay thread, at the
+ * recorded time scaled by the speed factor, or as fast as possible with a speed of 0. The
+ * trace is replayed either against a {@link FileSystem} backend directly, or through the
+ * callbacks of {@link HCFSJniFuseFileSystem} without mounting it. In the latter mode
+ * {@code readdir}, which needs a kernel buffer, runs against the backend, and options that
+ * read the fuse context of the calling process, such as throttling or a custom auth policy,
+ * must be disabled.
+ */
+public final class OpTraceReplayer {
+  private static final int FUSE_FILE_INFO_SIZE = 128;
+  private static final int FILE_STAT_SIZE = 256;
+
+  private OpTraceReplayer() {} // prevent instantiation
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    Options opts = new Options();
+    opts.addOption(Option.builder("t").longOpt("trace").hasArg().required()
+        .desc("Trace file to replay").build());
+    opts.addOption(Option.builder("r").longOpt("target-root").hasArg().required()
+        .desc("Root to replay the fuse paths under, e.g. file:///tmp/replay").build());
+    opts.addOption(Option.builder("c").longOpt("config").hasArg()
+        .desc("Config files").build());
+    opts.addOption(Option.builder("s").longOpt("speed").hasArg()
+        .desc("Speed factor, 1 replays at the recorded pace and 0 as fast as possible")
+        .build());
+    opts.addOption(Option.builder("fuse")
+        .desc("Replay through the jni fuse callbacks instead of the backend").build());
+    opts.addOption(Option.builder("prepare")
+        .desc("Create the files read by the trace that do not exist").build());
+    CommandLine cli;
+    try {
+      cli = new DefaultParser().parse(opts, args);
+    } catch (ParseException e) {
+      System.err.println(e.getMessage());
+      new HelpFormatter().printHelp(OpTraceReplayer.class.getName(), opts);
+      System.exit(1);
+      return;
+    }
+    String[] confPaths = cli.hasOption("c") ? cli.getOptionValues("c") : new String[0];
+    Configuration conf = new Configuration();
+    for (String confPath : confPaths) {
+      conf.addResource(new Path(confPath));
+    }
+    List<Event> events;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(cli.getOptionValue("t")), 1 << 16))) {
+      events = OpTrace.read(in);
+    }
+    Path root = new Path(cli.getOptionValue("r"));
+    FileSystem fs = root.getFileSystem(conf);
+    if (cli.hasOption("prepare")) {
+      prepare(events, fs, root);
+    }
+    Target target;
+    if (cli.hasOption("fuse")) {
+      FuseOptions fuseOptions = new FuseOptions(
+          Files.createTempDirectory("hcfsfuse-replay").toString(), root.toString(), false,
+          new ArrayList<>(), confPaths, true);
+      target = new FuseTarget(new HCFSJniFuseFileSystem(fs, fuseOptions, conf), fs, root);
+    } else {
+      target = new FileSystemTarget(fs, root);
+    }
+    double speed = Double.parseDouble(cli.getOptionValue("s", "1"));
+    replay(events, target, speed);
+    target.close();
+    fs.close();
+  }
+
+  /**
+   * Creates the files that are read by the trace and do not exist, as large as the largest
+   * offset read from them.
+   */
+  private static void prepare(List<Event> events, FileSystem fs, Path root) throws IOException {
+    Map<Long, String> readHandles = new HashMap<>();
+    Map<String, Long> lengths = new HashMap<>();
+    for (Event event : events) {
+      if (event.getOp() == Op.OPEN && (event.getOffset() & 0b11) == 0
+          && event.getResult() >= 0) {
+        readHandles.put(event.getFd(), event.getPath());
+        lengths.putIfAbsent(event.getPath(), 0L);
+      } else if (event.getOp() == Op.READ && readHandles.containsKey(event.getFd())) {
+        lengths.merge(readHandles.get(event.getFd()), event.getOffset() + event.getSize(),
+            Math::max);
+      }
+    }
+    byte[] chunk = new byte[1 << 20];
+    int created = 0;
+    for (Map.Entry<String, Long> e : lengths.entrySet()) {
+      Path path = resolve(root, e.getKey());
+      if (fs.exists(path)) {
+        continue;
+      }
+      try (FSDataOutputStream out = fs.create(path, true)) {
+        for (long left = e.getValue(); left > 0; left -= chunk.length) {
+          out.write(chunk, 0, (int) Math.min(left, chunk.length));
+        }
+      }
+      created++;
+    }
+    System.out.printf("Prepared %d of %d files read by the trace%n", created, lengths.size());
+  }
+
+  private static void replay(List<Event> events, Target target, double speed)
+      throws Exception {
+    Map<Long, List<Event>> threads = new LinkedHashMap<>();
+    for (Event event : events) {
+      threads.computeIfAbsent(event.getThread(), t -> new ArrayList<>()).add(event);
+    }
+    Map<Op, Timer> replayed = new EnumMap<>(Op.class);
+    Map<Op, Timer> recorded = new EnumMap<>(Op.class);
+    for (Op op : Op.values()) {
+      replayed.put(op, new Timer());
+      recorded.put(op, new Timer());
+    }
+    AtomicLong errors = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads.size()));
+    long start = System.nanoTime();
+    List<Future<?>> futures = new ArrayList<>();
+    for (List<Event> thread : threads.values()) {
+      futures.add(executor.submit(() -> {
+        for (Event event : thread) {
+          if (speed > 0) {
+            long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(event.getStartMicros())
+                / speed);
+            for (long now = System.nanoTime(); now < due; now = System.nanoTime()) {
+              LockSupport.parkNanos(due - now);
+            }
+          }
+          long begin = System.nanoTime();
+          int ret;
+          try {
+            ret = target.apply(event);
+          } catch (IOException | RuntimeException e) {
+            ret = -1;
+          }
+          replayed.get(event.getOp()).update(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+          recorded.get(event.getOp()).update(event.getDurationMicros(), TimeUnit.MICROSECONDS);
+          if (ret < 0 && event.getResult() >= 0) {
+            errors.incrementAndGet();
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf(Locale.US, "Replayed %d events of %d threads in %.1fs (%.0f ops/s), "
+        + "%d failed that succeeded when recorded%n", events.size(), threads.size(), seconds,
+        events.size() / seconds, errors.get());
+    System.out.printf(Locale.US, "%-8s %9s %10s %10s %10s %10s %10s%n", "op", "count",
+        "mean_ms", "p50_ms", "p99_ms", "rec_p50", "rec_p99");
+    for (Op op : Op.values()) {
+      Timer timer = replayed.get(op);
+      if (timer.getCount() == 0) {
+        continue;
+      }
+      Snapshot snapshot = timer.getSnapshot();
+      Snapshot reference = recorded.get(op).getSnapshot();
+      System.out.printf(Locale.US, "%-8s %9d %10.3f %10.3f %10.3f %10.3f %10.3f%n",
+          op.name().toLowerCase(Locale.US), timer.getCount(), snapshot.getMean() / 1e6,
+          snapshot.getMedian() / 1e6, snapshot.get99thPercentile() / 1e6,
+          reference.getMedian() / 1e6, reference.get99thPercentile() / 1e6);
+    }
+  }
+
+  /**
+   * @return whether a uid or gid of a chown is changed
+   */
+  private static boolean isSet(long id) {
+    return id != HCFSFuseFileSystem.ID_NOT_SET_VALUE
+        && id != HCFSFuseFileSystem.ID_NOT_SET_VALUE_UNSIGNED;
+  }
+
+  private static Path resolve(Path root, String fusePath) {
+    String relPath = fusePath.substring(1);
+    return relPath.isEmpty() ? root : new Path(root, relPath);
+  }
+
+  /**
+   * Something a trace is replayed against.
+   */
+  private interface Target extends Closeable {
+    /**
+     * @param event the event to replay
+     * @return 0 or a positive value on success, a negative value on failure
+     */
+    int apply(Event event) throws IOException;
+  }
+
+  /**
+   * Replays against a backend file system.
+   */
+  private static final class FileSystemTarget implements Target {
+    private final FileSystem mFs;
+    private final Path mRoot;
+    private final Map<Long, FSDataInputStream> mIns = new ConcurrentHashMap<>();
+    private final Map<Long, FSDataOutputStream> mOuts = new ConcurrentHashMap<>();
+    private final ThreadLocal<byte[]> mBuffer = ThreadLocal.withInitial(() -> new byte[0]);
+
+    FileSystemTarget(FileSystem fs, Path root) {
+      mFs = fs;
+      mRoot = root;
+    }
+
+    private byte[] buffer(long size) {
+      byte[] buffer = mBuffer.get();
+      if (buffer.length < size) {
+        buffer = new byte[(int) size];
+        mBuffer.set(buffer);
+      }
+      return buffer;
+    }
+
+    @Override
+    public int apply(Event event) throws IOException {
+      Path path = resolve(mRoot, event.getPath());
+      switch (event.getOp()) {
+        case GETATTR:
+          mFs.getFileStatus(path);
+          return 0;
+        case READDIR:
+          mFs.listStatus(path);
+          return 0;
+        case OPEN:
+          if ((event.getOffset() & 0b11) != 0) {
+            mOuts.put(event.getFd(), mFs.create(path, true));
+          } else {
+            mIns.put(event.getFd(), mFs.open(path));
+          }
+          return 0;
+        case CREATE:
+          mOuts.put(event.getFd(), mFs.create(path, true));
+          return 0;
+        case READ: {
+          FSDataInputStream in = mIns.get(event.getFd());
+          if (in == null) {
+            return -1;
+          }
+          int nread = in.read(event.getOffset(), buffer(event.getSize()), 0,
+              (int) event.getSize());
+          return Math.max(nread, 0);
+        }
+        case WRITE: {
+          FSDataOutputStream out = mOuts.get(event.getFd());
+          if (out == null) {
+            return -1;
+          }
+          out.write(buffer(event.getSize()), 0, (int) event.getSize());
+          return (int) event.getSize();
+        }
+        case FLUSH:
+          return 0;
+        case RELEASE: {
+          Closeable stream = mIns.remove(event.getFd());
+          if (stream == null) {
+            stream = mOuts.remove(event.getFd());
+          }
+          if (stream == null) {
+            return -1;
+          }
+          stream.close();
+          return 0;
+        }
+        case MKDIR:
+          return mFs.mkdirs(path) ? 0 : -1;
+        case UNLINK:
+        case RMDIR:
+          return mFs.delete(path, true) ? 0 : -1;
+        case RENAME:
+          return mFs.rename(path, resolve(mRoot, event.getTarget())) ? 0 : -1;
+        case CHMOD:
+          mFs.setPermission(path, new FsPermission((short) (event.getOffset() & 07777)));
+          return 0;
+        case CHOWN: {
+          // ids without a name on the replaying host are left unchanged
+          String user = isSet(event.getOffset())
+              ? Strings.emptyToNull(AlluxioFuseUtils.getUserName(event.getOffset())) : null;
+          String group = isSet(event.getSize())
+              ? Strings.emptyToNull(AlluxioFuseUtils.getGroupName(event.getSize())) : null;
+          if (user == null && group == null) {
+            return 0;
+          }
+          mFs.setOwner(path, user, group);
+          return 0;
+        }
+        default:
+          return 0;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (FSDataInputStream in : mIns.values()) {
+        in.close();
+      }
+      for (FSDataOutputStream out : mOuts.values()) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Replays through the callbacks of an unmounted jni fuse file system.
+   */
+  private static final class FuseTarget implements Target {
+    private final HCFSJniFuseFileSystem mFuse;
+    private final FileSystem mFs;
+    private final Path mRoot;
+    private final Map<Long, FuseFileInfo> mInfos = new ConcurrentHashMap<>();
+    private final ThreadLocal<FileStat> mStat = ThreadLocal.withInitial(
+        () -> FileStat.of(direct(FILE_STAT_SIZE)));
+    private final ThreadLocal<ByteBuffer> mBuffer = ThreadLocal.withInitial(() -> direct(0));
+
+    FuseTarget(HCFSJniFuseFileSystem fuse, FileSystem fs, Path root) {
+      mFuse = fuse;
+      mFs = fs;
+      mRoot = root;
+    }
+
+    private static ByteBuffer direct(int size) {
+      return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    private ByteBuffer buffer(long size) {
+      ByteBuffer buffer = mBuffer.get();
+      if (buffer.capacity() < size) {
+        buffer = direct((int) size);
+        mBuffer.set(buffer);
+      }
+      buffer.clear();
+      return buffer;
+    }
+
+    @Override
+    public int apply(Event event) throws IOException {
+      String path = event.getPath();
+      FuseFileInfo handle = mInfos.get(event.getFd());
+      switch (event.getOp()) {
+        case GETATTR:
+          return mFuse.getattr(path, mStat.get());
+        case READDIR:
+          mFs.listStatus(resolve(mRoot, path));
+          return 0;
+        case OPEN: {
+          FuseFileInfo fi = FuseFileInfo.of(direct(FUSE_FILE_INFO_SIZE));
+          fi.flags.set((int) event.getOffset());
+          int ret = mFuse.open(path, fi);
+          if (ret == 0) {
+            mInfos.put(event.getFd(), fi);
+          }
+          return ret;
+        }
+        case CREATE: {
+          FuseFileInfo fi = FuseFileInfo.of(direct(FUSE_FILE_INFO_SIZE));
+          int ret = mFuse.create(path, event.getOffset(), fi);
+          if (ret == 0) {
+            mInfos.put(event.getFd(), fi);
+          }
+          return ret;
+        }
+        case READ:
+          return handle == null ? -1 : mFuse.read(path, buffer(event.getSize()),
+              event.getSize(), event.getOffset(), handle);
+        case WRITE: {
+          if (handle == null) {
+            return -1;
+          }
+          ByteBuffer buffer = buffer(event.getSize());
+          buffer.limit((int) event.getSize());
+          return mFuse.write(path, buffer, event.getSize(), event.getOffset(), handle);
+        }
+        case FLUSH:
+          return handle == null ? -1 : mFuse.flush(path, handle);
+        case RELEASE:
+          mInfos.remove(event.getFd());
+          return handle == null ? -1 : mFuse.release(path, handle);
+        case MKDIR:
+          return mFuse.mkdir(path, event.getOffset());
+        case UNLINK:
+          return mFuse.unlink(path);
+        case RMDIR:
+          return mFuse.rmdir(path);
+        case RENAME:
+          return mFuse.rename(path, event.getTarget());
+        case CHMOD:
+          return mFuse.chmod(path, event.getOffset());
+        case CHOWN:
+          return mFuse.chown(path, event.getOffset(), event.getSize());
+        default:
+          return 0;
+      }
+    }
+
+    @Override
+    public void close() {
+      for (Map.Entry<Long, FuseFileInfo> e : mInfos.entrySet()) {
+        mFuse.release("", e.getValue());
+      }
+    }
+  }
+}